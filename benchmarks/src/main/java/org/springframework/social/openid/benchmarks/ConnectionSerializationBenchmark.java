@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.openid.connect.ConnectionFactoryLocatorInputStream;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.openid.connect.OpenIdProfileCache;
+
+/**
+ * Session serialization of an OpenID connection, the compact form of
+ * {@link org.springframework.social.openid.connect.OpenIdConnection} against
+ * default serialization of its {@link ConnectionData}. The serialized size is
+ * printed on setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionSerializationBenchmark {
+
+	@Param({ "connection", "data" })
+	public String form;
+
+	private Object object;
+	private byte[] bytes;
+	private ConnectionFactoryRegistry registry;
+
+	@Setup
+	public void setup() throws Exception {
+		ConnectionData data = new ConnectionData(OpenIdConnectionFactory.PROVIDER_ID,
+				"https://op.example.com/id/alice", "Alice Example", "https://www.example.com/alice", null, null,
+				null, null, null);
+		OpenIdConnectionFactory factory = new OpenIdConnectionFactory(new OpenIdProfileCache());
+		registry = new ConnectionFactoryRegistry();
+		registry.addConnectionFactory(factory);
+		object = "data".equals(form) ? data : factory.createConnection(data);
+		bytes = serialize(object);
+		System.out.println(form + ": " + bytes.length + " bytes");
+	}
+
+	@Benchmark
+	public byte[] write() throws IOException {
+		return serialize(object);
+	}
+
+	@Benchmark
+	public Object read() throws Exception {
+		// rebinds connections to the registered factory
+		ObjectInputStream in = new ConnectionFactoryLocatorInputStream(new ByteArrayInputStream(bytes), registry);
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.openid.security.CompiledReturnToBuilder;
+import org.springframework.social.openid.security.OpenIdAuthenticationService;
+import org.springframework.social.openid.security.OpenIdSocialAuthenticationFilter;
+import org.springframework.social.openid.security.StaticRealmMapper;
+import org.springframework.social.security.SocialAuthenticationRedirectException;
+import org.springframework.social.security.SocialAuthenticationToken;
+
+/**
+ * Per-request cost of the login hot path with a {@link StubOpenIdConsumer}:
+ * both phases of {@link OpenIdAuthenticationService#getAuthToken}, building
+ * <tt>return_to</tt> and classifying requests. Run with <tt>-prof gc</tt> for
+ * allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginHotPathBenchmark {
+
+	private OpenIdAuthenticationService service;
+	private CompiledReturnToBuilder returnToBuilder;
+	private MockHttpServletRequest initiate;
+	private MockHttpServletRequest callback;
+	private MockHttpServletRequest other;
+	private MockHttpServletResponse response;
+
+	@Setup
+	public void setup() throws Exception {
+		StaticRealmMapper realmMapper = new StaticRealmMapper();
+		realmMapper.setMapping("https://www.example.com/");
+
+		service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+		service.setConsumer(new StubOpenIdConsumer());
+		service.setRealmMapper(realmMapper);
+		service.afterPropertiesSet();
+
+		returnToBuilder = new CompiledReturnToBuilder(Collections.singleton("next"), realmMapper);
+
+		initiate = request("/auth/openid");
+		initiate.setMethod("POST");
+		initiate.addParameter("openid_identifier", "https://me.example.org/");
+		initiate.addParameter("next", "/home?tab=1");
+
+		callback = request("/auth/openid");
+		callback.addParameter("openid.ns", "http://specs.openid.net/auth/2.0");
+		callback.addParameter("openid.mode", "id_res");
+		callback.addParameter("openid.op_endpoint", StubOpenIdConsumer.OP_ENDPOINT);
+		callback.addParameter("openid.claimed_id", "https://me.example.org/");
+		callback.addParameter("openid.identity", "https://me.example.org/");
+		callback.addParameter("openid.return_to", "https://www.example.com/auth/openid");
+		callback.addParameter("openid.response_nonce", "2014-01-01T00:00:00ZAbCdEf");
+		callback.addParameter("openid.assoc_handle", "{HMAC-SHA256}{52c1c6a2}{abcdef==}");
+		callback.addParameter("openid.signed", "op_endpoint,claimed_id,identity,return_to,response_nonce,assoc_handle");
+		callback.addParameter("openid.sig", "c2lnbmF0dXJlc2lnbmF0dXJlc2lnbmF0dXJlc2ln");
+
+		other = request("/home");
+		other.addParameter("tab", "1");
+
+		response = new MockHttpServletResponse();
+	}
+
+	private static MockHttpServletRequest request(String uri) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+		request.setScheme("https");
+		request.setServerName("www.example.com");
+		request.setServerPort(443);
+		request.setSecure(true);
+		request.setRemoteAddr("192.0.2.1");
+		return request;
+	}
+
+	@Benchmark
+	public String redirect() {
+		// parsed parameters are kept as request attribute
+		initiate.clearAttributes();
+		try {
+			service.getAuthToken(initiate, response);
+			throw new IllegalStateException("no redirect");
+		} catch (SocialAuthenticationRedirectException e) {
+			return e.getRedirectUrl();
+		}
+	}
+
+	@Benchmark
+	public SocialAuthenticationToken callback() {
+		callback.clearAttributes();
+		return service.getAuthToken(callback, response);
+	}
+
+	@Benchmark
+	public Object buildReturnTo() {
+		return returnToBuilder.build(initiate);
+	}
+
+	@Benchmark
+	public boolean isOpenIdRequest() {
+		other.clearAttributes();
+		return OpenIdSocialAuthenticationFilter.isOpenIdRequest(other);
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.social.openid.security.LoginRateLimiter;
+
+/**
+ * Admission cost of {@link LoginRateLimiter} under contention: a single hot
+ * client, clients fitting the bucket table and a flood of clients overflowing
+ * it. Rates are high enough to admit everything, measuring the bookkeeping.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class LoginRateLimiterBenchmark {
+
+	@Param({ "1", "1000", "100000" })
+	public int clients;
+
+	private LoginRateLimiter limiter;
+	private String[] addresses;
+
+	@Setup
+	public void setup() {
+		limiter = new LoginRateLimiter();
+		limiter.setClientRate(1e9, 1000);
+		limiter.setOverflowRate(1e9, 1000);
+
+		addresses = new String[clients];
+		for (int i = 0; i < clients; i++) {
+			addresses[i] = "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+		}
+	}
+
+	@Benchmark
+	public boolean tryAcquireClient() {
+		return limiter.tryAcquireClient(addresses[ThreadLocalRandom.current().nextInt(addresses.length)]);
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openid4java.consumer.InMemoryNonceVerifier;
+import org.openid4java.consumer.NonceVerifier;
+import org.openid4java.util.InternetDateFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.social.openid.consumer.BucketedNonceStore;
+import org.springframework.social.openid.consumer.NonceStoreVerifier;
+
+/**
+ * Concurrent verification of unique response nonces, comparing
+ * {@link NonceStoreVerifier} with openid4java's synchronized
+ * {@link InMemoryNonceVerifier}. Each iteration starts with an empty verifier
+ * and checks a fixed number of nonces, all within max age, as sweeping in
+ * openid4java grows with the number of kept nonces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = NonceVerifierBenchmark.NONCES)
+@Measurement(iterations = 5, batchSize = NonceVerifierBenchmark.NONCES)
+@Threads(8)
+@Fork(1)
+public class NonceVerifierBenchmark {
+
+	static final int NONCES = 500;
+
+	private static final String OP = "https://op.example.com/server";
+
+	@Param({ "openid4java", "store" })
+	public String verifier;
+
+	private final AtomicLong counter = new AtomicLong();
+	private NonceVerifier nonceVerifier;
+	private volatile String timestamp;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		if ("openid4java".equals(verifier)) {
+			nonceVerifier = new InMemoryNonceVerifier(NonceStoreVerifier.DEFAULT_MAX_AGE);
+		} else {
+			nonceVerifier = new NonceStoreVerifier(new BucketedNonceStore());
+		}
+		timestamp = new InternetDateFormat().format(new Date());
+	}
+
+	@Benchmark
+	public int seen() {
+		return nonceVerifier.seen(OP, timestamp + counter.incrementAndGet());
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.social.openid.security.CompiledRealmMapper;
+import org.springframework.social.openid.security.CompiledReturnToBuilder;
+import org.springframework.social.openid.security.DefaultRealmMapper;
+import org.springframework.social.openid.security.IRealmMapper;
+import org.springframework.social.openid.security.StaticRealmMapper;
+import org.springframework.social.openid.security.WildcardRealmMapper;
+
+/**
+ * Realm lookup during <tt>return_to</tt> building for each {@link IRealmMapper}
+ * implementation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RealmMapperBenchmark {
+
+	@Param({ "none", "default", "static", "wildcard", "compiled" })
+	public String mapper;
+
+	private CompiledReturnToBuilder returnToBuilder;
+	private MockHttpServletRequest request;
+
+	@Setup
+	public void setup() {
+		Map<String, String> mapping = new HashMap<String, String>();
+		mapping.put("https://www.example.com/", "https://*.example.com/");
+		mapping.put("https://www.example.org/", "https://*.example.org/");
+
+		returnToBuilder = new CompiledReturnToBuilder(Collections.<String> emptySet(), create(mapper,
+				mapping));
+
+		request = new MockHttpServletRequest("GET", "/auth/openid");
+		request.setScheme("https");
+		request.setServerName("www.example.com");
+		request.setServerPort(443);
+	}
+
+	private static IRealmMapper create(String mapper, Map<String, String> mapping) {
+		if ("default".equals(mapper)) {
+			DefaultRealmMapper realmMapper = new DefaultRealmMapper();
+			realmMapper.setRealmMapping(mapping);
+			return realmMapper;
+		} else if ("static".equals(mapper)) {
+			StaticRealmMapper realmMapper = new StaticRealmMapper();
+			realmMapper.setMapping("https://www.example.com/");
+			return realmMapper;
+		} else if ("wildcard".equals(mapper)) {
+			return new WildcardRealmMapper();
+		} else if ("compiled".equals(mapper)) {
+			CompiledRealmMapper realmMapper = new CompiledRealmMapper();
+			realmMapper.setRealmMapping(mapping);
+			return realmMapper;
+		}
+		return null;
+	}
+
+	@Benchmark
+	public String lookupRealm() {
+		return returnToBuilder.build(request).getRealm();
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openid4java.association.Association;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of checking an assertion signature per callback:
+ * {@link Association#verifySignature(String, String)} as called by
+ * openid4java, which looks up and initializes a {@link Mac} each time,
+ * against a clone of a pre-initialized {@link Mac}. The difference bounds
+ * what a verification fast path could save.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureVerificationBenchmark {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Param({ Association.TYPE_HMAC_SHA1, Association.TYPE_HMAC_SHA256 })
+	public String type;
+
+	private Association association;
+	private Mac mac;
+	private String text;
+	private String signature;
+
+	@Setup
+	public void setup() throws Exception {
+		association = Association.generate(type, "{HMAC}{52c1c6a2}{abcdef==}", 3600);
+		mac = Mac.getInstance(association.getMacKey().getAlgorithm());
+		mac.init(association.getMacKey());
+
+		// token contents of a typical positive assertion
+		text = "ns:http://specs.openid.net/auth/2.0\n" + "op_endpoint:https://op.example.com/server\n"
+				+ "claimed_id:https://op.example.com/id/alice\n" + "identity:https://op.example.com/id/alice\n"
+				+ "return_to:https://www.example.com/auth/openid?next=%2Fhome\n"
+				+ "response_nonce:2014-01-01T00:00:00ZAbCdEf\n" + "assoc_handle:{HMAC}{52c1c6a2}{abcdef==}\n";
+		signature = association.sign(text);
+	}
+
+	@Benchmark
+	public boolean association() throws Exception {
+		return association.verifySignature(text, signature);
+	}
+
+	@Benchmark
+	public boolean preinitializedMac() throws Exception {
+		Mac mac = (Mac) this.mac.clone();
+		byte[] expected = mac.doFinal(text.getBytes(UTF_8));
+		return MessageDigest.isEqual(expected, Base64.decodeBase64(signature.getBytes(UTF_8)));
+	}
+}
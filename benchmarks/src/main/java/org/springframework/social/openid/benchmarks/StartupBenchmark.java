@@ -0,0 +1,88 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.openid.security.OpenIdAuthenticationService;
+
+/**
+ * Cold context refresh with an {@link OpenIdAuthenticationService}, eager
+ * against lazy consumer initialization. Each fork refreshes once, so class
+ * loading is included. The heap retained by the context is printed on tear
+ * down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean lazyInit;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private GenericApplicationContext context;
+	private long heapBefore;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		heapBefore = usedHeap();
+		context = new GenericApplicationContext();
+		context.registerBeanDefinition("openIdAuthenticationService", BeanDefinitionBuilder
+				.genericBeanDefinition(OpenIdAuthenticationService.class)
+				.addConstructorArgValue(new OpenIdConnectionFactory()).addPropertyValue("lazyInit", lazyInit)
+				.getBeanDefinition());
+	}
+
+	@Benchmark
+	public GenericApplicationContext refresh() {
+		context.refresh();
+		return context;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		System.out.println("lazyInit=" + lazyInit + ": " + (usedHeap() - heapBefore) / 1024 + " KiB retained");
+		context.close();
+	}
+
+	private long usedHeap() {
+		memory.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.benchmarks;
+
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.openid.OpenIDAttribute;
+import org.springframework.security.openid.OpenIDAuthenticationStatus;
+import org.springframework.security.openid.OpenIDAuthenticationToken;
+import org.springframework.security.openid.OpenIDConsumer;
+
+/**
+ * In-process {@link OpenIDConsumer} redirecting and verifying without any
+ * network access, isolating the cost of the surrounding login code.
+ */
+public class StubOpenIdConsumer implements OpenIDConsumer {
+
+	public static final String OP_ENDPOINT = "https://op.example.com/server";
+
+	@Override
+	public String beginConsumption(HttpServletRequest req, String claimedIdentity, String returnToUrl, String realm) {
+		return OP_ENDPOINT + "?openid.mode=checkid_setup&openid.claimed_id=" + claimedIdentity;
+	}
+
+	@Override
+	public OpenIDAuthenticationToken endConsumption(HttpServletRequest req) {
+		String identity = req.getParameter("openid.identity");
+		return new OpenIDAuthenticationToken(OpenIDAuthenticationStatus.SUCCESS, identity, "",
+				Collections.<OpenIDAttribute> emptyList());
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.jfr;
+
+import jdk.jfr.EventType;
+
+import org.springframework.social.openid.metrics.LoginPhase;
+import org.springframework.social.openid.metrics.NoOpOpenIdTracer;
+import org.springframework.social.openid.metrics.OpenIdSpan;
+import org.springframework.social.openid.metrics.OpenIdTracer;
+
+/**
+ * {@link OpenIdTracer} emitting a Java Flight Recorder event per login phase,
+ * spanning the phase, so slow logins show up next to GC and thread events of
+ * a recording. Nothing is allocated while the event isn't enabled by a
+ * running recording. Phases shorter than the threshold of the recording
+ * ({@link LoginPhaseEvent#NAME}, 20 ms by default) aren't committed.
+ */
+public class JfrOpenIdTracer implements OpenIdTracer {
+
+	private static final EventType EVENT_TYPE = EventType.getEventType(LoginPhaseEvent.class);
+
+	@Override
+	public boolean isEnabled() {
+		return EVENT_TYPE.isEnabled();
+	}
+
+	@Override
+	public OpenIdSpan start(LoginPhase phase) {
+		if (!EVENT_TYPE.isEnabled()) {
+			return NoOpOpenIdTracer.INSTANCE;
+		}
+		LoginPhaseEvent event = new LoginPhaseEvent();
+		event.phase = phase.name();
+		event.begin();
+		return event;
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import org.springframework.social.openid.metrics.LoginOutcome;
+import org.springframework.social.openid.metrics.OpenIdSpan;
+
+/**
+ * A phase of an OpenID login, from start to end.
+ */
+@Name(LoginPhaseEvent.NAME)
+@Label("OpenID Login Phase")
+@Description("A phase of an OpenID login, see LoginPhase")
+@Category("OpenID")
+@Threshold("20 ms")
+@StackTrace(false)
+final class LoginPhaseEvent extends Event implements OpenIdSpan {
+
+	static final String NAME = "org.springframework.social.openid.LoginPhase";
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Host")
+	@Description("Host of the OP where known, otherwise of the claimed identifier")
+	String host;
+
+	@Label("Outcome")
+	String outcome;
+
+	@Override
+	public void end(String host, LoginOutcome outcome) {
+		if (this.outcome != null) {
+			return;
+		}
+		this.host = host;
+		this.outcome = outcome.name();
+		end();
+		if (shouldCommit()) {
+			commit();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+import org.springframework.social.openid.metrics.LoginOutcome;
+import org.springframework.social.openid.metrics.LoginPhase;
+import org.springframework.social.openid.metrics.NoOpOpenIdTracer;
+import org.springframework.social.openid.metrics.OpenIdSpan;
+
+public class JfrOpenIdTracerTest {
+
+	private final JfrOpenIdTracer tracer = new JfrOpenIdTracer();
+
+	@Test
+	public void disabledWithoutRecording() {
+		assertFalse(tracer.isEnabled());
+		assertSame(NoOpOpenIdTracer.INSTANCE, tracer.start(LoginPhase.DISCOVERY));
+	}
+
+	@Test
+	public void spansSlowPhases() throws Exception {
+		List<RecordedEvent> events;
+		Recording recording = new Recording();
+		try {
+			recording.enable(LoginPhaseEvent.NAME).withThreshold(Duration.ofMillis(10));
+			recording.start();
+			assertTrue(tracer.isEnabled());
+
+			OpenIdSpan login = tracer.start(LoginPhase.AUTH_TOKEN);
+			OpenIdSpan discovery = tracer.start(LoginPhase.DISCOVERY);
+			discovery.end("id.example.com", LoginOutcome.SUCCESS);
+			OpenIdSpan association = tracer.start(LoginPhase.ASSOCIATION);
+			Thread.sleep(30);
+			association.end("op.example.com", LoginOutcome.FAILURE);
+			association.end("other.example.com", LoginOutcome.SUCCESS);
+			login.end("op.example.com", LoginOutcome.REDIRECT);
+
+			recording.stop();
+			events = read(recording);
+		} finally {
+			recording.close();
+		}
+
+		// discovery was below the threshold
+		assertEquals(2, events.size());
+		RecordedEvent association = events.get(0);
+		RecordedEvent login = events.get(1);
+
+		assertEquals("ASSOCIATION", association.getString("phase"));
+		assertEquals("op.example.com", association.getString("host"));
+		assertEquals("FAILURE", association.getString("outcome"));
+		assertTrue(association.getDuration().toMillis() >= 30);
+
+		assertEquals("AUTH_TOKEN", login.getString("phase"));
+		assertEquals("REDIRECT", login.getString("outcome"));
+		assertFalse(login.getStartTime().isAfter(association.getStartTime()));
+		assertFalse(login.getEndTime().isBefore(association.getEndTime()));
+	}
+
+	private static List<RecordedEvent> read(Recording recording) throws Exception {
+		Path file = Files.createTempFile("openid", ".jfr");
+		try {
+			recording.dump(file);
+			List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				if (LoginPhaseEvent.NAME.equals(event.getEventType().getName())) {
+					events.add(event);
+				}
+			}
+			events.sort((a, b) -> a.getEndTime().compareTo(b.getEndTime()));
+			return events;
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
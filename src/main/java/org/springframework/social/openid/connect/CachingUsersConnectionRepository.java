@@ -0,0 +1,300 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.connect;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.util.Assert;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@link UsersConnectionRepository} caching the users of OpenID connections,
+ * i.e. the lookup done on every login. Only non-empty results are cached, for
+ * a limited time and a limited number of connections. Entries are invalidated
+ * on changes through {@link ConnectionRepository}s of this repository. Changes
+ * bypassing it (e.g. on other nodes) become visible after
+ * {@link #setTimeToLive(long)}.
+ * <p>
+ * The lookup happens in
+ * {@link org.springframework.social.security.SocialAuthenticationProvider},
+ * while {@link org.springframework.social.security.SocialAuthenticationFilter}
+ * adds connections. Pass the same instance to both, otherwise connections
+ * added by the filter aren't invalidated.
+ */
+public class CachingUsersConnectionRepository implements UsersConnectionRepository {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000L;
+
+	private final UsersConnectionRepository delegate;
+	private final Set<String> providerIds;
+	private final Map<ConnectionKey, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+	private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	public CachingUsersConnectionRepository(UsersConnectionRepository delegate) {
+		this(delegate, Collections.singleton(OpenIdConnectionFactory.PROVIDER_ID));
+	}
+
+	/**
+	 * @param providerIds
+	 *            providers to cache lookups for
+	 */
+	public CachingUsersConnectionRepository(UsersConnectionRepository delegate, Set<String> providerIds) {
+		Assert.notNull(delegate, "delegate must not be null");
+		Assert.notNull(providerIds, "providerIds must not be null");
+		this.delegate = delegate;
+		this.providerIds = Collections.unmodifiableSet(new HashSet<String>(providerIds));
+		entries = new LinkedHashMap<ConnectionKey, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ConnectionKey, Entry> eldest) {
+				return size() > CachingUsersConnectionRepository.this.maxSize;
+			}
+		};
+	}
+
+	@Override
+	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		ConnectionKey key = connection.getKey();
+		if (!providerIds.contains(key.getProviderId())) {
+			return delegate.findUserIdsWithConnection(connection);
+		}
+
+		long now = System.currentTimeMillis();
+		Entry loading = new Entry(null, 0);
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.userIds != null && now < entry.expires) {
+				hits.incrementAndGet();
+				return entry.userIds;
+			}
+			// invalidation or a later lookup replaces the marker
+			entries.put(key, loading);
+		}
+
+		misses.incrementAndGet();
+		List<String> userIds = delegate.findUserIdsWithConnection(connection);
+		synchronized (entries) {
+			if (entries.get(key) == loading) {
+				if (userIds != null && !userIds.isEmpty()) {
+					entries.put(key, new Entry(Collections.unmodifiableList(userIds), now + timeToLive));
+				} else {
+					entries.remove(key);
+				}
+			}
+		}
+		return userIds;
+	}
+
+	@Override
+	public Set<String> findUserIdsConnectedTo(String providerId, Set<String> providerUserIds) {
+		return delegate.findUserIdsConnectedTo(providerId, providerUserIds);
+	}
+
+	@Override
+	public ConnectionRepository createConnectionRepository(String userId) {
+		return new InvalidatingConnectionRepository(userId, delegate.createConnectionRepository(userId));
+	}
+
+	public void invalidate(ConnectionKey key) {
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	private void invalidate(String providerId, String userId) {
+		synchronized (entries) {
+			for (Iterator<Map.Entry<ConnectionKey, Entry>> iter = entries.entrySet().iterator(); iter.hasNext();) {
+				Map.Entry<ConnectionKey, Entry> e = iter.next();
+				if (e.getKey().getProviderId().equals(providerId)) {
+					// drop lookups in progress too, they may return the user
+					List<String> userIds = e.getValue().userIds;
+					if (userIds == null || userIds.contains(userId)) {
+						iter.remove();
+					}
+				}
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return hits per lookup of cached providers, 0 without lookups
+	 */
+	public double getHitRate() {
+		long hits = getHits();
+		long lookups = hits + getMisses();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public UsersConnectionRepository getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum number of cached connections, defaults to
+	 *            {@link #DEFAULT_MAX_SIZE}
+	 */
+	public void setMaxSize(int maxSize) {
+		Assert.isTrue(maxSize > 0, "maxSize must be positive");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            milliseconds to cache lookups, defaults to
+	 *            {@link #DEFAULT_TIME_TO_LIVE}
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	private static final class Entry {
+
+		/**
+		 * <code>null</code> while loading
+		 */
+		private final List<String> userIds;
+		private final long expires;
+
+		private Entry(List<String> userIds, long expires) {
+			this.userIds = userIds;
+			this.expires = expires;
+		}
+	}
+
+	private final class InvalidatingConnectionRepository implements ConnectionRepository {
+
+		private final String userId;
+		private final ConnectionRepository delegate;
+
+		private InvalidatingConnectionRepository(String userId, ConnectionRepository delegate) {
+			this.userId = userId;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public MultiValueMap<String, Connection<?>> findAllConnections() {
+			return delegate.findAllConnections();
+		}
+
+		@Override
+		public List<Connection<?>> findConnections(String providerId) {
+			return delegate.findConnections(providerId);
+		}
+
+		@Override
+		public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+			return delegate.findConnections(apiType);
+		}
+
+		@Override
+		public MultiValueMap<String, Connection<?>> findConnectionsToUsers(MultiValueMap<String, String> providerUserIds) {
+			return delegate.findConnectionsToUsers(providerUserIds);
+		}
+
+		@Override
+		public Connection<?> getConnection(ConnectionKey connectionKey) {
+			return delegate.getConnection(connectionKey);
+		}
+
+		@Override
+		public <A> Connection<A> getConnection(Class<A> apiType, String providerUserId) {
+			return delegate.getConnection(apiType, providerUserId);
+		}
+
+		@Override
+		public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+			return delegate.getPrimaryConnection(apiType);
+		}
+
+		@Override
+		public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+			return delegate.findPrimaryConnection(apiType);
+		}
+
+		@Override
+		public void addConnection(Connection<?> connection) {
+			try {
+				delegate.addConnection(connection);
+			} finally {
+				invalidate(connection.getKey());
+			}
+		}
+
+		@Override
+		public void updateConnection(Connection<?> connection) {
+			delegate.updateConnection(connection);
+		}
+
+		@Override
+		public void removeConnections(String providerId) {
+			try {
+				delegate.removeConnections(providerId);
+			} finally {
+				invalidate(providerId, userId);
+			}
+		}
+
+		@Override
+		public void removeConnection(ConnectionKey connectionKey) {
+			try {
+				delegate.removeConnection(connectionKey);
+			} finally {
+				invalidate(connectionKey);
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.connect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.util.Assert;
+
+/**
+ * Reads {@link OpenIdConnection}s bound to the {@link OpenIdConnectionFactory}
+ * registered for their provider ID, e.g. when restoring sessions. Connections
+ * read from other streams use a factory without profile cache.
+ */
+public class ConnectionFactoryLocatorInputStream extends ObjectInputStream {
+
+	private final ConnectionFactoryLocator connectionFactoryLocator;
+
+	public ConnectionFactoryLocatorInputStream(InputStream in, ConnectionFactoryLocator connectionFactoryLocator)
+			throws IOException {
+		super(in);
+		Assert.notNull(connectionFactoryLocator, "connectionFactoryLocator must not be null");
+		this.connectionFactoryLocator = connectionFactoryLocator;
+	}
+
+	public ConnectionFactoryLocator getConnectionFactoryLocator() {
+		return connectionFactoryLocator;
+	}
+}
@@ -24,6 +24,20 @@ import org.springframework.social.openid.api.OpenId;
 
 public class OpenIdAdapter implements ApiAdapter<OpenId> {
 
+	private final OpenIdProfileCache profileCache;
+
+	public OpenIdAdapter() {
+		this(null);
+	}
+
+	/**
+	 * @param profileCache
+	 *            profiles received on login, may be <code>null</code>
+	 */
+	public OpenIdAdapter(OpenIdProfileCache profileCache) {
+		this.profileCache = profileCache;
+	}
+
 	@Override
 	public boolean test(OpenId api) {
 		return true;
@@ -32,10 +46,21 @@ public class OpenIdAdapter implements ApiAdapter<OpenId> {
 	@Override
 	public void setConnectionValues(OpenId api, ConnectionValues values) {
 		values.setProviderUserId(api.getVerifiedOpenId());
+
+		OpenIdProfile profile = getProfile(api);
+		if (profile != null) {
+			values.setDisplayName(profile.getDisplayName());
+			values.setProfileUrl(profile.getProfileUrl());
+			values.setImageUrl(profile.getImageUrl());
+		}
 	}
 
 	@Override
 	public UserProfile fetchUserProfile(OpenId api) {
+		OpenIdProfile profile = getProfile(api);
+		if (profile != null) {
+			return profile.toUserProfile(api.getVerifiedOpenId());
+		}
 		return new UserProfileBuilder().setUsername(api.getVerifiedOpenId()).build();
 	}
 
@@ -44,4 +69,12 @@ public class OpenIdAdapter implements ApiAdapter<OpenId> {
 	public void updateStatus(OpenId api, String message) {
 	}
 
+	public OpenIdProfileCache getProfileCache() {
+		return profileCache;
+	}
+
+	private OpenIdProfile getProfile(OpenId api) {
+		return profileCache == null ? null : profileCache.get(api.getVerifiedOpenId());
+	}
+
 }
@@ -16,54 +16,202 @@
 
 package org.springframework.social.openid.connect;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+
 import org.springframework.social.connect.ApiAdapter;
 import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.support.AbstractConnection;
 import org.springframework.social.openid.api.OpenId;
 
+/**
+ * Connection to an OpenID. The {@link OpenId} API binding is created on first
+ * use only, without locking as it is immutable. Profile values are read from
+ * an immutable {@link ConnectionData} snapshot, taken once under the monitor
+ * and replaced on {@link #sync()}. Serialized in a compact form
+ * without service provider and adapter, which are rebound on read to the
+ * factory of the provider ID if read by a
+ * {@link ConnectionFactoryLocatorInputStream}.
+ */
 public class OpenIdConnection extends AbstractConnection<OpenId> {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(OpenIdConnection.class);
+
 	private final OpenIdServiceProvider serviceProvider;
 	private final String verifiedOpenId;
-	private transient OpenId api;
+	private transient volatile OpenId api;
+	private transient volatile ConnectionData data;
 
 	public OpenIdConnection(String verifiedOpenId, OpenIdServiceProvider serviceProvider, ApiAdapter<OpenId> apiAdapter) {
 		super(apiAdapter);
 		this.serviceProvider = serviceProvider;
 		this.verifiedOpenId = verifiedOpenId;
-		this.api = initApi();
 	}
 
 	public OpenIdConnection(ConnectionData data, OpenIdServiceProvider serviceProvider, ApiAdapter<OpenId> apiAdapter) {
 		super(data, apiAdapter);
 		this.serviceProvider = serviceProvider;
 		this.verifiedOpenId = data.getProviderUserId();
-		this.api = initApi();
+		this.data = snapshot(data.getProviderId(), data.getProviderUserId(), data.getDisplayName(),
+				data.getProfileUrl(), data.getImageUrl());
 	}
 
-	private OpenId initApi() {
-		return serviceProvider.getApi(verifiedOpenId);
-	}
-	
 	@Override
 	public OpenId getApi() {
-		synchronized (getMonitor()) {
-			return api;
+		OpenId api = this.api;
+		if (api == null) {
+			// racing threads get equivalent immutable instances
+			this.api = api = serviceProvider.getApi(verifiedOpenId);
 		}
+		return api;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return createData().getDisplayName();
+	}
+
+	@Override
+	public String getProfileUrl() {
+		return createData().getProfileUrl();
 	}
 
+	@Override
+	public String getImageUrl() {
+		return createData().getImageUrl();
+	}
+
+	/**
+	 * @return the current snapshot, shared as {@link ConnectionData} is
+	 *         immutable
+	 */
 	@Override
 	public ConnectionData createData() {
+		ConnectionData data = this.data;
+		if (data == null) {
+			synchronized (getMonitor()) {
+				data = this.data;
+				if (data == null) {
+					this.data = data = takeSnapshot();
+				}
+			}
+		}
+		return data;
+	}
+
+	@Override
+	public void sync() {
 		synchronized (getMonitor()) {
-			return new ConnectionData(getKey().getProviderId(), getKey().getProviderUserId(), getDisplayName(), getProfileUrl(), getImageUrl(), null, null, null, null);
+			super.sync();
+			data = takeSnapshot();
 		}
 	}
 
+	/**
+	 * all values read in one critical section, initializing them from the API
+	 * if necessary
+	 */
+	private ConnectionData takeSnapshot() {
+		return snapshot(getKey().getProviderId(), getKey().getProviderUserId(), super.getDisplayName(),
+				super.getProfileUrl(), super.getImageUrl());
+	}
+
+	private static ConnectionData snapshot(String providerId, String providerUserId, String displayName,
+			String profileUrl, String imageUrl) {
+		return new ConnectionData(providerId, providerUserId, displayName, profileUrl, imageUrl, null, null, null,
+				null);
+	}
+
 	@Override
 	public void refresh() {
-		api = initApi();
+		api = null;
 	}
 
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(this);
+	}
+
+	private void readObject(java.io.ObjectInputStream in) throws InvalidObjectException {
+		throw new InvalidObjectException("SerializedForm required");
+	}
+
+	/**
+	 * Versioned wire format of {@link OpenIdConnection}.
+	 */
+	static final class SerializedForm implements Externalizable {
+
+		private static final long serialVersionUID = 1L;
+		private static final byte VERSION = 1;
+
+		private ConnectionData data;
+		private transient ConnectionFactoryLocator connectionFactoryLocator;
+
+		public SerializedForm() {
+		}
+
+		private SerializedForm(OpenIdConnection connection) {
+			data = connection.createData();
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeByte(VERSION);
+			out.writeUTF(data.getProviderId());
+			writeNullable(out, data.getProviderUserId());
+			writeNullable(out, data.getDisplayName());
+			writeNullable(out, data.getProfileUrl());
+			writeNullable(out, data.getImageUrl());
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException {
+			byte version = in.readByte();
+			if (version != VERSION) {
+				throw new InvalidObjectException("unsupported version " + version);
+			}
+			data = new ConnectionData(in.readUTF(), readNullable(in), readNullable(in), readNullable(in),
+					readNullable(in), null, null, null, null);
+			if (in instanceof ConnectionFactoryLocatorInputStream) {
+				connectionFactoryLocator = ((ConnectionFactoryLocatorInputStream) in).getConnectionFactoryLocator();
+			}
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			OpenIdConnectionFactory factory = getConnectionFactory();
+			if (factory == null) {
+				// read by the container, profiles aren't served from the cache
+				log.debug("no OpenIdConnectionFactory for provider {}, using defaults", data.getProviderId());
+				return new OpenIdConnection(data, new OpenIdServiceProvider(), new OpenIdAdapter());
+			}
+			return factory.createConnection(data);
+		}
+
+		private OpenIdConnectionFactory getConnectionFactory() {
+			if (connectionFactoryLocator == null
+					|| !connectionFactoryLocator.registeredProviderIds().contains(data.getProviderId())) {
+				return null;
+			}
+			ConnectionFactory<?> factory = connectionFactoryLocator.getConnectionFactory(data.getProviderId());
+			return factory instanceof OpenIdConnectionFactory ? (OpenIdConnectionFactory) factory : null;
+		}
+
+		private static void writeNullable(ObjectOutput out, String value) throws IOException {
+			out.writeBoolean(value != null);
+			if (value != null) {
+				out.writeUTF(value);
+			}
+		}
+
+		private static String readNullable(ObjectInput in) throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+	}
 }
@@ -21,10 +21,48 @@ import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionFactory;
 import org.springframework.social.openid.api.OpenId;
 
+/**
+ * Creates {@link OpenIdConnection}s. Deserialized connections are bound to
+ * the factory found by a {@link ConnectionFactoryLocatorInputStream}.
+ */
 public class OpenIdConnectionFactory extends ConnectionFactory<OpenId> {
 
+	public static final String PROVIDER_ID = "openid";
+
+	/**
+	 * Creates a factory without profile cache.
+	 */
 	public OpenIdConnectionFactory() {
-		super("openid", new OpenIdServiceProvider(), new OpenIdAdapter());
+		this((OpenIdProfileCache) null);
+	}
+
+	/**
+	 * @param profileCache
+	 *            profiles received on login, served by
+	 *            {@link OpenIdAdapter#fetchUserProfile(OpenId)}, may be
+	 *            <code>null</code>
+	 */
+	public OpenIdConnectionFactory(OpenIdProfileCache profileCache) {
+		this(PROVIDER_ID, profileCache);
+	}
+
+	/**
+	 * @param providerId
+	 *            to run several OpenID logins side by side
+	 * @param profileCache
+	 *            profiles received on login, served by
+	 *            {@link OpenIdAdapter#fetchUserProfile(OpenId)}, may be
+	 *            <code>null</code>
+	 */
+	public OpenIdConnectionFactory(String providerId, OpenIdProfileCache profileCache) {
+		super(providerId, new OpenIdServiceProvider(), new OpenIdAdapter(profileCache));
+	}
+
+	/**
+	 * @return the profile cache or <code>null</code>
+	 */
+	public OpenIdProfileCache getProfileCache() {
+		return ((OpenIdAdapter) getApiAdapter()).getProfileCache();
 	}
 
 	@Override
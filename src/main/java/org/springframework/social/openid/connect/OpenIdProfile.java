@@ -0,0 +1,97 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.connect;
+
+import java.io.Serializable;
+
+import org.springframework.social.connect.UserProfile;
+import org.springframework.util.StringUtils;
+
+/**
+ * Immutable profile data an OP returned along with an assertion, e.g. via
+ * Attribute Exchange or Simple Registration.
+ */
+public final class OpenIdProfile implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String email;
+	private final String fullName;
+	private final String firstName;
+	private final String lastName;
+	private final String nickname;
+	private final String profileUrl;
+	private final String imageUrl;
+
+	public OpenIdProfile(String email, String fullName, String firstName, String lastName, String nickname,
+			String profileUrl, String imageUrl) {
+		this.email = email;
+		this.fullName = fullName;
+		this.firstName = firstName;
+		this.lastName = lastName;
+		this.nickname = nickname;
+		this.profileUrl = profileUrl;
+		this.imageUrl = imageUrl;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public String getFullName() {
+		return fullName;
+	}
+
+	public String getFirstName() {
+		return firstName;
+	}
+
+	public String getLastName() {
+		return lastName;
+	}
+
+	public String getNickname() {
+		return nickname;
+	}
+
+	public String getProfileUrl() {
+		return profileUrl;
+	}
+
+	public String getImageUrl() {
+		return imageUrl;
+	}
+
+	/**
+	 * @return full name, first and last name or nickname, whatever is
+	 *         available first
+	 */
+	public String getDisplayName() {
+		if (StringUtils.hasText(fullName)) {
+			return fullName;
+		}
+		String name = StringUtils.hasText(firstName) ? firstName : "";
+		if (StringUtils.hasText(lastName)) {
+			name = name.length() == 0 ? lastName : name + " " + lastName;
+		}
+		return name.length() > 0 ? name : nickname;
+	}
+
+	public UserProfile toUserProfile(String verifiedOpenId) {
+		return new UserProfile(verifiedOpenId, getDisplayName(), firstName, lastName, email, verifiedOpenId);
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.connect;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+/**
+ * Size and time bounded cache of {@link OpenIdProfile}s keyed by verified
+ * OpenID, evicting the least recently used entry. Filled on login and used by
+ * {@link OpenIdAdapter} to serve profiles without asking the OP again.
+ */
+public class OpenIdProfileCache {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_TIME_TO_LIVE = 60 * 60 * 1000L;
+
+	private final Map<String, Entry> entries;
+	private volatile int maxSize;
+	private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	public OpenIdProfileCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public OpenIdProfileCache(int maxSize) {
+		setMaxSize(maxSize);
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > OpenIdProfileCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the profile or <code>null</code> if unknown or expired
+	 */
+	public OpenIdProfile get(String verifiedOpenId) {
+		if (verifiedOpenId == null) {
+			return null;
+		}
+		synchronized (entries) {
+			Entry entry = entries.get(verifiedOpenId);
+			if (entry == null) {
+				return null;
+			} else if (System.currentTimeMillis() >= entry.expires) {
+				entries.remove(verifiedOpenId);
+				return null;
+			}
+			return entry.profile;
+		}
+	}
+
+	public void put(String verifiedOpenId, OpenIdProfile profile) {
+		Entry entry = new Entry(profile, System.currentTimeMillis() + timeToLive);
+		synchronized (entries) {
+			entries.put(verifiedOpenId, entry);
+		}
+	}
+
+	public void remove(String verifiedOpenId) {
+		synchronized (entries) {
+			entries.remove(verifiedOpenId);
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum number of cached profiles, defaults to
+	 *            {@link #DEFAULT_MAX_SIZE}
+	 */
+	public void setMaxSize(int maxSize) {
+		Assert.isTrue(maxSize > 0, "maxSize must be positive");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            milliseconds to keep profiles, defaults to
+	 *            {@link #DEFAULT_TIME_TO_LIVE}
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	private static final class Entry {
+
+		private final OpenIdProfile profile;
+		private final long expires;
+
+		private Entry(OpenIdProfile profile, long expires) {
+			this.profile = profile;
+			this.expires = expires;
+		}
+	}
+}
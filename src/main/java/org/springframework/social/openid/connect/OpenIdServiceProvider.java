@@ -16,13 +16,34 @@
 
 package org.springframework.social.openid.connect;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.springframework.social.ServiceProvider;
 import org.springframework.social.openid.api.OpenId;
 import org.springframework.social.openid.api.impl.OpenIdTemplate;
 
+/**
+ * Hands out shared {@link OpenIdTemplate}s from a small direct-mapped cache,
+ * so that listing many connections neither allocates nor locks for
+ * recently used OpenIDs.
+ */
 public class OpenIdServiceProvider implements ServiceProvider<OpenId> {
 
+	private static final int CACHE_SIZE = 1024;
+
+	private final AtomicReferenceArray<OpenIdTemplate> templates = new AtomicReferenceArray<OpenIdTemplate>(CACHE_SIZE);
+
 	public OpenId getApi(final String verifiedOpenId) {
-		return new OpenIdTemplate(verifiedOpenId);
+		if (verifiedOpenId == null) {
+			return new OpenIdTemplate(null);
+		}
+
+		int index = (verifiedOpenId.hashCode() & 0x7fffffff) % CACHE_SIZE;
+		OpenIdTemplate template = templates.get(index);
+		if (template == null || !verifiedOpenId.equals(template.getVerifiedOpenId())) {
+			template = new OpenIdTemplate(verifiedOpenId);
+			templates.lazySet(index, template);
+		}
+		return template;
 	}
 }
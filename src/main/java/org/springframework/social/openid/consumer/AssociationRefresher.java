@@ -0,0 +1,207 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.springframework.util.Assert;
+
+/**
+ * Establishes associations with known OPs in the background, in parallel on
+ * {@link #start()} and again {@link #setRenewalMargin(long) renewalMargin}
+ * before each association enters the <tt>preExpiryAssocLockInterval</tt> of
+ * the {@link ConsumerManager}, i.e. before logins would have to renew it.
+ * Renewal requires an {@link OpenIdConsumerManager}, other managers only
+ * associate once the old association isn't reused anymore.
+ */
+public class AssociationRefresher {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AssociationRefresher.class);
+
+	public static final int DEFAULT_THREADS = 2;
+	public static final long DEFAULT_RETRY_INTERVAL = 60 * 1000L;
+	public static final long DEFAULT_RENEWAL_MARGIN = 60 * 1000L;
+
+	private final ConsumerManager consumerManager;
+	private final List<String> identifiers;
+
+	private int threads = DEFAULT_THREADS;
+	private long retryInterval = DEFAULT_RETRY_INTERVAL;
+	private long renewalMargin = DEFAULT_RENEWAL_MARGIN;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param identifiers
+	 *            OP identifiers or claimed identifiers of known providers
+	 */
+	public AssociationRefresher(ConsumerManager consumerManager, List<String> identifiers) {
+		Assert.notNull(consumerManager, "consumerManager must not be null");
+		Assert.notNull(identifiers, "identifiers must not be null");
+		this.consumerManager = consumerManager;
+		this.identifiers = new ArrayList<String>(identifiers);
+	}
+
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "openid-association-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (String identifier : identifiers) {
+			executor.execute(new RefreshTask(identifier));
+		}
+	}
+
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Establishes an association with the OP of the given identifier unless
+	 * the current one is still valid.
+	 *
+	 * @return the association or <code>null</code> if the OP could not be
+	 *         reached or doesn't support associations
+	 */
+	public Association refresh(String identifier) throws Exception {
+		return refresh(identifier, false);
+	}
+
+	/**
+	 * Establishes a new association with the OP of the given identifier, even
+	 * if the current one is still valid.
+	 *
+	 * @return the new association, the current one if renewal failed or
+	 *         <code>null</code> if there is none
+	 */
+	public Association renew(String identifier) throws Exception {
+		return refresh(identifier, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Association refresh(String identifier, boolean renew) throws Exception {
+		List<DiscoveryInformation> discoveries = consumerManager.discover(identifier);
+		DiscoveryInformation discovered;
+		if (consumerManager instanceof OpenIdConsumerManager) {
+			OpenIdConsumerManager manager = (OpenIdConsumerManager) consumerManager;
+			discovered = renew ? manager.renewAssociation(discoveries) : manager.associateNow(discoveries);
+		} else {
+			discovered = consumerManager.associate(discoveries);
+		}
+		if (discovered == null) {
+			return null;
+		}
+		Association association = consumerManager.getAssociations().load(discovered.getOPEndpoint().toString());
+		if (association == null || Association.FAILED_ASSOC_HANDLE.equals(association.getHandle())) {
+			return null;
+		}
+		return association;
+	}
+
+	public void setThreads(int threads) {
+		Assert.isTrue(threads > 0, "threads must be positive");
+		this.threads = threads;
+	}
+
+	/**
+	 * @param retryInterval
+	 *            milliseconds to wait after a failed attempt, defaults to
+	 *            {@link #DEFAULT_RETRY_INTERVAL}
+	 */
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * @param renewalMargin
+	 *            milliseconds to renew associations before logins would start
+	 *            renewing them, defaults to {@link #DEFAULT_RENEWAL_MARGIN}
+	 */
+	public void setRenewalMargin(long renewalMargin) {
+		Assert.isTrue(renewalMargin >= 0, "renewalMargin must not be negative");
+		this.renewalMargin = renewalMargin;
+	}
+
+	/**
+	 * @return milliseconds until the association should be renewed
+	 */
+	long getRenewalDelay(Association association) {
+		long renewal = association.getExpiry().getTime() - consumerManager.getPreExpiryAssocLockInterval() * 1000L
+				- renewalMargin;
+		return Math.max(renewal - System.currentTimeMillis(), retryInterval);
+	}
+
+	private synchronized void schedule(RefreshTask task, long delay) {
+		if (executor != null) {
+			executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private final class RefreshTask implements Runnable {
+
+		private final String identifier;
+		private boolean renew;
+
+		private RefreshTask(String identifier) {
+			this.identifier = identifier;
+		}
+
+		@Override
+		public void run() {
+			long delay = retryInterval;
+			try {
+				// reuse a valid association on start, replace it later on
+				Association association = refresh(identifier, renew);
+				if (association != null) {
+					renew = true;
+					delay = getRenewalDelay(association);
+					if (log.isDebugEnabled()) {
+						log.debug("associated with " + identifier + ", handle " + association.getHandle()
+								+ ", renewal in " + delay + "ms");
+					}
+				} else {
+					log.info("no association with " + identifier + ", retrying in " + delay + "ms");
+				}
+			} catch (Exception e) {
+				log.warn("failed to associate with " + identifier + ", retrying in " + delay + "ms", e);
+			}
+			schedule(this, delay);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * In-memory {@link NonceStore} grouping nonces into buckets by expiry time.
+ * As equal nonces always expire at the same time, duplicates are detected
+ * within a single bucket. Expired nonces are dropped with their bucket rather
+ * than swept one by one.
+ */
+public class BucketedNonceStore implements NonceStore {
+
+	public static final long DEFAULT_BUCKET_MILLIS = 10000;
+
+	private final ConcurrentMap<Long, ConcurrentMap<String, Boolean>> buckets = new ConcurrentHashMap<Long, ConcurrentMap<String, Boolean>>();
+	private final AtomicLong nextSweep = new AtomicLong();
+	private final long bucketMillis;
+
+	public BucketedNonceStore() {
+		this(DEFAULT_BUCKET_MILLIS);
+	}
+
+	public BucketedNonceStore(long bucketMillis) {
+		Assert.isTrue(bucketMillis > 0, "bucketMillis must be positive");
+		this.bucketMillis = bucketMillis;
+	}
+
+	@Override
+	public boolean add(String opUrl, String nonce, long expires) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		if (expires <= now) {
+			// sweeping may already have dropped its bucket
+			return false;
+		}
+
+		Long key = expires / bucketMillis;
+		ConcurrentMap<String, Boolean> bucket = buckets.get(key);
+		if (bucket == null) {
+			ConcurrentMap<String, Boolean> newBucket = new ConcurrentHashMap<String, Boolean>();
+			bucket = buckets.putIfAbsent(key, newBucket);
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+		// nonces are printable ASCII without spaces
+		return bucket.putIfAbsent(opUrl + ' ' + nonce, Boolean.TRUE) == null;
+	}
+
+	/**
+	 * @return number of nonces currently kept
+	 */
+	public int size() {
+		int size = 0;
+		for (ConcurrentMap<String, Boolean> bucket : buckets.values()) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	private void sweep(long now) {
+		long next = nextSweep.get();
+		if (now < next || !nextSweep.compareAndSet(next, now + bucketMillis)) {
+			return;
+		}
+		for (Iterator<Long> iter = buckets.keySet().iterator(); iter.hasNext();) {
+			if ((iter.next() + 1) * bucketMillis <= now) {
+				iter.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+
+/**
+ * {@link HttpFetcher} recording the freshness lifetime of fetched documents
+ * (<tt>Cache-Control: max-age</tt>, <tt>no-cache</tt>, <tt>no-store</tt> and
+ * <tt>Expires</tt>) for the current thread between
+ * {@link #startRecording()} and {@link #stopRecording()}. The shortest lifetime
+ * of all responses wins.
+ */
+public class CacheControlHttpFetcher extends DelegatingHttpFetcher {
+
+	private static final ThreadLocal<long[]> RECORDED_TTL = new ThreadLocal<long[]>();
+
+	public CacheControlHttpFetcher(HttpFetcher delegate) {
+		super(delegate);
+	}
+
+	public static void startRecording() {
+		RECORDED_TTL.set(new long[] { -1 });
+	}
+
+	/**
+	 * @return the shortest freshness lifetime in milliseconds recorded since
+	 *         {@link #startRecording()} or -1 if no response carried cache
+	 *         headers
+	 */
+	public static long stopRecording() {
+		long[] ttl = RECORDED_TTL.get();
+		RECORDED_TTL.remove();
+		return ttl == null ? -1 : ttl[0];
+	}
+
+	@Override
+	public HttpResponse get(String url, HttpRequestOptions requestOptions) throws IOException {
+		return record(super.get(url, requestOptions));
+	}
+
+	@Override
+	public HttpResponse head(String url, HttpRequestOptions requestOptions) throws IOException {
+		return record(super.head(url, requestOptions));
+	}
+
+	private static HttpResponse record(HttpResponse response) {
+		long[] recorded = RECORDED_TTL.get();
+		if (recorded != null && response != null) {
+			long ttl = getTtl(response);
+			if (ttl >= 0 && (recorded[0] < 0 || ttl < recorded[0])) {
+				recorded[0] = ttl;
+			}
+		}
+		return response;
+	}
+
+	static long getTtl(HttpResponse response) {
+		Header[] cacheControl = response.getResponseHeaders("Cache-Control");
+		if (cacheControl != null) {
+			for (Header header : cacheControl) {
+				for (String directive : header.getValue().split(",")) {
+					directive = directive.trim().toLowerCase();
+					if (directive.equals("no-store") || directive.equals("no-cache")) {
+						return 0;
+					} else if (directive.startsWith("max-age=")) {
+						try {
+							return Math.max(0, Long.parseLong(directive.substring(8).trim()) * 1000);
+						} catch (NumberFormatException e) {
+							return 0;
+						}
+					}
+				}
+			}
+		}
+
+		Header expires = response.getResponseHeader("Expires");
+		if (expires != null) {
+			try {
+				Date expiresDate = DateUtils.parseDate(expires.getValue());
+				Header date = response.getResponseHeader("Date");
+				long now = date == null ? System.currentTimeMillis() : DateUtils.parseDate(date.getValue()).getTime();
+				return Math.max(0, expiresDate.getTime() - now);
+			} catch (DateParseException e) {
+				// invalid dates, e.g. "0", mean already expired
+				return 0;
+			}
+		}
+
+		return -1;
+	}
+}
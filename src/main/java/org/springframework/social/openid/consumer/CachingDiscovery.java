@@ -0,0 +1,182 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.util.HttpFetcherFactory;
+import org.springframework.util.Assert;
+
+/**
+ * {@link Discovery} serving results from a {@link DiscoveryCache} keyed by the
+ * normalized identifier. Successful results are cached as long as the
+ * discovered documents are fresh according to their HTTP cache headers (see
+ * {@link CacheControlHttpFetcher}), failures for {@link #setFailureTtl(long)}.
+ * Concurrent lookups of the same uncached identifier share a single
+ * discovery.
+ *
+ * Resolvers must use fetchers created by a factory handing out
+ * {@link CacheControlHttpFetcher}s, otherwise {@link #setDefaultTtl(long)}
+ * applies to all results.
+ */
+public class CachingDiscovery extends Discovery {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CachingDiscovery.class);
+
+	public static final long DEFAULT_TTL = 60 * 60 * 1000L;
+	public static final long DEFAULT_MIN_TTL = 60 * 1000L;
+	public static final long DEFAULT_MAX_TTL = 24 * 60 * 60 * 1000L;
+	public static final long DEFAULT_FAILURE_TTL = 60 * 1000L;
+
+	private final DiscoveryCache cache;
+	private final ConcurrentMap<String, PendingDiscovery> pending = new ConcurrentHashMap<String, PendingDiscovery>();
+
+	private long defaultTtl = DEFAULT_TTL;
+	private long minTtl = DEFAULT_MIN_TTL;
+	private long maxTtl = DEFAULT_MAX_TTL;
+	private long failureTtl = DEFAULT_FAILURE_TTL;
+
+	public CachingDiscovery(HttpFetcherFactory httpFetcherFactory, DiscoveryCache cache) {
+		super(new HtmlResolver(httpFetcherFactory), new PrioritizingYadisResolver(httpFetcherFactory), Discovery
+				.getXriResolver());
+		Assert.notNull(cache, "cache must not be null");
+		this.cache = cache;
+	}
+
+	@Override
+	@SuppressWarnings({ "rawtypes" })
+	public List discover(Identifier identifier) throws DiscoveryException {
+		String key = identifier.getIdentifier();
+
+		DiscoveryCacheEntry entry = cache.get(key);
+		if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+			return entry.getDiscoveries();
+		}
+
+		PendingDiscovery own = new PendingDiscovery();
+		PendingDiscovery existing = pending.putIfAbsent(key, own);
+		if (existing != null) {
+			return existing.await().getDiscoveries();
+		}
+
+		try {
+			entry = doDiscover(identifier);
+			cache.put(key, entry);
+			own.complete(entry);
+		} finally {
+			pending.remove(key, own);
+			own.complete(null);
+		}
+		return entry.getDiscoveries();
+	}
+
+	@SuppressWarnings("unchecked")
+	private DiscoveryCacheEntry doDiscover(Identifier identifier) {
+		List<DiscoveryInformation> discoveries;
+		long ttl;
+
+		CacheControlHttpFetcher.startRecording();
+		try {
+			discoveries = super.discover(identifier);
+		} catch (DiscoveryException e) {
+			log.debug("caching failed discovery of " + identifier.getIdentifier(), e);
+			return DiscoveryCacheEntry.failure(e, System.currentTimeMillis() + failureTtl);
+		} finally {
+			ttl = CacheControlHttpFetcher.stopRecording();
+		}
+
+		if (ttl < 0) {
+			ttl = defaultTtl;
+		}
+		ttl = Math.min(Math.max(ttl, minTtl), maxTtl);
+		return DiscoveryCacheEntry.success(discoveries, System.currentTimeMillis() + ttl);
+	}
+
+	public DiscoveryCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param defaultTtl
+	 *            lifetime in milliseconds of results without cache headers
+	 */
+	public void setDefaultTtl(long defaultTtl) {
+		this.defaultTtl = defaultTtl;
+	}
+
+	/**
+	 * @param minTtl
+	 *            lower bound in milliseconds applied to lifetimes from cache
+	 *            headers
+	 */
+	public void setMinTtl(long minTtl) {
+		this.minTtl = minTtl;
+	}
+
+	/**
+	 * @param maxTtl
+	 *            upper bound in milliseconds applied to lifetimes from cache
+	 *            headers
+	 */
+	public void setMaxTtl(long maxTtl) {
+		this.maxTtl = maxTtl;
+	}
+
+	/**
+	 * @param failureTtl
+	 *            lifetime in milliseconds of failed discoveries
+	 */
+	public void setFailureTtl(long failureTtl) {
+		this.failureTtl = failureTtl;
+	}
+
+	private static final class PendingDiscovery {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile DiscoveryCacheEntry entry;
+
+		void complete(DiscoveryCacheEntry entry) {
+			if (latch.getCount() > 0) {
+				if (entry != null) {
+					this.entry = entry;
+				}
+				latch.countDown();
+			}
+		}
+
+		DiscoveryCacheEntry await() throws DiscoveryException {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DiscoveryException("interrupted while waiting for discovery");
+			}
+			if (entry == null) {
+				throw new DiscoveryException("concurrent discovery failed");
+			}
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+import org.springframework.util.Assert;
+
+/**
+ * {@link HttpFetcher} reporting direct requests to OPs (association and
+ * <tt>check_authentication</tt>, the only POST requests of openid4java) to a
+ * {@link ProviderCircuitBreaker}. Only transport failures and timeouts count
+ * as failures, any HTTP response as success. Discovery requests to hosts of
+ * claimed identifiers aren't reported.
+ */
+public class CircuitBreakingHttpFetcher extends DelegatingHttpFetcher {
+
+	private final ProviderCircuitBreaker circuitBreaker;
+
+	public CircuitBreakingHttpFetcher(HttpFetcher delegate, ProviderCircuitBreaker circuitBreaker) {
+		super(delegate);
+		Assert.notNull(circuitBreaker, "circuitBreaker must not be null");
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	@Override
+	public HttpResponse post(String url, Map<String, String> parameters, HttpRequestOptions requestOptions)
+			throws IOException {
+		String host = Urls.getHost(url);
+		if (!circuitBreaker.tryAcquire(host)) {
+			// e.g. another request is probing the OP
+			throw new IOException("circuit open for " + host);
+		}
+		boolean failed = false;
+		try {
+			return super.post(url, parameters, requestOptions);
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		} finally {
+			circuitBreaker.record(host, !failed);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+/**
+ * Thrown by {@link OpenIdConsumerManager} without contacting an OP while its
+ * circuit is open.
+ */
+public class CircuitOpenException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String host;
+
+	public CircuitOpenException(String host) {
+		super("circuit open for OpenID provider " + host);
+		this.host = host;
+	}
+
+	/**
+	 * @return the host of the OP endpoint
+	 */
+	public String getHost() {
+		return host;
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.springframework.util.Assert;
+
+/**
+ * Resolves large numbers of claimed identifiers to their OP endpoints, e.g.
+ * when importing users. Identifiers are normalized and discovered in parallel
+ * with bounded concurrency overall and per domain (see
+ * {@link Urls#getDomain(String)}). Identifiers of busy domains are queued
+ * rather than blocking resolver threads. Domains failing repeatedly are
+ * skipped for the rest of the batch. Results are passed to a {@link Callback}
+ * as they arrive.
+ * 
+ * Use a {@link CachingDiscovery} with its own cache to collapse duplicate
+ * identifiers without evicting entries used by interactive logins.
+ */
+public class ClaimedIdentifierResolver {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ClaimedIdentifierResolver.class);
+
+	public static final int DEFAULT_CONCURRENCY = 16;
+	public static final int DEFAULT_CONCURRENCY_PER_DOMAIN = 2;
+	public static final int DEFAULT_MAX_DOMAIN_FAILURES = 5;
+	public static final int DEFAULT_MAX_PENDING = 10000;
+
+	/**
+	 * Receives results from resolver threads and the calling thread, hence
+	 * must be thread-safe.
+	 */
+	public interface Callback {
+
+		void resolved(String identifier, Identifier claimedIdentifier, List<DiscoveryInformation> discoveries);
+
+		void failed(String identifier, DiscoveryException e);
+	}
+
+	private final Discovery discovery;
+
+	private int concurrency = DEFAULT_CONCURRENCY;
+	private int concurrencyPerDomain = DEFAULT_CONCURRENCY_PER_DOMAIN;
+	private int maxDomainFailures = DEFAULT_MAX_DOMAIN_FAILURES;
+	private int maxPending = DEFAULT_MAX_PENDING;
+
+	public ClaimedIdentifierResolver(Discovery discovery) {
+		Assert.notNull(discovery, "discovery must not be null");
+		this.discovery = discovery;
+		if (!(discovery instanceof CachingDiscovery)) {
+			log.warn("discovery isn't cached, duplicate identifiers will be discovered repeatedly");
+		}
+	}
+
+	/**
+	 * Resolves all identifiers, reading ahead no more than
+	 * {@link #setMaxPending(int) maxPending} identifiers. Blocks until all
+	 * results have been passed to the callback.
+	 */
+	public void resolve(Iterator<String> identifiers, Callback callback) throws InterruptedException {
+		Assert.notNull(identifiers, "identifiers must not be null");
+		Assert.notNull(callback, "callback must not be null");
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "openid-resolver-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		Batch batch = new Batch(callback, executor);
+		try {
+			while (identifiers.hasNext()) {
+				batch.submit(identifiers.next());
+			}
+			// all permits are back once the last identifier is done
+			batch.pending.acquire(maxPending);
+		} finally {
+			executor.shutdownNow();
+		}
+		log.debug("resolved {} identifiers, {} failed", batch.resolved.get(), batch.failed.get());
+	}
+
+	/**
+	 * @param concurrency
+	 *            identifiers to discover in parallel, defaults to
+	 *            {@link #DEFAULT_CONCURRENCY}
+	 */
+	public void setConcurrency(int concurrency) {
+		Assert.isTrue(concurrency > 0, "concurrency must be positive");
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @param concurrencyPerDomain
+	 *            identifiers of the same domain to discover in parallel,
+	 *            defaults to {@link #DEFAULT_CONCURRENCY_PER_DOMAIN}
+	 */
+	public void setConcurrencyPerDomain(int concurrencyPerDomain) {
+		Assert.isTrue(concurrencyPerDomain > 0, "concurrencyPerDomain must be positive");
+		this.concurrencyPerDomain = concurrencyPerDomain;
+	}
+
+	/**
+	 * @param maxDomainFailures
+	 *            consecutive failures before remaining identifiers of a domain
+	 *            fail without discovery, defaults to
+	 *            {@link #DEFAULT_MAX_DOMAIN_FAILURES}
+	 */
+	public void setMaxDomainFailures(int maxDomainFailures) {
+		this.maxDomainFailures = maxDomainFailures;
+	}
+
+	/**
+	 * @param maxPending
+	 *            identifiers read ahead and queued per domain, defaults to
+	 *            {@link #DEFAULT_MAX_PENDING}
+	 */
+	public void setMaxPending(int maxPending) {
+		Assert.isTrue(maxPending > 0, "maxPending must be positive");
+		this.maxPending = maxPending;
+	}
+
+	private final class Batch {
+
+		private final Callback callback;
+		private final ExecutorService executor;
+		private final Semaphore pending = new Semaphore(maxPending);
+		private final ConcurrentMap<String, Domain> domains = new ConcurrentHashMap<String, Domain>();
+		private final AtomicInteger resolved = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+
+		private Batch(Callback callback, ExecutorService executor) {
+			this.callback = callback;
+			this.executor = executor;
+		}
+
+		private void submit(String identifier) throws InterruptedException {
+			pending.acquire();
+
+			Identifier claimedIdentifier;
+			try {
+				claimedIdentifier = discovery.parseIdentifier(identifier);
+			} catch (DiscoveryException e) {
+				failed(identifier, e);
+				pending.release();
+				return;
+			}
+
+			// XRIs are resolved through a proxy, limited like a domain
+			String domain = Urls.getDomain(Urls.getHost(claimedIdentifier.getIdentifier()));
+			getDomain(domain == null ? "" : domain).submit(new ResolveTask(identifier, claimedIdentifier));
+		}
+
+		private Domain getDomain(String name) {
+			Domain domain = domains.get(name);
+			if (domain == null) {
+				Domain newDomain = new Domain(name);
+				domain = domains.putIfAbsent(name, newDomain);
+				if (domain == null) {
+					domain = newDomain;
+				}
+			}
+			return domain;
+		}
+
+		private void failed(String identifier, DiscoveryException e) {
+			failed.incrementAndGet();
+			callback.failed(identifier, e);
+		}
+
+		/**
+		 * Runs up to <tt>concurrencyPerDomain</tt> tasks, queues the others.
+		 */
+		private final class Domain {
+
+			private final String name;
+			private final Queue<ResolveTask> queue = new LinkedList<ResolveTask>();
+			private int running;
+			private int failures;
+
+			private Domain(String name) {
+				this.name = name;
+			}
+
+			private void submit(ResolveTask task) {
+				task.domain = this;
+				synchronized (this) {
+					if (running >= concurrencyPerDomain) {
+						queue.add(task);
+						return;
+					}
+					running++;
+				}
+				executor.execute(task);
+			}
+
+			private synchronized boolean isFailing() {
+				return maxDomainFailures > 0 && failures >= maxDomainFailures;
+			}
+
+			/**
+			 * @return the next queued task to run on the calling thread
+			 */
+			private synchronized ResolveTask completed(Boolean success) {
+				if (success != null) {
+					failures = success ? 0 : failures + 1;
+				}
+				ResolveTask next = queue.poll();
+				if (next == null) {
+					running--;
+				}
+				return next;
+			}
+		}
+
+		private final class ResolveTask implements Runnable {
+
+			private final String identifier;
+			private final Identifier claimedIdentifier;
+			private Domain domain;
+
+			private ResolveTask(String identifier, Identifier claimedIdentifier) {
+				this.identifier = identifier;
+				this.claimedIdentifier = claimedIdentifier;
+			}
+
+			@Override
+			public void run() {
+				ResolveTask task = this;
+				while (task != null) {
+					Boolean success = null;
+					try {
+						success = task.resolve();
+					} catch (RuntimeException e) {
+						log.warn("callback failed for " + task.identifier, e);
+					} finally {
+						pending.release();
+					}
+					task = Thread.currentThread().isInterrupted() ? null : domain.completed(success);
+				}
+			}
+
+			/**
+			 * @return <code>null</code> if skipped
+			 */
+			private Boolean resolve() {
+				if (domain.isFailing()) {
+					failed(identifier, new DiscoveryException("skipped, discovery at " + domain.name
+							+ " failed repeatedly"));
+					return null;
+				}
+
+				List<DiscoveryInformation> discoveries;
+				try {
+					discoveries = discover();
+				} catch (DiscoveryException e) {
+					failed(identifier, e);
+					return Boolean.FALSE;
+				} catch (RuntimeException e) {
+					log.warn("resolving " + identifier + " failed", e);
+					failed(identifier, new DiscoveryException("resolving failed", e));
+					return Boolean.FALSE;
+				}
+				resolved.incrementAndGet();
+				callback.resolved(identifier, claimedIdentifier, discoveries);
+				return Boolean.TRUE;
+			}
+
+			@SuppressWarnings("unchecked")
+			private List<DiscoveryInformation> discover() throws DiscoveryException {
+				return discovery.discover(claimedIdentifier);
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.openid4java.consumer.InMemoryConsumerAssociationStore;
+
+/**
+ * In-memory {@link ConsumerAssociationStore} without global locking (unlike
+ * {@link InMemoryConsumerAssociationStore}). Lookups of the current
+ * association of an OP are served from a per-OP pointer to the association
+ * with the latest expiry. Expired associations are dropped lazily.
+ */
+public class ConcurrentConsumerAssociationStore implements ConsumerAssociationStore {
+
+	private final ConcurrentMap<String, ConcurrentMap<String, Association>> associations = new ConcurrentHashMap<String, ConcurrentMap<String, Association>>();
+	private final ConcurrentMap<String, Association> latest = new ConcurrentHashMap<String, Association>();
+
+	@Override
+	public void save(String opUrl, Association association) {
+		ConcurrentMap<String, Association> handles = associations.get(opUrl);
+		if (handles == null) {
+			ConcurrentMap<String, Association> newHandles = new ConcurrentHashMap<String, Association>(4);
+			handles = associations.putIfAbsent(opUrl, newHandles);
+			if (handles == null) {
+				handles = newHandles;
+			}
+		}
+
+		removeExpired(handles);
+		handles.put(association.getHandle(), association);
+		updateLatest(opUrl, association);
+	}
+
+	@Override
+	public Association load(String opUrl, String handle) {
+		ConcurrentMap<String, Association> handles = associations.get(opUrl);
+		if (handles == null) {
+			return null;
+		}
+
+		Association association = handles.get(handle);
+		if (association != null && association.hasExpired()) {
+			remove(opUrl, handle);
+			return null;
+		}
+		return association;
+	}
+
+	@Override
+	public Association load(String opUrl) {
+		Association association = latest.get(opUrl);
+		if (association != null && association.hasExpired()) {
+			remove(opUrl, association.getHandle());
+			return null;
+		}
+		return association;
+	}
+
+	@Override
+	public void remove(String opUrl, String handle) {
+		ConcurrentMap<String, Association> handles = associations.get(opUrl);
+		if (handles == null) {
+			return;
+		}
+
+		Association removed = handles.remove(handle);
+		if (removed != null && latest.remove(opUrl, removed)) {
+			removeExpired(handles);
+			for (Association association : handles.values()) {
+				updateLatest(opUrl, association);
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (ConcurrentMap<String, Association> handles : associations.values()) {
+			size += handles.size();
+		}
+		return size;
+	}
+
+	private void updateLatest(String opUrl, Association association) {
+		while (true) {
+			Association current = latest.get(opUrl);
+			if (current == null) {
+				if (latest.putIfAbsent(opUrl, association) == null) {
+					return;
+				}
+			} else if (!current.getExpiry().before(association.getExpiry()) && !current.hasExpired()) {
+				return;
+			} else if (latest.replace(opUrl, current, association)) {
+				return;
+			}
+		}
+	}
+
+	private static void removeExpired(ConcurrentMap<String, Association> handles) {
+		Iterator<Association> iter = handles.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().hasExpired()) {
+				iter.remove();
+			}
+		}
+	}
+}
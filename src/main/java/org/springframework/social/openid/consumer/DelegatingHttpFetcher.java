@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.openid4java.util.AbstractHttpFetcher;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+import org.springframework.util.Assert;
+
+/**
+ * {@link HttpFetcher} forwarding all requests to a shared delegate. Default
+ * request options are kept per instance and passed explicitly, hence a single
+ * delegate may serve fetchers with different defaults (e.g. discovery and OP
+ * calls).
+ */
+public class DelegatingHttpFetcher extends AbstractHttpFetcher {
+
+	private final HttpFetcher delegate;
+
+	public DelegatingHttpFetcher(HttpFetcher delegate) {
+		Assert.notNull(delegate, "delegate must not be null");
+		this.delegate = delegate;
+	}
+
+	@Override
+	public HttpResponse get(String url, HttpRequestOptions requestOptions) throws IOException {
+		return delegate.get(url, requestOptions);
+	}
+
+	@Override
+	public HttpResponse head(String url, HttpRequestOptions requestOptions) throws IOException {
+		return delegate.head(url, requestOptions);
+	}
+
+	@Override
+	public HttpResponse post(String url, Map<String, String> parameters, HttpRequestOptions requestOptions)
+			throws IOException {
+		return delegate.post(url, parameters, requestOptions);
+	}
+
+	public HttpFetcher getDelegate() {
+		return delegate;
+	}
+}
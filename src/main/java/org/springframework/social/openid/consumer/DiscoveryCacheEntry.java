@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+
+/**
+ * Immutable result of a discovery, either a list of
+ * {@link DiscoveryInformation} or the {@link DiscoveryException} discovery
+ * failed with.
+ */
+public final class DiscoveryCacheEntry {
+
+	private final List<DiscoveryInformation> discoveries;
+	private final DiscoveryException failure;
+	private final long expires;
+
+	public static DiscoveryCacheEntry success(List<DiscoveryInformation> discoveries, long expires) {
+		return new DiscoveryCacheEntry(Collections.unmodifiableList(new ArrayList<DiscoveryInformation>(discoveries)),
+				null, expires);
+	}
+
+	public static DiscoveryCacheEntry failure(DiscoveryException failure, long expires) {
+		return new DiscoveryCacheEntry(null, failure, expires);
+	}
+
+	private DiscoveryCacheEntry(List<DiscoveryInformation> discoveries, DiscoveryException failure, long expires) {
+		this.discoveries = discoveries;
+		this.failure = failure;
+		this.expires = expires;
+	}
+
+	/**
+	 * @return a modifiable copy of the discovered endpoints
+	 * @throws DiscoveryException
+	 *             if this is a negative entry
+	 */
+	public List<DiscoveryInformation> getDiscoveries() throws DiscoveryException {
+		if (failure != null) {
+			throw failure;
+		}
+		return new ArrayList<DiscoveryInformation>(discoveries);
+	}
+
+	public boolean isFailure() {
+		return failure != null;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	public boolean isExpired(long now) {
+		return now >= expires;
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openid4java.discovery.DiscoveryInformation;
+
+/**
+ * Orders discovered OP endpoints by observed health and latency. Keeps an
+ * exponentially weighted moving average (EWMA) of latency and error rate per
+ * endpoint, updated by CAS without locks.
+ * 
+ * Discovery results are ordered by service type and XRDS priority. Endpoints
+ * are only reordered within a priority class (consecutive endpoints of the
+ * same OpenID version, kind, i.e. OP or claimed identifier, and XRDS priority,
+ * see {@link PrioritizingYadisResolver}): healthy endpoints first, fastest
+ * first. Endpoints without samples are assumed to be as fast as the average of
+ * their class and preferred on ties, so they are tried eventually. A class is
+ * skipped only if none of its endpoints is healthy. Unhealthy endpoints are
+ * retried after {@link #setRecoveryTime(long)}.
+ * 
+ * Only endpoints selected among others are scored, as there is no choice for
+ * single endpoints. If {@link #setMaxEndpoints(int)} is reached, endpoints not
+ * selected for {@link #setMaxIdleTime(long)} are evicted, the least recently
+ * selected one otherwise.
+ */
+public class EndpointSelector {
+
+	public static final double DEFAULT_ALPHA = 0.2;
+	public static final double DEFAULT_MAX_ERROR_RATE = 0.5;
+	public static final long DEFAULT_RECOVERY_TIME = 30000;
+	public static final int DEFAULT_MAX_ENDPOINTS = 1000;
+	public static final long DEFAULT_MAX_IDLE_TIME = 60 * 60 * 1000L;
+
+	private final ConcurrentMap<String, Score> scores = new ConcurrentHashMap<String, Score>();
+
+	private volatile double alpha = DEFAULT_ALPHA;
+	private volatile double maxErrorRate = DEFAULT_MAX_ERROR_RATE;
+	private volatile long recoveryTime = DEFAULT_RECOVERY_TIME;
+	private volatile int maxEndpoints = DEFAULT_MAX_ENDPOINTS;
+	private volatile long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+
+	/**
+	 * @return discoveries in order of preference, a copy if reordered
+	 */
+	public List<DiscoveryInformation> select(List<DiscoveryInformation> discoveries) {
+		if (discoveries.size() < 2) {
+			return discoveries;
+		}
+
+		long now = System.currentTimeMillis();
+		Candidate[] candidates = new Candidate[discoveries.size()];
+		int priorityClass = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			DiscoveryInformation discovered = discoveries.get(i);
+			if (i > 0 && !isSameClass(discoveries.get(i - 1), discovered)) {
+				priorityClass++;
+			}
+			candidates[i] = new Candidate(discovered, priorityClass, learn(discovered.getOPEndpoint().toString(),
+					now), now);
+		}
+
+		// unknown endpoints are assumed average, skip classes without healthy
+		// endpoint unless none is healthy
+		double[] latencySum = new double[priorityClass + 1];
+		int[] latencyCount = new int[priorityClass + 1];
+		boolean[] healthyClass = new boolean[priorityClass + 1];
+		boolean anyHealthy = false;
+		for (Candidate candidate : candidates) {
+			if (!candidate.unknown) {
+				latencySum[candidate.priorityClass] += candidate.latency;
+				latencyCount[candidate.priorityClass]++;
+			}
+			if (candidate.healthy) {
+				healthyClass[candidate.priorityClass] = anyHealthy = true;
+			}
+		}
+		boolean sorted = true;
+		for (int i = 0; i < candidates.length; i++) {
+			Candidate candidate = candidates[i];
+			if (candidate.unknown && latencyCount[candidate.priorityClass] > 0) {
+				candidate.latency = latencySum[candidate.priorityClass] / latencyCount[candidate.priorityClass];
+			}
+			if (anyHealthy && !healthyClass[candidate.priorityClass]) {
+				candidate.skipped = true;
+			}
+			sorted &= i == 0 || candidates[i - 1].compareTo(candidate) <= 0;
+		}
+		if (sorted) {
+			return discoveries;
+		}
+
+		// stable merge sort
+		Arrays.sort(candidates);
+		List<DiscoveryInformation> selected = new ArrayList<DiscoveryInformation>(candidates.length);
+		for (Candidate candidate : candidates) {
+			selected.add(candidate.discovered);
+		}
+		return selected;
+	}
+
+	/**
+	 * Records the outcome of a request to an OP endpoint. Ignored for
+	 * endpoints not (or no longer) scored, see {@link #select(List)}.
+	 */
+	public void record(String opEndpoint, long nanos, boolean success) {
+		Score score = scores.get(opEndpoint);
+		if (score != null) {
+			score.record(nanos, success, alpha);
+		}
+	}
+
+	/**
+	 * @return average latency in nanoseconds, 0 if unknown
+	 */
+	public long getLatency(String opEndpoint) {
+		Score score = scores.get(opEndpoint);
+		return score == null ? 0 : (long) Math.max(score.getLatency(), 0);
+	}
+
+	/**
+	 * @return average error rate (0-1), 0 if unknown
+	 */
+	public double getErrorRate(String opEndpoint) {
+		Score score = scores.get(opEndpoint);
+		return score == null ? 0 : score.getErrorRate();
+	}
+
+	/**
+	 * @param alpha
+	 *            weight of new samples (0-1), defaults to
+	 *            {@link #DEFAULT_ALPHA}
+	 */
+	public void setAlpha(double alpha) {
+		if (alpha <= 0 || alpha > 1) {
+			throw new IllegalArgumentException("alpha must be within (0, 1]");
+		}
+		this.alpha = alpha;
+	}
+
+	/**
+	 * @param maxErrorRate
+	 *            error rate (0-1) above which endpoints are unhealthy,
+	 *            defaults to {@link #DEFAULT_MAX_ERROR_RATE}
+	 */
+	public void setMaxErrorRate(double maxErrorRate) {
+		this.maxErrorRate = maxErrorRate;
+	}
+
+	/**
+	 * @param recoveryTime
+	 *            milliseconds after the last failure to consider an endpoint
+	 *            healthy again, defaults to {@link #DEFAULT_RECOVERY_TIME}
+	 */
+	public void setRecoveryTime(long recoveryTime) {
+		this.recoveryTime = recoveryTime;
+	}
+
+	/**
+	 * @param maxEndpoints
+	 *            endpoints to keep scores for, defaults to
+	 *            {@link #DEFAULT_MAX_ENDPOINTS}
+	 */
+	public void setMaxEndpoints(int maxEndpoints) {
+		this.maxEndpoints = maxEndpoints;
+	}
+
+	/**
+	 * @param maxIdleTime
+	 *            milliseconds after the last selection to evict an endpoint
+	 *            first if {@link #setMaxEndpoints(int)} is reached, defaults
+	 *            to {@link #DEFAULT_MAX_IDLE_TIME}
+	 */
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * @return the score of an endpoint, created if necessary
+	 */
+	private Score learn(String opEndpoint, long now) {
+		Score score = scores.get(opEndpoint);
+		if (score == null) {
+			if (scores.size() >= maxEndpoints) {
+				evict(now);
+			}
+			Score newScore = new Score();
+			score = scores.putIfAbsent(opEndpoint, newScore);
+			if (score == null) {
+				score = newScore;
+			}
+		}
+		score.lastSelected = now;
+		return score;
+	}
+
+	/**
+	 * Removes idle endpoints, the least recently selected one if none is idle.
+	 */
+	private void evict(long now) {
+		long maxIdleTime = this.maxIdleTime;
+		Map.Entry<String, Score> leastRecent = null;
+		boolean evicted = false;
+		for (Map.Entry<String, Score> e : scores.entrySet()) {
+			Score score = e.getValue();
+			if (now - score.lastSelected >= maxIdleTime) {
+				evicted |= scores.remove(e.getKey(), score);
+			} else if (leastRecent == null || score.lastSelected < leastRecent.getValue().lastSelected) {
+				leastRecent = e;
+			}
+		}
+		if (!evicted && leastRecent != null) {
+			scores.remove(leastRecent.getKey(), leastRecent.getValue());
+		}
+	}
+
+	private static boolean isSameClass(DiscoveryInformation a, DiscoveryInformation b) {
+		return a.getVersion().equals(b.getVersion()) && a.hasClaimedIdentifier() == b.hasClaimedIdentifier()
+				&& XrdsDiscoveryInformation.isSamePriority(a, b);
+	}
+
+	private final class Candidate implements Comparable<Candidate> {
+
+		private final DiscoveryInformation discovered;
+		private final int priorityClass;
+		private final boolean healthy;
+		private final boolean unknown;
+		private double latency;
+		private boolean skipped;
+
+		private Candidate(DiscoveryInformation discovered, int priorityClass, Score score, long now) {
+			this.discovered = discovered;
+			this.priorityClass = priorityClass;
+			healthy = score.getErrorRate() <= maxErrorRate || now - score.lastFailure.get() >= recoveryTime;
+			latency = score.getLatency();
+			unknown = latency < 0;
+			if (unknown) {
+				latency = 0;
+			}
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			if (skipped != o.skipped) {
+				return skipped ? 1 : -1;
+			} else if (priorityClass != o.priorityClass) {
+				return priorityClass < o.priorityClass ? -1 : 1;
+			} else if (healthy != o.healthy) {
+				return healthy ? -1 : 1;
+			}
+			int cmp = Double.compare(latency, o.latency);
+			if (cmp == 0 && unknown != o.unknown) {
+				// try unknown endpoints eventually
+				return unknown ? -1 : 1;
+			}
+			return cmp;
+		}
+	}
+
+	private static final class Score {
+
+		private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(-1));
+		private final AtomicLong errorRate = new AtomicLong(Double.doubleToLongBits(0));
+		private final AtomicLong lastFailure = new AtomicLong();
+		private volatile long lastSelected;
+
+		private void record(long nanos, boolean success, double alpha) {
+			if (success) {
+				update(latency, nanos, alpha);
+			} else {
+				lastFailure.set(System.currentTimeMillis());
+			}
+			update(errorRate, success ? 0 : 1, alpha);
+		}
+
+		private static void update(AtomicLong average, double sample, double alpha) {
+			while (true) {
+				long bits = average.get();
+				double current = Double.longBitsToDouble(bits);
+				double next = current < 0 ? sample : current + alpha * (sample - current);
+				if (average.compareAndSet(bits, Double.doubleToLongBits(next))) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return average latency in nanoseconds, negative if unknown
+		 */
+		private double getLatency() {
+			return Double.longBitsToDouble(latency.get());
+		}
+
+		private double getErrorRate() {
+			return Double.longBitsToDouble(errorRate.get());
+		}
+	}
+}
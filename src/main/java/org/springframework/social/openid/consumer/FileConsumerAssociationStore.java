@@ -0,0 +1,237 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.springframework.util.Assert;
+import org.springframework.util.Base64Utils;
+import org.springframework.util.DigestUtils;
+
+/**
+ * {@link ConsumerAssociationStore} keeping associations in a directory, one
+ * subdirectory per OP. Placed on a shared filesystem it allows all nodes of a
+ * cluster to reuse associations. Files are replaced atomically, expired files
+ * are deleted on access.
+ *
+ * Associations are written in a plain line based format (no Java
+ * serialization, so files can't inject objects) and contain MAC keys, hence
+ * files and directories are only accessible by their owner. All nodes must run
+ * as the same user.
+ *
+ * Usually used as shared backend of a {@link TieredConsumerAssociationStore}.
+ */
+public class FileConsumerAssociationStore implements ConsumerAssociationStore {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileConsumerAssociationStore.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".assoc";
+	private static final String VERSION = "1";
+
+	private final File directory;
+
+	public FileConsumerAssociationStore(File directory) {
+		Assert.notNull(directory, "directory must not be null");
+		if (!directory.isDirectory()) {
+			if (!directory.mkdirs()) {
+				throw new IllegalArgumentException("failed to create directory " + directory);
+			}
+			restrictToOwner(directory);
+		}
+		this.directory = directory;
+	}
+
+	@Override
+	public void save(String opUrl, Association association) {
+		File opDirectory = getOpDirectory(opUrl);
+		if (!opDirectory.isDirectory()) {
+			if (!opDirectory.mkdirs() && !opDirectory.isDirectory()) {
+				log.warn("failed to create directory " + opDirectory);
+				return;
+			}
+			restrictToOwner(opDirectory);
+		}
+
+		File file = getFile(opDirectory, association.getHandle());
+		try {
+			File tmp = File.createTempFile("assoc", ".tmp", opDirectory);
+			// restrict before writing the key
+			restrictToOwner(tmp);
+			Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+			try {
+				write(out, association);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// not atomic, but renameTo won't replace files on all platforms
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+					log.warn("failed to store association in " + file);
+				}
+			}
+		} catch (IOException e) {
+			log.warn("failed to store association in " + file, e);
+		}
+	}
+
+	@Override
+	public Association load(String opUrl, String handle) {
+		return read(getFile(getOpDirectory(opUrl), handle));
+	}
+
+	@Override
+	public Association load(String opUrl) {
+		File[] files = getOpDirectory(opUrl).listFiles();
+		if (files == null) {
+			return null;
+		}
+
+		Association latest = null;
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				Association association = read(file);
+				if (association != null && (latest == null || latest.getExpiry().before(association.getExpiry()))) {
+					latest = association;
+				}
+			}
+		}
+		return latest;
+	}
+
+	@Override
+	public void remove(String opUrl, String handle) {
+		getFile(getOpDirectory(opUrl), handle).delete();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private Association read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		Association association;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+			try {
+				association = read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// concurrently removed or replaced
+			log.debug("failed to read association from " + file, e);
+			return null;
+		}
+		if (association == null) {
+			log.warn("invalid association file " + file);
+			return null;
+		}
+
+		if (association.hasExpired()) {
+			file.delete();
+			return null;
+		}
+		return association;
+	}
+
+	private static void write(Writer out, Association association) throws IOException {
+		boolean failed = Association.FAILED_ASSOC_HANDLE.equals(association.getHandle());
+		out.write(VERSION);
+		out.write('\n');
+		out.write(association.getHandle());
+		out.write('\n');
+		out.write(failed ? "" : association.getType());
+		out.write('\n');
+		out.write(failed ? "" : Base64Utils.encodeToString(association.getMacKey().getEncoded()));
+		out.write('\n');
+		out.write(Long.toString(association.getExpiry().getTime()));
+		out.write('\n');
+	}
+
+	/**
+	 * @return <code>null</code> if invalid
+	 */
+	private static Association read(BufferedReader in) throws IOException {
+		String version = in.readLine();
+		String handle = in.readLine();
+		String type = in.readLine();
+		String key = in.readLine();
+		String expiry = in.readLine();
+		if (!VERSION.equals(version) || handle == null || type == null || key == null || expiry == null) {
+			return null;
+		}
+
+		Date expiryDate;
+		try {
+			expiryDate = new Date(Long.parseLong(expiry));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (Association.FAILED_ASSOC_HANDLE.equals(handle)) {
+			return Association.getFailedAssociation(expiryDate);
+		}
+
+		byte[] macKey;
+		try {
+			macKey = Base64Utils.decodeFromString(key);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (Association.TYPE_HMAC_SHA1.equals(type)) {
+			return Association.createHmacSha1(handle, macKey, expiryDate);
+		} else if (Association.TYPE_HMAC_SHA256.equals(type)) {
+			return Association.createHmacSha256(handle, macKey, expiryDate);
+		}
+		return null;
+	}
+
+	private static void restrictToOwner(File file) {
+		boolean restricted = file.setReadable(false, false) & file.setReadable(true, true);
+		restricted &= file.setWritable(false, false) & file.setWritable(true, true);
+		if (file.isDirectory()) {
+			restricted &= file.setExecutable(false, false) & file.setExecutable(true, true);
+		}
+		if (!restricted) {
+			log.warn("failed to restrict permissions of " + file);
+		}
+	}
+
+	private File getOpDirectory(String opUrl) {
+		return new File(directory, DigestUtils.md5DigestAsHex(opUrl.getBytes(UTF_8)));
+	}
+
+	private static File getFile(File opDirectory, String handle) {
+		return new File(opDirectory, DigestUtils.md5DigestAsHex(handle.getBytes(UTF_8)) + SUFFIX);
+	}
+}
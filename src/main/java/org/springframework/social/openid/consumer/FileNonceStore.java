@@ -0,0 +1,115 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+
+/**
+ * {@link NonceStore} creating one file per nonce in a directory, grouped into
+ * subdirectories by expiry time like {@link BucketedNonceStore}. Placed on a
+ * shared filesystem it provides replay protection across all nodes of a
+ * cluster, as file creation is atomic. Expired subdirectories are deleted
+ * periodically.
+ */
+public class FileNonceStore implements NonceStore {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileNonceStore.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final long bucketMillis;
+	private final AtomicLong nextSweep = new AtomicLong();
+
+	public FileNonceStore(File directory) {
+		this(directory, BucketedNonceStore.DEFAULT_BUCKET_MILLIS);
+	}
+
+	public FileNonceStore(File directory, long bucketMillis) {
+		Assert.notNull(directory, "directory must not be null");
+		Assert.isTrue(bucketMillis > 0, "bucketMillis must be positive");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("failed to create directory " + directory);
+		}
+		this.directory = directory;
+		this.bucketMillis = bucketMillis;
+	}
+
+	@Override
+	public boolean add(String opUrl, String nonce, long expires) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		if (expires <= now) {
+			return false;
+		}
+
+		File bucket = new File(directory, Long.toString(expires / bucketMillis));
+		if (!bucket.isDirectory() && !bucket.mkdir() && !bucket.isDirectory()) {
+			log.warn("failed to create directory " + bucket);
+			return false;
+		}
+
+		File file = new File(bucket, DigestUtils.md5DigestAsHex((opUrl + ' ' + nonce).getBytes(UTF_8)));
+		try {
+			return file.createNewFile();
+		} catch (IOException e) {
+			// fail closed, a replayed assertion must never pass
+			log.warn("failed to store nonce in " + file, e);
+			return false;
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private void sweep(long now) {
+		long next = nextSweep.get();
+		if (now < next || !nextSweep.compareAndSet(next, now + bucketMillis)) {
+			return;
+		}
+
+		File[] buckets = directory.listFiles();
+		if (buckets == null) {
+			return;
+		}
+		for (File bucket : buckets) {
+			long key;
+			try {
+				key = Long.parseLong(bucket.getName());
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if ((key + 1) * bucketMillis <= now) {
+				File[] files = bucket.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+				// may fail if another node is still sweeping
+				bucket.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+/**
+ * Size bounded {@link DiscoveryCache} evicting the least recently used entry.
+ * Entries are split into stripes by identifier hash, each with its own lock
+ * and LRU order, so concurrent logins rarely contend. Eviction is per stripe,
+ * i.e. approximates LRU across the whole cache.
+ */
+public class LruDiscoveryCache implements DiscoveryCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private static final int STRIPES = 16;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private volatile int maxSize;
+	private volatile int maxStripeSize;
+
+	public LruDiscoveryCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public LruDiscoveryCache(int maxSize) {
+		setMaxSize(maxSize);
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	@Override
+	public DiscoveryCacheEntry get(String identifier) {
+		Stripe stripe = stripe(identifier);
+		synchronized (stripe) {
+			return stripe.get(identifier);
+		}
+	}
+
+	@Override
+	public void put(String identifier, DiscoveryCacheEntry entry) {
+		Stripe stripe = stripe(identifier);
+		synchronized (stripe) {
+			stripe.put(identifier, entry);
+		}
+	}
+
+	@Override
+	public void remove(String identifier) {
+		Stripe stripe = stripe(identifier);
+		synchronized (stripe) {
+			stripe.remove(identifier);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum number of cached identifiers (but at least one per
+	 *            stripe), defaults to {@link #DEFAULT_MAX_SIZE}
+	 */
+	public void setMaxSize(int maxSize) {
+		Assert.isTrue(maxSize > 0, "maxSize must be positive");
+		this.maxSize = maxSize;
+		this.maxStripeSize = Math.max(1, maxSize / STRIPES);
+	}
+
+	private Stripe stripe(String identifier) {
+		int h = identifier.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	private final class Stripe extends LinkedHashMap<String, DiscoveryCacheEntry> {
+
+		private static final long serialVersionUID = 1L;
+
+		private Stripe() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DiscoveryCacheEntry> eldest) {
+			return size() > maxStripeSize;
+		}
+	}
+}
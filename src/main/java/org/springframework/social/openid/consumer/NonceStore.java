@@ -0,0 +1,34 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+/**
+ * Remembers response nonces until they expire, see {@link NonceStoreVerifier}.
+ * Implementations must be thread-safe.
+ */
+public interface NonceStore {
+
+	/**
+	 * Atomically adds a nonce unless it is already known.
+	 * 
+	 * @param expires
+	 *            time in milliseconds after which the nonce may be forgotten.
+	 *            Always the same for equal nonces of an OP.
+	 * @return <code>false</code> if the nonce has been added before
+	 */
+	boolean add(String opUrl, String nonce, long expires);
+}
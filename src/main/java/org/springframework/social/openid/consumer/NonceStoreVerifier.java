@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import org.openid4java.consumer.NonceVerifier;
+import org.springframework.util.Assert;
+
+/**
+ * {@link NonceVerifier} keeping nonces in a {@link NonceStore}. Other than
+ * {@link org.openid4java.consumer.AbstractNonceVerifier} it doesn't serialize
+ * all verifications. Other than openid4java, it rejects nonces timestamped
+ * further in the future than {@link #setMaxFutureSkew(int)} before storing
+ * them. openid4java checks nonces before signatures, so forged callbacks could
+ * otherwise fill the store with nonces that are kept forever.
+ */
+public class NonceStoreVerifier implements NonceVerifier {
+
+	public static final int DEFAULT_MAX_AGE = 60;
+	public static final int DEFAULT_MAX_FUTURE_SKEW = 300;
+
+	private final NonceStore store;
+	private volatile int maxAge;
+	private volatile int maxFutureSkew = DEFAULT_MAX_FUTURE_SKEW;
+
+	public NonceStoreVerifier(NonceStore store) {
+		this(store, DEFAULT_MAX_AGE);
+	}
+
+	public NonceStoreVerifier(NonceStore store, int maxAge) {
+		Assert.notNull(store, "store must not be null");
+		this.store = store;
+		this.maxAge = maxAge;
+	}
+
+	@Override
+	public int seen(String opUrl, String nonce) {
+		long timestamp = parseTimestamp(nonce);
+		if (timestamp < 0) {
+			return INVALID_TIMESTAMP;
+		}
+
+		long maxAgeMillis = maxAge * 1000L;
+		long now = System.currentTimeMillis();
+		if (now - timestamp > maxAgeMillis) {
+			return TOO_OLD;
+		} else if (timestamp - now > maxFutureSkew * 1000L) {
+			return INVALID_TIMESTAMP;
+		}
+		return store.add(opUrl, nonce, timestamp + maxAgeMillis) ? OK : SEEN;
+	}
+
+	@Override
+	public int getMaxAge() {
+		return maxAge;
+	}
+
+	@Override
+	public void setMaxAge(int ageSeconds) {
+		this.maxAge = ageSeconds;
+	}
+
+	public int getMaxFutureSkew() {
+		return maxFutureSkew;
+	}
+
+	/**
+	 * Nonces are kept until max age after their timestamp. The tolerated
+	 * clock skew of OPs bounds how long nonces are kept, i.e. the number of
+	 * buckets in a {@link BucketedNonceStore} or {@link FileNonceStore}.
+	 * 
+	 * @param maxFutureSkew
+	 *            seconds a timestamp may be ahead, defaults to
+	 *            {@link #DEFAULT_MAX_FUTURE_SKEW}
+	 */
+	public void setMaxFutureSkew(int maxFutureSkew) {
+		Assert.isTrue(maxFutureSkew >= 0, "maxFutureSkew must not be negative");
+		this.maxFutureSkew = maxFutureSkew;
+	}
+
+	public NonceStore getStore() {
+		return store;
+	}
+
+	/**
+	 * parses the <tt>yyyy-MM-dd'T'HH:mm:ss'Z'</tt> prefix of a nonce without
+	 * (synchronized) date formats
+	 * 
+	 * @return milliseconds since epoch or -1 if invalid
+	 */
+	static long parseTimestamp(String nonce) {
+		if (nonce == null || nonce.length() < 20 || nonce.charAt(4) != '-' || nonce.charAt(7) != '-'
+				|| nonce.charAt(10) != 'T' || nonce.charAt(13) != ':' || nonce.charAt(16) != ':'
+				|| nonce.charAt(19) != 'Z') {
+			return -1;
+		}
+
+		int year = digits(nonce, 0, 4);
+		int month = digits(nonce, 5, 2);
+		int day = digits(nonce, 8, 2);
+		int hour = digits(nonce, 11, 2);
+		int minute = digits(nonce, 14, 2);
+		int second = digits(nonce, 17, 2);
+		if (year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+				|| minute > 59 || second < 0 || second > 60) {
+			return -1;
+		}
+
+		// days from civil, proleptic gregorian calendar
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		long days = era * 146097L + doe - 719468;
+
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+	}
+
+	private static int digits(String s, int start, int length) {
+		int value = 0;
+		for (int i = start; i < start + length; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+}
@@ -0,0 +1,499 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.openid4java.association.Association;
+import org.openid4java.association.AssociationException;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.openid4java.consumer.ConsumerException;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.VerificationResult;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.ParameterList;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.util.HttpFetcherFactory;
+import org.springframework.social.openid.metrics.LoginOutcome;
+import org.springframework.social.openid.metrics.LoginPhase;
+import org.springframework.social.openid.metrics.NoOpOpenIdMetrics;
+import org.springframework.social.openid.metrics.NoOpOpenIdTracer;
+import org.springframework.social.openid.metrics.OpenIdMetrics;
+import org.springframework.social.openid.metrics.OpenIdSpan;
+import org.springframework.social.openid.metrics.OpenIdTracer;
+import org.springframework.util.Assert;
+
+/**
+ * {@link ConsumerManager} reporting discovery, association and verification
+ * timings to {@link OpenIdMetrics} and tracing them with an
+ * {@link OpenIdTracer}. Optionally establishes associations in the
+ * background, keeping Diffie-Hellman key generation and the association
+ * request off the login path. Associations may be renewed ahead of expiry,
+ * see {@link #renewAssociation(List)}.
+ */
+public class OpenIdConsumerManager extends ConsumerManager {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(OpenIdConsumerManager.class);
+
+	private final ConcurrentMap<String, Boolean> pendingAssociations = new ConcurrentHashMap<String, Boolean>();
+
+	private volatile OpenIdMetrics metrics = NoOpOpenIdMetrics.INSTANCE;
+	private volatile OpenIdTracer tracer = NoOpOpenIdTracer.INSTANCE;
+	private volatile Executor associationExecutor;
+	private volatile EndpointSelector endpointSelector;
+	private volatile ProviderCircuitBreaker circuitBreaker;
+
+	public OpenIdConsumerManager(RealmVerifierFactory realmFactory, Discovery discovery,
+			HttpFetcherFactory httpFetcherFactory) {
+		super(realmFactory, discovery, httpFetcherFactory);
+		setAssociations(super.getAssociations());
+	}
+
+	/**
+	 * Wraps the store to allow {@link #renewAssociation(List)}.
+	 */
+	@Override
+	public void setAssociations(ConsumerAssociationStore associations) {
+		Assert.notNull(associations, "associations must not be null");
+		super.setAssociations(associations instanceof RenewingAssociationStore ? associations
+				: new RenewingAssociationStore(associations));
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public List discover(String identifier) throws DiscoveryException {
+		OpenIdMetrics metrics = this.metrics;
+		OpenIdTracer tracer = this.tracer;
+		if (!metrics.isEnabled() && !tracer.isEnabled()) {
+			return super.discover(identifier);
+		}
+
+		OpenIdSpan span = tracer.start(LoginPhase.DISCOVERY);
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			List discoveries = super.discover(identifier);
+			success = true;
+			return discoveries;
+		} finally {
+			long nanos = System.nanoTime() - start;
+			String host = Urls.getHost(identifier);
+			span.end(host, toOutcome(success));
+			metrics.discovery(host, nanos, success);
+		}
+	}
+
+	@Override
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public DiscoveryInformation associate(List discoveries) {
+		EndpointSelector endpointSelector = this.endpointSelector;
+		if (endpointSelector != null) {
+			discoveries = endpointSelector.select(discoveries);
+		}
+		discoveries = removeOpenCircuits(discoveries);
+
+		Executor executor = this.associationExecutor;
+		if (executor != null && isAllowStateless() && !discoveries.isEmpty()) {
+			DiscoveryInformation first = (DiscoveryInformation) discoveries.get(0);
+			String opUrl = first.getOPEndpoint().toString();
+			if (needsAssociation(opUrl) && associateInBackground(executor, opUrl, discoveries)) {
+				// stateless until associated, verified by check_authentication
+				return first;
+			}
+		}
+		return associateNow(discoveries);
+	}
+
+	/**
+	 * Requests stateless authentication while an association with the OP is
+	 * pending in the background, as {@link ConsumerManager} would otherwise
+	 * associate on the calling thread.
+	 */
+	@Override
+	public AuthRequest authenticate(DiscoveryInformation discovered, String returnToUrl, String realm)
+			throws MessageException, ConsumerException {
+		if (!pendingAssociations.containsKey(discovered.getOPEndpoint().toString())) {
+			return super.authenticate(discovered, returnToUrl, realm);
+		}
+
+		RenewingAssociationStore store = (RenewingAssociationStore) getAssociations();
+		store.beginStateless();
+		try {
+			return super.authenticate(discovered, returnToUrl, realm);
+		} finally {
+			store.endStateless();
+		}
+	}
+
+	/**
+	 * Like {@link #associate(List)} but always associating on the calling
+	 * thread, e.g. for {@link AssociationRefresher}.
+	 */
+	@SuppressWarnings("rawtypes")
+	public DiscoveryInformation associateNow(List discoveries) {
+		OpenIdMetrics metrics = this.metrics;
+		OpenIdTracer tracer = this.tracer;
+		EndpointSelector endpointSelector = this.endpointSelector;
+		if (!metrics.isEnabled() && !tracer.isEnabled() && endpointSelector == null) {
+			return super.associate(discoveries);
+		}
+
+		// only score endpoints actually associating, not reused associations
+		String firstOpUrl = null;
+		if (endpointSelector != null && !discoveries.isEmpty() && getMaxAssocAttempts() > 0) {
+			String opUrl = ((DiscoveryInformation) discoveries.get(0)).getOPEndpoint().toString();
+			if (needsAssociation(opUrl)) {
+				firstOpUrl = opUrl;
+			}
+		}
+
+		OpenIdSpan span = tracer.start(LoginPhase.ASSOCIATION);
+		long start = System.nanoTime();
+		DiscoveryInformation discovered = null;
+		try {
+			discovered = super.associate(discoveries);
+		} finally {
+			long nanos = System.nanoTime() - start;
+			if (discovered != null) {
+				String opUrl = discovered.getOPEndpoint().toString();
+				Association association = getAssociations().load(opUrl);
+				boolean success = association != null
+						&& !Association.FAILED_ASSOC_HANDLE.equals(association.getHandle());
+				String opHost = getOpHost(discovered);
+				span.end(opHost, toOutcome(success));
+				metrics.association(opHost, nanos, success);
+				if (firstOpUrl != null) {
+					// first endpoint failed if another one was selected
+					endpointSelector.record(firstOpUrl, nanos, success && firstOpUrl.equals(opUrl));
+				}
+			} else {
+				span.end(null, LoginOutcome.FAILURE);
+			}
+		}
+		return discovered;
+	}
+
+	/**
+	 * Establishes a new association even if the current one is still valid,
+	 * e.g. for {@link AssociationRefresher} to renew associations before logins
+	 * stop using them. The current association stays usable until replaced or
+	 * if renewal fails.
+	 * 
+	 * @return the discovery information the association was established with,
+	 *         see {@link #associate(List)}
+	 */
+	@SuppressWarnings("rawtypes")
+	public DiscoveryInformation renewAssociation(List discoveries) {
+		RenewingAssociationStore store = (RenewingAssociationStore) getAssociations();
+		store.beginRenewal();
+		try {
+			return associateNow(discoveries);
+		} finally {
+			store.endRenewal();
+		}
+	}
+
+	@Override
+	public VerificationResult verify(String receivingUrl, ParameterList response, DiscoveryInformation discovered)
+			throws MessageException, DiscoveryException, AssociationException {
+		ProviderCircuitBreaker circuitBreaker = this.circuitBreaker;
+		if (circuitBreaker != null) {
+			String opHost = discovered != null ? getOpHost(discovered) : Urls.getHost(response
+					.getParameterValue("openid.op_endpoint"));
+			if (circuitBreaker.isOpen(opHost)) {
+				throw new CircuitOpenException(opHost);
+			}
+		}
+
+		OpenIdMetrics metrics = this.metrics;
+		OpenIdTracer tracer = this.tracer;
+		EndpointSelector endpointSelector = this.endpointSelector;
+		if (!metrics.isEnabled() && !tracer.isEnabled() && endpointSelector == null) {
+			return super.verify(receivingUrl, response, discovered);
+		}
+
+		// only score endpoints actually contacted, i.e. by check_authentication
+		String directOpUrl = null;
+		if (endpointSelector != null && discovered != null) {
+			String opUrl = discovered.getOPEndpoint().toString();
+			String handle = response.getParameterValue("openid.assoc_handle");
+			if (handle == null || getAssociations().load(opUrl, handle) == null) {
+				directOpUrl = opUrl;
+			}
+		}
+
+		OpenIdSpan span = tracer.start(LoginPhase.VERIFICATION);
+		long start = System.nanoTime();
+		boolean success = false;
+		boolean failed = true;
+		try {
+			VerificationResult result = super.verify(receivingUrl, response, discovered);
+			success = result.getVerifiedId() != null;
+			failed = false;
+			return result;
+		} finally {
+			if (directOpUrl != null) {
+				// a negative response is still a healthy endpoint
+				endpointSelector.record(directOpUrl, System.nanoTime() - start, !failed);
+			}
+			long nanos = System.nanoTime() - start;
+			String opHost = discovered != null ? getOpHost(discovered) : Urls.getHost(response
+					.getParameterValue("openid.op_endpoint"));
+			span.end(opHost, toOutcome(success));
+			metrics.verification(opHost, nanos, success);
+		}
+	}
+
+	/**
+	 * @return discoveries of OPs whose circuit isn't open
+	 * @throws CircuitOpenException
+	 *             if all circuits are open
+	 */
+	@SuppressWarnings("rawtypes")
+	private List removeOpenCircuits(List discoveries) {
+		ProviderCircuitBreaker circuitBreaker = this.circuitBreaker;
+		if (circuitBreaker == null || discoveries.isEmpty()) {
+			return discoveries;
+		}
+
+		List<DiscoveryInformation> available = null;
+		for (int i = 0; i < discoveries.size(); i++) {
+			DiscoveryInformation discovered = (DiscoveryInformation) discoveries.get(i);
+			if (circuitBreaker.isOpen(getOpHost(discovered))) {
+				if (available == null) {
+					available = new ArrayList<DiscoveryInformation>(discoveries.size());
+					for (int j = 0; j < i; j++) {
+						available.add((DiscoveryInformation) discoveries.get(j));
+					}
+				}
+			} else if (available != null) {
+				available.add(discovered);
+			}
+		}
+		if (available == null) {
+			return discoveries;
+		} else if (available.isEmpty()) {
+			throw new CircuitOpenException(getOpHost((DiscoveryInformation) discoveries.get(0)));
+		}
+		return available;
+	}
+
+	/**
+	 * @return <code>true</code> if the OP has no usable association and no
+	 *         recent failure, i.e. associating would block
+	 */
+	private boolean needsAssociation(String opUrl) {
+		Association association = getAssociations().load(opUrl);
+		if (association == null) {
+			return true;
+		} else if (Association.FAILED_ASSOC_HANDLE.equals(association.getHandle())) {
+			return false;
+		}
+		long expiresIn = association.getExpiry().getTime() - System.currentTimeMillis();
+		return expiresIn <= getPreExpiryAssocLockInterval() * 1000L;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private boolean associateInBackground(Executor executor, final String opUrl, List discoveries) {
+		if (pendingAssociations.putIfAbsent(opUrl, Boolean.TRUE) != null) {
+			return true;
+		}
+
+		// openid4java lists contain DiscoveryInformation only
+		final List<DiscoveryInformation> copy = new ArrayList<DiscoveryInformation>(discoveries.size());
+		for (Object discovery : discoveries) {
+			copy.add((DiscoveryInformation) discovery);
+		}
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						associateNow(copy);
+					} catch (RuntimeException e) {
+						log.warn("background association with " + opUrl + " failed", e);
+					} finally {
+						pendingAssociations.remove(opUrl);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pendingAssociations.remove(opUrl);
+			log.debug("association executor rejected {}, associating on request thread", opUrl);
+			return false;
+		}
+	}
+
+	public Executor getAssociationExecutor() {
+		return associationExecutor;
+	}
+
+	/**
+	 * Establishes missing or expiring associations on the given executor
+	 * instead of the request thread. Meanwhile logins proceed without
+	 * association (requires stateless mode, which is allowed by default).
+	 * 
+	 * @param associationExecutor
+	 *            a small bounded executor, <code>null</code> (default) to
+	 *            associate on the request thread
+	 */
+	public void setAssociationExecutor(Executor associationExecutor) {
+		this.associationExecutor = associationExecutor;
+	}
+
+	public EndpointSelector getEndpointSelector() {
+		return endpointSelector;
+	}
+
+	/**
+	 * Orders discovered endpoints by health and latency before associating.
+	 * Latency is sampled from association and <tt>check_authentication</tt>
+	 * requests, including renewals by {@link AssociationRefresher}.
+	 * 
+	 * @param endpointSelector
+	 *            <code>null</code> (default) to keep discovery order
+	 */
+	public void setEndpointSelector(EndpointSelector endpointSelector) {
+		this.endpointSelector = endpointSelector;
+	}
+
+	public ProviderCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Skips OPs with open circuit and fails logins with a
+	 * {@link CircuitOpenException} if none is left. Requires a
+	 * {@link CircuitBreakingHttpFetcher} to record calls.
+	 * 
+	 * @param circuitBreaker
+	 *            <code>null</code> (default) to disable fast failing
+	 */
+	public void setCircuitBreaker(ProviderCircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public OpenIdMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(OpenIdMetrics metrics) {
+		Assert.notNull(metrics, "metrics must not be null");
+		this.metrics = metrics;
+	}
+
+	public OpenIdTracer getTracer() {
+		return tracer;
+	}
+
+	public void setTracer(OpenIdTracer tracer) {
+		Assert.notNull(tracer, "tracer must not be null");
+		this.tracer = tracer;
+	}
+
+	private static LoginOutcome toOutcome(boolean success) {
+		return success ? LoginOutcome.SUCCESS : LoginOutcome.FAILURE;
+	}
+
+	private static String getOpHost(DiscoveryInformation discovered) {
+		return discovered.getOPEndpoint().getHost().toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Hides stored associations from {@link ConsumerManager#associate(List)}
+	 * on a renewing thread, making it associate again. Only associations saved
+	 * by the renewal are visible to it, failed attempts aren't stored. On a
+	 * thread authenticating statelessly, missing associations appear failed
+	 * instead.
+	 */
+	private static final class RenewingAssociationStore implements ConsumerAssociationStore {
+
+		private final ConsumerAssociationStore delegate;
+		private final ThreadLocal<Set<String>> renewed = new ThreadLocal<Set<String>>();
+		private final ThreadLocal<Boolean> stateless = new ThreadLocal<Boolean>();
+
+		private RenewingAssociationStore(ConsumerAssociationStore delegate) {
+			this.delegate = delegate;
+		}
+
+		private void beginRenewal() {
+			renewed.set(new HashSet<String>());
+		}
+
+		private void endRenewal() {
+			renewed.remove();
+		}
+
+		private void beginStateless() {
+			stateless.set(Boolean.TRUE);
+		}
+
+		private void endStateless() {
+			stateless.remove();
+		}
+
+		@Override
+		public void save(String opUrl, Association association) {
+			Set<String> handles = renewed.get();
+			if (handles != null) {
+				if (Association.FAILED_ASSOC_HANDLE.equals(association.getHandle())) {
+					// keep the current association in use
+					return;
+				}
+				handles.add(association.getHandle());
+			}
+			delegate.save(opUrl, association);
+		}
+
+		@Override
+		public Association load(String opUrl, String handle) {
+			return delegate.load(opUrl, handle);
+		}
+
+		@Override
+		public Association load(String opUrl) {
+			Association association = delegate.load(opUrl);
+			if (association == null && stateless.get() != null) {
+				return Association.getFailedAssociation(0);
+			}
+			Set<String> handles = renewed.get();
+			if (handles == null || association != null && handles.contains(association.getHandle())) {
+				return association;
+			}
+			return null;
+		}
+
+		@Override
+		public void remove(String opUrl, String handle) {
+			delegate.remove(opUrl, handle);
+		}
+	}
+}
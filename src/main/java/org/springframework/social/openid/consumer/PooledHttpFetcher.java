@@ -0,0 +1,407 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.NameValuePair;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.openid4java.util.AbstractHttpFetcher;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * {@link org.openid4java.util.HttpFetcher} on a pool of persistent
+ * connections. Connections per host are capped and a per host bulkhead
+ * rejects requests that can't get a connection within
+ * {@link #setBulkheadTimeout(long)}, so a slow OP can't tie up the threads of
+ * logins through other OPs. Redirects pass the bulkhead of their target. Other than {@link org.openid4java.util.HttpCache},
+ * responses aren't cached (see {@link CachingDiscovery}).
+ */
+public class PooledHttpFetcher extends AbstractHttpFetcher implements DisposableBean {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PooledHttpFetcher.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 100;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+	public static final long DEFAULT_BULKHEAD_TIMEOUT = 1000;
+	public static final int DEFAULT_MAX_HOSTS = 1000;
+
+	private final PoolingClientConnectionManager connectionManager;
+	private final DefaultHttpClient client;
+	private final RedirectStrategy redirectStrategy = new DefaultRedirectStrategy();
+	private final ConcurrentMap<String, Semaphore> bulkheads = new ConcurrentHashMap<String, Semaphore>();
+
+	private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private long bulkheadTimeout = DEFAULT_BULKHEAD_TIMEOUT;
+	private int maxHosts = DEFAULT_MAX_HOSTS;
+	private int connectTimeout;
+	private int socketTimeout;
+
+	public PooledHttpFetcher() {
+		connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+		connectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+		client = new DefaultHttpClient(connectionManager);
+		HttpConnectionParams.setStaleCheckingEnabled(client.getParams(), true);
+	}
+
+	@Override
+	public HttpResponse get(String url, HttpRequestOptions requestOptions) throws IOException {
+		return execute(new HttpGet(url), requestOptions);
+	}
+
+	@Override
+	public HttpResponse head(String url, HttpRequestOptions requestOptions) throws IOException {
+		return execute(new HttpHead(url), requestOptions);
+	}
+
+	@Override
+	public HttpResponse post(String url, Map<String, String> parameters, HttpRequestOptions requestOptions)
+			throws IOException {
+		List<NameValuePair> list = new ArrayList<NameValuePair>(parameters.size());
+		for (Map.Entry<String, String> e : parameters.entrySet()) {
+			list.add(new BasicNameValuePair(e.getKey(), e.getValue()));
+		}
+		HttpPost post = new HttpPost(url);
+		post.setEntity(new UrlEncodedFormEntity(list, "UTF-8"));
+		return execute(post, requestOptions);
+	}
+
+	private HttpResponse execute(HttpRequestBase request, HttpRequestOptions options) throws IOException {
+		// redirects are followed here, every hop within the bulkhead of its host
+		HttpContext context = new BasicHttpContext();
+		int redirects = 0;
+		while (true) {
+			configure(request, options);
+			Semaphore bulkhead = acquire(request.getURI().getHost());
+			try {
+				org.apache.http.HttpResponse response = client.execute(request, context);
+				if (options.getMaxRedirects() > 0 && redirectStrategy.isRedirected(request, response, context)) {
+					if (redirects++ >= options.getMaxRedirects()) {
+						throw new ClientProtocolException("Maximum redirects (" + options.getMaxRedirects()
+								+ ") exceeded");
+					}
+					HttpUriRequest redirect = redirectStrategy.getRedirect(request, response, context);
+					EntityUtils.consume(response.getEntity());
+					request = (HttpRequestBase) redirect;
+					continue;
+				}
+				return read(request, response, context, options.getMaxBodySize());
+			} catch (ProtocolException e) {
+				request.abort();
+				throw new ClientProtocolException(e);
+			} catch (IOException e) {
+				request.abort();
+				throw e;
+			} catch (RuntimeException e) {
+				request.abort();
+				throw e;
+			} finally {
+				bulkhead.release();
+			}
+		}
+	}
+
+	/**
+	 * @param maxBodySize
+	 *            maximum bytes to read, 0 for no limit
+	 */
+	private static PooledHttpResponse read(HttpRequestBase request, org.apache.http.HttpResponse response,
+			HttpContext context, int maxBodySize) throws IOException {
+		HttpEntity entity = response.getEntity();
+		String body = null;
+		boolean bodySizeExceeded = false;
+		if (entity != null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream in = entity.getContent();
+			try {
+				byte[] buf = new byte[4096];
+				int read;
+				while ((read = in.read(buf)) >= 0) {
+					out.write(buf, 0, read);
+					if (maxBodySize > 0 && out.size() > maxBodySize) {
+						bodySizeExceeded = true;
+						break;
+					}
+				}
+			} finally {
+				if (bodySizeExceeded) {
+					// don't drain the rest of the body, discard the connection
+					request.abort();
+				} else {
+					in.close();
+				}
+			}
+			Charset charset = ContentType.getOrDefault(entity).getCharset();
+			byte[] bytes = out.toByteArray();
+			body = new String(bytes, 0, bodySizeExceeded ? maxBodySize : bytes.length, charset != null ? charset
+					: UTF_8);
+		}
+		return new PooledHttpResponse(response.getStatusLine().getStatusCode(), getFinalUri(request, context),
+				response.getAllHeaders(), body, bodySizeExceeded);
+	}
+
+	Semaphore acquire(String host) throws IOException {
+		long deadline = System.currentTimeMillis() + bulkheadTimeout;
+		try {
+			while (true) {
+				Semaphore bulkhead = getBulkhead(host);
+				long timeout = Math.max(0, deadline - System.currentTimeMillis());
+				if (!bulkhead.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+					throw new IOException("too many concurrent requests to " + host);
+				}
+				if (bulkheads.get(host) == bulkhead) {
+					// a bulkhead with acquired permits is never evicted
+					return bulkhead;
+				}
+				// evicted meanwhile, retry with the current bulkhead of host
+				bulkhead.release();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted waiting for connection to " + host);
+		}
+	}
+
+	private void configure(HttpRequestBase request, HttpRequestOptions options) {
+		HttpParams params = request.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, cap(options.getConnTimeout(), connectTimeout));
+		HttpConnectionParams.setSoTimeout(params, cap(options.getSocketTimeout(), socketTimeout));
+		HttpClientParams.setConnectionManagerTimeout(params, bulkheadTimeout);
+		HttpClientParams.setRedirecting(params, false);
+		params.setBooleanParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, options.getAllowCircularRedirects());
+
+		if (options.getContentType() != null) {
+			request.addHeader("Accept", options.getContentType());
+		}
+		Map<?, ?> headers = options.getRequestHeaders();
+		if (headers != null) {
+			for (Map.Entry<?, ?> e : headers.entrySet()) {
+				request.addHeader((String) e.getKey(), (String) e.getValue());
+			}
+		}
+	}
+
+	private static int cap(int timeout, int max) {
+		return max > 0 && (timeout <= 0 || timeout > max) ? max : timeout;
+	}
+
+	private static String getFinalUri(HttpUriRequest request, HttpContext context) {
+		HttpHost target = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+		HttpUriRequest last = (HttpUriRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+		if (target == null || last == null) {
+			return request.getURI().toString();
+		}
+		URI uri = last.getURI();
+		return uri.isAbsolute() ? uri.toString() : target.toURI() + uri;
+	}
+
+	Semaphore getBulkhead(String host) {
+		Semaphore bulkhead = bulkheads.get(host);
+		if (bulkhead == null) {
+			if (bulkheads.size() >= maxHosts) {
+				evictIdleBulkheads();
+			}
+			Semaphore newBulkhead = new Semaphore(maxConnectionsPerHost);
+			bulkhead = bulkheads.putIfAbsent(host, newBulkhead);
+			if (bulkhead == null) {
+				bulkhead = newBulkhead;
+			}
+		}
+		return bulkhead;
+	}
+
+	/**
+	 * Takes all permits of a bulkhead to mark it idle while removing it, so
+	 * no request can pass it meanwhile. Requests acquiring it afterwards find
+	 * it evicted and retry with a new one.
+	 */
+	private void evictIdleBulkheads() {
+		for (Map.Entry<String, Semaphore> e : bulkheads.entrySet()) {
+			Semaphore bulkhead = e.getValue();
+			if (bulkhead.tryAcquire(maxConnectionsPerHost)) {
+				bulkheads.remove(e.getKey(), bulkhead);
+				bulkhead.release(maxConnectionsPerHost);
+			}
+		}
+		log.debug("evicted idle bulkheads, {} hosts remaining", bulkheads.size());
+	}
+
+	/**
+	 * @param maxConnections
+	 *            total pooled connections, defaults to
+	 *            {@link #DEFAULT_MAX_CONNECTIONS}
+	 */
+	public void setMaxConnections(int maxConnections) {
+		connectionManager.setMaxTotal(maxConnections);
+	}
+
+	/**
+	 * Connections and concurrent requests per host. Set before first use.
+	 *
+	 * @param maxConnectionsPerHost
+	 *            defaults to {@link #DEFAULT_MAX_CONNECTIONS_PER_HOST}
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	/**
+	 * @param bulkheadTimeout
+	 *            milliseconds to wait for a free connection to a host before
+	 *            failing, defaults to {@link #DEFAULT_BULKHEAD_TIMEOUT}
+	 */
+	public void setBulkheadTimeout(long bulkheadTimeout) {
+		this.bulkheadTimeout = bulkheadTimeout;
+	}
+
+	/**
+	 * @param maxHosts
+	 *            hosts to keep bulkheads for before idle ones are evicted,
+	 *            defaults to {@link #DEFAULT_MAX_HOSTS}
+	 */
+	public void setMaxHosts(int maxHosts) {
+		this.maxHosts = maxHosts;
+	}
+
+	/**
+	 * @param connectTimeout
+	 *            upper bound for connect timeouts requested by openid4java in
+	 *            milliseconds, 0 (default) for no bound
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @param socketTimeout
+	 *            upper bound for read timeouts requested by openid4java in
+	 *            milliseconds, 0 (default) for no bound
+	 */
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	public PoolingClientConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	@Override
+	public void destroy() {
+		connectionManager.shutdown();
+	}
+
+	private static final class PooledHttpResponse implements HttpResponse {
+
+		private final int statusCode;
+		private final String finalUri;
+		private final Header[] headers;
+		private final String body;
+		private final boolean bodySizeExceeded;
+
+		private PooledHttpResponse(int statusCode, String finalUri, Header[] headers, String body,
+				boolean bodySizeExceeded) {
+			this.statusCode = statusCode;
+			this.finalUri = finalUri;
+			this.headers = headers;
+			this.body = body;
+			this.bodySizeExceeded = bodySizeExceeded;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		@Override
+		public String getFinalUri() {
+			return finalUri;
+		}
+
+		@Override
+		public Header getResponseHeader(String name) {
+			for (Header header : headers) {
+				if (header.getName().equalsIgnoreCase(name)) {
+					return header;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public Header[] getResponseHeaders(String name) {
+			List<Header> list = new ArrayList<Header>();
+			for (Header header : headers) {
+				if (header.getName().equalsIgnoreCase(name)) {
+					list.add(header);
+				}
+			}
+			return list.toArray(new Header[list.size()]);
+		}
+
+		@Override
+		public String getBody() {
+			return body;
+		}
+
+		@Override
+		public boolean isBodySizeExceeded() {
+			return bodySizeExceeded;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.xrds.XrdsServiceEndpoint;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.discovery.yadis.YadisResult;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+
+/**
+ * {@link YadisResolver} returning {@link XrdsDiscoveryInformation}, so
+ * {@link EndpointSelector} can tell XRDS priority classes apart. Results are in
+ * the same order as openid4java's.
+ */
+public class PrioritizingYadisResolver extends YadisResolver {
+
+	public PrioritizingYadisResolver(HttpFetcherFactory httpFetcherFactory) {
+		super(httpFetcherFactory);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public List discover(String url, int maxRedirects, HttpFetcher httpFetcher) throws DiscoveryException {
+		YadisResult result = discover(url, maxRedirects, httpFetcher, DiscoveryInformation.OPENID_OP_TYPES);
+		List discoveries = result.getDiscoveredInformation(DiscoveryInformation.OPENID_OP_TYPES);
+		if (discoveries.isEmpty()) {
+			return discoveries;
+		}
+
+		// openid4java adds one result per matching type of each endpoint
+		List<DiscoveryInformation> prioritized = new ArrayList<DiscoveryInformation>(discoveries.size());
+		for (Object endpoint : result.getEndpoints()) {
+			XrdsServiceEndpoint service = (XrdsServiceEndpoint) endpoint;
+			for (Object type : service.getTypes()) {
+				if (DiscoveryInformation.OPENID_OP_TYPES.contains(type)) {
+					if (prioritized.size() == discoveries.size()) {
+						// unexpected, keep results of openid4java
+						return discoveries;
+					}
+					DiscoveryInformation discovered = (DiscoveryInformation) discoveries.get(prioritized.size());
+					prioritized.add(new XrdsDiscoveryInformation(discovered.getOPEndpoint(),
+							discovered.getClaimedIdentifier(), discovered.getDelegateIdentifier(),
+							discovered.getVersion(), discovered.getTypes(), service.getServicePriority(),
+							service.getUriPriority()));
+				}
+			}
+		}
+		return prioritized.size() == discoveries.size() ? prioritized : discoveries;
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breakers per OP endpoint host. A circuit opens once the failure rate
+ * within a rolling window exceeds {@link #setFailureRateThreshold(double)},
+ * rejecting all calls for {@link #setOpenDuration(long)}. Afterwards a single
+ * probe is let through (half open) which either closes the circuit or opens it
+ * again. Calls are recorded by {@link CircuitBreakingHttpFetcher}, logins
+ * are rejected by {@link OpenIdConsumerManager}.
+ */
+public class ProviderCircuitBreaker {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ProviderCircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+	public static final int DEFAULT_MINIMUM_CALLS = 10;
+	public static final long DEFAULT_WINDOW = 60000;
+	public static final int DEFAULT_BUCKETS = 6;
+	public static final long DEFAULT_OPEN_DURATION = 30000;
+	public static final int DEFAULT_MAX_HOSTS = 1000;
+
+	private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+	private volatile double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+	private volatile int minimumCalls = DEFAULT_MINIMUM_CALLS;
+	private volatile long window = DEFAULT_WINDOW;
+	private volatile int buckets = DEFAULT_BUCKETS;
+	private volatile long openDuration = DEFAULT_OPEN_DURATION;
+	private volatile int maxHosts = DEFAULT_MAX_HOSTS;
+
+	/**
+	 * @return <code>true</code> while calls to host are rejected, i.e. the
+	 *         circuit is open and not ready for a probe yet
+	 */
+	public boolean isOpen(String host) {
+		return getState(host) == State.OPEN;
+	}
+
+	/**
+	 * @return <code>false</code> if calls to host must be rejected
+	 */
+	public boolean tryAcquire(String host) {
+		Circuit circuit = getCircuit(host);
+		return circuit == null || circuit.tryAcquire(System.currentTimeMillis());
+	}
+
+	/**
+	 * records the result of a call acquired by {@link #tryAcquire(String)}
+	 */
+	public void record(String host, boolean success) {
+		Circuit circuit = getCircuit(host);
+		if (circuit != null) {
+			circuit.record(host, success, System.currentTimeMillis());
+		}
+	}
+
+	public State getState(String host) {
+		Circuit circuit = host == null ? null : circuits.get(host);
+		return circuit == null ? State.CLOSED : circuit.getState(System.currentTimeMillis());
+	}
+
+	private Circuit getCircuit(String host) {
+		if (host == null) {
+			return null;
+		}
+		Circuit circuit = circuits.get(host);
+		if (circuit == null) {
+			if (circuits.size() >= maxHosts && !evictClosed()) {
+				// too many hosts, don't protect this one
+				return null;
+			}
+			Circuit newCircuit = new Circuit(buckets, window / buckets);
+			circuit = circuits.putIfAbsent(host, newCircuit);
+			if (circuit == null) {
+				circuit = newCircuit;
+			}
+		}
+		return circuit;
+	}
+
+	private boolean evictClosed() {
+		long now = System.currentTimeMillis();
+		boolean evicted = false;
+		for (Iterator<Circuit> iter = circuits.values().iterator(); iter.hasNext();) {
+			if (iter.next().getState(now) == State.CLOSED) {
+				iter.remove();
+				evicted = true;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * @param failureRateThreshold
+	 *            failure rate (0-1) to open a circuit at, defaults to
+	 *            {@link #DEFAULT_FAILURE_RATE_THRESHOLD}
+	 */
+	public void setFailureRateThreshold(double failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * @param minimumCalls
+	 *            calls within the window before a circuit may open, defaults
+	 *            to {@link #DEFAULT_MINIMUM_CALLS}
+	 */
+	public void setMinimumCalls(int minimumCalls) {
+		this.minimumCalls = minimumCalls;
+	}
+
+	/**
+	 * Rolling window for failure rates, applies to new circuits only.
+	 *
+	 * @param window
+	 *            milliseconds, defaults to {@link #DEFAULT_WINDOW}
+	 * @param buckets
+	 *            granularity of the window, defaults to
+	 *            {@link #DEFAULT_BUCKETS}
+	 */
+	public void setWindow(long window, int buckets) {
+		if (buckets < 1 || window < buckets) {
+			throw new IllegalArgumentException("window must be split into at least 1 bucket of 1ms");
+		}
+		this.window = window;
+		this.buckets = buckets;
+	}
+
+	/**
+	 * @param openDuration
+	 *            milliseconds to reject calls before probing again, defaults
+	 *            to {@link #DEFAULT_OPEN_DURATION}
+	 */
+	public void setOpenDuration(long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * @param maxHosts
+	 *            hosts to keep circuits for, defaults to
+	 *            {@link #DEFAULT_MAX_HOSTS}
+	 */
+	public void setMaxHosts(int maxHosts) {
+		this.maxHosts = maxHosts;
+	}
+
+	private final class Circuit {
+
+		private final long bucketMillis;
+		private final long[] bucketStart;
+		private final int[] successes;
+		private final int[] failures;
+
+		private State state = State.CLOSED;
+		private long openedAt;
+		private long probeStart;
+
+		private Circuit(int buckets, long bucketMillis) {
+			this.bucketMillis = bucketMillis;
+			bucketStart = new long[buckets];
+			successes = new int[buckets];
+			failures = new int[buckets];
+		}
+
+		private synchronized boolean tryAcquire(long now) {
+			switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (now - openedAt < openDuration) {
+					return false;
+				}
+				state = State.HALF_OPEN;
+				probeStart = now;
+				return true;
+			default:
+				// one probe at a time, unless it never reported back
+				if (now - probeStart < openDuration) {
+					return false;
+				}
+				probeStart = now;
+				return true;
+			}
+		}
+
+		private synchronized void record(String host, boolean success, long now) {
+			if (state == State.HALF_OPEN) {
+				if (success) {
+					log.info("closing circuit for {}", host);
+					state = State.CLOSED;
+					reset();
+				} else {
+					log.debug("probe failed, keeping circuit open for {}", host);
+					state = State.OPEN;
+					openedAt = now;
+				}
+				return;
+			} else if (state == State.OPEN) {
+				// late result of a call acquired before opening
+				return;
+			}
+
+			int i = bucket(now);
+			if (success) {
+				successes[i]++;
+				return;
+			}
+			failures[i]++;
+
+			int calls = 0;
+			int failed = 0;
+			for (int b = 0; b < bucketStart.length; b++) {
+				if (now - bucketStart[b] < bucketMillis * bucketStart.length) {
+					calls += successes[b] + failures[b];
+					failed += failures[b];
+				}
+			}
+			if (calls >= minimumCalls && failed >= calls * failureRateThreshold) {
+				log.warn("opening circuit for {} after {} of {} calls failed", new Object[] { host, failed, calls });
+				state = State.OPEN;
+				openedAt = now;
+			}
+		}
+
+		private synchronized State getState(long now) {
+			return state == State.OPEN && now - openedAt >= openDuration ? State.HALF_OPEN : state;
+		}
+
+		private int bucket(long now) {
+			long start = now - now % bucketMillis;
+			int i = (int) ((now / bucketMillis) % bucketStart.length);
+			if (bucketStart[i] != start) {
+				bucketStart[i] = start;
+				successes[i] = 0;
+				failures[i] = 0;
+			}
+			return i;
+		}
+
+		private void reset() {
+			for (int b = 0; b < bucketStart.length; b++) {
+				bucketStart[b] = 0;
+				successes[b] = 0;
+				failures[b] = 0;
+			}
+		}
+	}
+}
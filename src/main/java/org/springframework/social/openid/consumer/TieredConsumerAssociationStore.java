@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.springframework.util.Assert;
+
+/**
+ * {@link ConsumerAssociationStore} combining a fast local store with a store
+ * shared by all nodes of a cluster. Associations are written to both. Lookups
+ * are served locally and fall back to the shared store on misses, or if the
+ * local association is about to expire, so that an association established by
+ * any node is reused by all others.
+ */
+public class TieredConsumerAssociationStore implements ConsumerAssociationStore {
+
+	public static final int DEFAULT_SHARED_LOOKUP_MARGIN = 600;
+
+	private final ConsumerAssociationStore local;
+	private final ConsumerAssociationStore shared;
+
+	private int sharedLookupMargin = DEFAULT_SHARED_LOOKUP_MARGIN;
+
+	public TieredConsumerAssociationStore(ConsumerAssociationStore shared) {
+		this(new ConcurrentConsumerAssociationStore(), shared);
+	}
+
+	public TieredConsumerAssociationStore(ConsumerAssociationStore local, ConsumerAssociationStore shared) {
+		Assert.notNull(local, "local must not be null");
+		Assert.notNull(shared, "shared must not be null");
+		this.local = local;
+		this.shared = shared;
+	}
+
+	@Override
+	public void save(String opUrl, Association association) {
+		local.save(opUrl, association);
+		shared.save(opUrl, association);
+	}
+
+	@Override
+	public Association load(String opUrl, String handle) {
+		Association association = local.load(opUrl, handle);
+		if (association == null) {
+			association = shared.load(opUrl, handle);
+			if (association != null) {
+				local.save(opUrl, association);
+			}
+		}
+		return association;
+	}
+
+	@Override
+	public Association load(String opUrl) {
+		Association association = local.load(opUrl);
+		if (association == null
+				|| association.getExpiry().getTime() - System.currentTimeMillis() < sharedLookupMargin * 1000L) {
+			Association sharedAssociation = shared.load(opUrl);
+			if (sharedAssociation != null
+					&& (association == null || association.getExpiry().before(sharedAssociation.getExpiry()))) {
+				local.save(opUrl, sharedAssociation);
+				association = sharedAssociation;
+			}
+		}
+		return association;
+	}
+
+	@Override
+	public void remove(String opUrl, String handle) {
+		local.remove(opUrl, handle);
+		shared.remove(opUrl, handle);
+	}
+
+	/**
+	 * @param sharedLookupMargin
+	 *            seconds before expiry of the local association to look for a
+	 *            newer one in the shared store, defaults to
+	 *            {@link #DEFAULT_SHARED_LOOKUP_MARGIN}. Should be larger than
+	 *            the <tt>preExpiryAssocLockInterval</tt> of the consumer.
+	 */
+	public void setSharedLookupMargin(int sharedLookupMargin) {
+		this.sharedLookupMargin = sharedLookupMargin;
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.util.Locale;
+
+public final class Urls {
+
+	private Urls() {
+	}
+
+	/**
+	 * Extracts the host of an URL or claimed identifier without
+	 * {@link java.net.URL} parsing. Identifiers without scheme (e.g.
+	 * <tt>example.com/user</tt>) are treated like http URLs.
+	 *
+	 * @return the lower case host or <code>null</code> (e.g. for XRIs)
+	 */
+	public static String getHost(String url) {
+		if (url == null) {
+			return null;
+		}
+
+		int start = url.indexOf("://");
+		if (start < 0) {
+			if (url.length() == 0 || "=@+$!(".indexOf(url.charAt(0)) >= 0 || url.startsWith("xri:")) {
+				return null;
+			}
+			start = 0;
+		} else {
+			start += 3;
+		}
+
+		int at = -1;
+		int end = start;
+		while (end < url.length()) {
+			char c = url.charAt(end);
+			if (c == '/' || c == '?' || c == '#') {
+				break;
+			} else if (c == '@') {
+				at = end;
+			}
+			end++;
+		}
+		if (at >= 0) {
+			start = at + 1;
+		}
+
+		int colon = url.lastIndexOf(':', end - 1);
+		if (colon >= start) {
+			end = colon;
+		}
+		return end > start ? url.substring(start, end).toLowerCase(Locale.ENGLISH) : null;
+	}
+
+	/**
+	 * Approximates the registrable domain of a host without a public suffix
+	 * list: the last two labels, or three if the second level is short and
+	 * the top level is a country code (e.g. <tt>example.co.uk</tt>).
+	 * 
+	 * @return the domain, the host itself for IP addresses
+	 */
+	public static String getDomain(String host) {
+		if (host == null || host.indexOf(':') >= 0 || Character.isDigit(host.charAt(host.length() - 1))) {
+			return host;
+		}
+		int last = host.lastIndexOf('.');
+		if (last <= 0) {
+			return host;
+		}
+		int second = host.lastIndexOf('.', last - 1);
+		if (second < 0) {
+			return host;
+		}
+		if (host.length() - last - 1 == 2 && last - second - 1 <= 3) {
+			int third = host.lastIndexOf('.', second - 1);
+			return third < 0 ? host : host.substring(third + 1);
+		}
+		return host.substring(second + 1);
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import java.net.URL;
+import java.util.Set;
+
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.xrds.XrdsServiceEndpoint;
+
+/**
+ * {@link DiscoveryInformation} keeping the priorities of the XRDS service and
+ * URI it was discovered from, see {@link PrioritizingYadisResolver}.
+ */
+public class XrdsDiscoveryInformation extends DiscoveryInformation {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int servicePriority;
+	private final int uriPriority;
+
+	@SuppressWarnings("rawtypes")
+	public XrdsDiscoveryInformation(URL opEndpoint, Identifier claimedIdentifier, String delegate, String version,
+			Set types, int servicePriority, int uriPriority) throws DiscoveryException {
+		super(opEndpoint, claimedIdentifier, delegate, version, types);
+		this.servicePriority = servicePriority;
+		this.uriPriority = uriPriority;
+	}
+
+	/**
+	 * @return priority of the XRDS service, lower is preferred,
+	 *         {@link XrdsServiceEndpoint#LOWEST_PRIORITY} if absent
+	 */
+	public int getServicePriority() {
+		return servicePriority;
+	}
+
+	/**
+	 * @return priority of the URI within its XRDS service, lower is preferred,
+	 *         {@link XrdsServiceEndpoint#LOWEST_PRIORITY} if absent
+	 */
+	public int getUriPriority() {
+		return uriPriority;
+	}
+
+	/**
+	 * @return <code>true</code> if both were discovered with the same XRDS
+	 *         priorities or both without XRDS
+	 */
+	public static boolean isSamePriority(DiscoveryInformation a, DiscoveryInformation b) {
+		if (!(a instanceof XrdsDiscoveryInformation) || !(b instanceof XrdsDiscoveryInformation)) {
+			return !(a instanceof XrdsDiscoveryInformation) && !(b instanceof XrdsDiscoveryInformation);
+		}
+		XrdsDiscoveryInformation x = (XrdsDiscoveryInformation) a;
+		XrdsDiscoveryInformation y = (XrdsDiscoveryInformation) b;
+		return x.servicePriority == y.servicePriority && x.uriPriority == y.uriPriority;
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+public enum LoginOutcome {
+
+	/**
+	 * user was redirected to the OP
+	 */
+	REDIRECT,
+
+	/**
+	 * initiation failed with an OpenIDConsumerException
+	 */
+	REDIRECT_FAILED,
+
+	/**
+	 * initiation rejected by admission control before contacting the OP
+	 */
+	RATE_LIMITED,
+
+	/**
+	 * rejected without contacting the OP as its circuit is open
+	 */
+	CIRCUIT_OPEN,
+
+	/**
+	 * assertion verified successfully
+	 */
+	SUCCESS,
+
+	/**
+	 * assertion was not successful (e.g. cancelled by the user)
+	 */
+	FAILURE,
+
+	/**
+	 * verification failed with an OpenIDConsumerException
+	 */
+	CONSUMER_ERROR
+}
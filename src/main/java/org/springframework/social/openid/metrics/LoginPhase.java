@@ -0,0 +1,53 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+/**
+ * Phases of the OpenID login flow traced by {@link OpenIdTracer}.
+ */
+public enum LoginPhase {
+
+	/**
+	 * a whole login request, initiation or callback
+	 */
+	AUTH_TOKEN,
+
+	/**
+	 * building <tt>return_to</tt> URL and realm of an initiation
+	 */
+	BUILD_RETURN_TO_URL,
+
+	/**
+	 * mapping a <tt>return_to</tt> URL to its realm
+	 */
+	LOOKUP_REALM,
+
+	/**
+	 * discovery of a claimed identifier
+	 */
+	DISCOVERY,
+
+	/**
+	 * establishing an association with an OP
+	 */
+	ASSOCIATION,
+
+	/**
+	 * verification of an assertion, including <tt>check_authentication</tt>
+	 */
+	VERIFICATION
+}
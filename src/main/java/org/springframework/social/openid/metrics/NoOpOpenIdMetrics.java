@@ -0,0 +1,50 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+public final class NoOpOpenIdMetrics implements OpenIdMetrics {
+
+	public static final NoOpOpenIdMetrics INSTANCE = new NoOpOpenIdMetrics();
+
+	private NoOpOpenIdMetrics() {
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void discovery(String host, long nanos, boolean success) {
+	}
+
+	@Override
+	public void association(String opHost, long nanos, boolean success) {
+	}
+
+	@Override
+	public void redirect(String host, long nanos, boolean success) {
+	}
+
+	@Override
+	public void verification(String opHost, long nanos, boolean success) {
+	}
+
+	@Override
+	public void outcome(String host, LoginOutcome outcome) {
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+public final class NoOpOpenIdTracer implements OpenIdTracer, OpenIdSpan {
+
+	public static final NoOpOpenIdTracer INSTANCE = new NoOpOpenIdTracer();
+
+	private NoOpOpenIdTracer() {
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public OpenIdSpan start(LoginPhase phase) {
+		return this;
+	}
+
+	@Override
+	public void end(String host, LoginOutcome outcome) {
+	}
+}
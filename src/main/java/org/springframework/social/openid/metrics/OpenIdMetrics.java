@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+/**
+ * Receives timings and outcomes of the OpenID login flow. Hosts are the host
+ * of the discovered OP endpoint where known, otherwise the host of the claimed
+ * identifier (discovery, failed or rejected initiation), which is user
+ * supplied. Implementations must be thread-safe and cheap, they are called on
+ * the login path.
+ */
+public interface OpenIdMetrics {
+
+	/**
+	 * @return <code>false</code> if timings should not even be taken
+	 */
+	boolean isEnabled();
+
+	void discovery(String host, long nanos, boolean success);
+
+	void association(String opHost, long nanos, boolean success);
+
+	/**
+	 * Time to build the redirect to the OP, including discovery and
+	 * association.
+	 */
+	void redirect(String host, long nanos, boolean success);
+
+	void verification(String opHost, long nanos, boolean success);
+
+	void outcome(String host, LoginOutcome outcome);
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+/**
+ * A phase started by {@link OpenIdTracer#start(LoginPhase)}.
+ */
+public interface OpenIdSpan {
+
+	/**
+	 * Ends the phase, further calls are ignored.
+	 * 
+	 * @param host
+	 *            host of the OP where known, otherwise of the claimed
+	 *            identifier, <code>null</code> if neither applies
+	 * @param outcome
+	 *            {@link LoginOutcome#SUCCESS} or {@link LoginOutcome#FAILURE}
+	 *            for steps, the outcome of the login for
+	 *            {@link LoginPhase#AUTH_TOKEN}
+	 */
+	void end(String host, LoginOutcome outcome);
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+/**
+ * Traces individual phases of the OpenID login flow as they happen, e.g. as
+ * Java Flight Recorder events (see the <tt>jfr</tt> module). Unlike
+ * {@link OpenIdMetrics}, spans start when a phase begins, so tools can
+ * correlate them with whatever else happened meanwhile. Phases may nest, e.g.
+ * {@link LoginPhase#DISCOVERY} within {@link LoginPhase#AUTH_TOKEN}.
+ * Implementations must be thread-safe and cheap when not tracing, they are
+ * called on the login path.
+ */
+public interface OpenIdTracer {
+
+	/**
+	 * @return <code>false</code> if phases are not traced at the moment, e.g.
+	 *         without active recording
+	 */
+	boolean isEnabled();
+
+	/**
+	 * @return a span to end on the same thread once the phase completed,
+	 *         never <code>null</code>
+	 */
+	OpenIdSpan start(LoginPhase phase);
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link OpenIdMetrics} keeping {@link Timer}s and counters per host in
+ * memory, e.g. for export to a monitoring system. As hosts of claimed
+ * identifiers are user supplied, only OP hosts are tracked individually: the
+ * configured {@link #setHosts(Collection) hosts} or, if none are configured,
+ * up to {@link #setMaxHosts(int) maxHosts} OP hosts after their first
+ * successful association or verification. All others are aggregated as
+ * {@link #OTHER_HOST}.
+ */
+public class RegistryOpenIdMetrics implements OpenIdMetrics {
+
+	public static final String OTHER_HOST = "other";
+	public static final int DEFAULT_MAX_HOSTS = 100;
+
+	private final ConcurrentMap<String, HostMetrics> hosts = new ConcurrentHashMap<String, HostMetrics>();
+	private final HostMetrics other = new HostMetrics();
+	private volatile int maxHosts = DEFAULT_MAX_HOSTS;
+	private volatile boolean trackSuccessfulHosts = true;
+
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+
+	@Override
+	public void discovery(String host, long nanos, boolean success) {
+		HostMetrics metrics = getHostMetrics(host);
+		(success ? metrics.discovery : metrics.discoveryFailure).record(nanos);
+	}
+
+	@Override
+	public void association(String opHost, long nanos, boolean success) {
+		HostMetrics metrics = success ? track(opHost) : getHostMetrics(opHost);
+		(success ? metrics.association : metrics.associationFailure).record(nanos);
+	}
+
+	@Override
+	public void redirect(String host, long nanos, boolean success) {
+		HostMetrics metrics = getHostMetrics(host);
+		(success ? metrics.redirect : metrics.redirectFailure).record(nanos);
+	}
+
+	@Override
+	public void verification(String opHost, long nanos, boolean success) {
+		HostMetrics metrics = success ? track(opHost) : getHostMetrics(opHost);
+		(success ? metrics.verification : metrics.verificationFailure).record(nanos);
+	}
+
+	@Override
+	public void outcome(String host, LoginOutcome outcome) {
+		getHostMetrics(host).outcomes[outcome.ordinal()].incrementAndGet();
+	}
+
+	/**
+	 * @return metrics by host, including {@link #OTHER_HOST}
+	 */
+	public Map<String, HostMetrics> getHosts() {
+		Map<String, HostMetrics> copy = new TreeMap<String, HostMetrics>(hosts);
+		copy.put(OTHER_HOST, other);
+		return Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * @param maxHosts
+	 *            OP hosts to track after successful association or
+	 *            verification unless hosts are configured, defaults to
+	 *            {@link #DEFAULT_MAX_HOSTS}
+	 */
+	public void setMaxHosts(int maxHosts) {
+		this.maxHosts = maxHosts;
+	}
+
+	/**
+	 * Tracks only the given OP hosts individually (e.g.
+	 * <tt>www.google.com</tt>), no others are added.
+	 */
+	public void setHosts(Collection<String> hosts) {
+		trackSuccessfulHosts = false;
+		for (String host : hosts) {
+			this.hosts.putIfAbsent(host, new HostMetrics());
+		}
+	}
+
+	private HostMetrics getHostMetrics(String host) {
+		HostMetrics metrics = host == null ? null : hosts.get(host);
+		return metrics == null ? other : metrics;
+	}
+
+	/**
+	 * @return metrics of an OP host that proved to be a working OP
+	 */
+	private HostMetrics track(String opHost) {
+		HostMetrics metrics = getHostMetrics(opHost);
+		if (metrics == other && opHost != null && trackSuccessfulHosts && hosts.size() < maxHosts) {
+			HostMetrics newMetrics = new HostMetrics();
+			metrics = hosts.putIfAbsent(opHost, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+			}
+		}
+		return metrics;
+	}
+
+	public static final class HostMetrics {
+
+		private final Timer discovery = new Timer();
+		private final Timer discoveryFailure = new Timer();
+		private final Timer association = new Timer();
+		private final Timer associationFailure = new Timer();
+		private final Timer redirect = new Timer();
+		private final Timer redirectFailure = new Timer();
+		private final Timer verification = new Timer();
+		private final Timer verificationFailure = new Timer();
+		private final AtomicLong[] outcomes = new AtomicLong[LoginOutcome.values().length];
+
+		private HostMetrics() {
+			for (int i = 0; i < outcomes.length; i++) {
+				outcomes[i] = new AtomicLong();
+			}
+		}
+
+		public Timer getDiscovery(boolean success) {
+			return success ? discovery : discoveryFailure;
+		}
+
+		public Timer getAssociation(boolean success) {
+			return success ? association : associationFailure;
+		}
+
+		public Timer getRedirect(boolean success) {
+			return success ? redirect : redirectFailure;
+		}
+
+		public Timer getVerification(boolean success) {
+			return success ? verification : verificationFailure;
+		}
+
+		public long getCount(LoginOutcome outcome) {
+			return outcomes[outcome.ordinal()].get();
+		}
+	}
+}
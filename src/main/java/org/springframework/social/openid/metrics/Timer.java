@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free count, total and maximum of recorded durations.
+ */
+public final class Timer {
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			// retry
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getTotalTime(TimeUnit unit) {
+		return (double) totalNanos.get() / unit.toNanos(1);
+	}
+
+	public double getMean(TimeUnit unit) {
+		long count = getCount();
+		return count == 0 ? 0 : getTotalTime(unit) / count;
+	}
+
+	public double getMax(TimeUnit unit) {
+		return (double) maxNanos.get() / unit.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + getMean(TimeUnit.MILLISECONDS) + "ms, max="
+				+ getMax(TimeUnit.MILLISECONDS) + "ms";
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Copy of everything an {@link org.springframework.security.openid.OpenIDConsumer}
+ * reads from a callback, taken on the request thread before verification is
+ * handed to another thread. Containers don't guarantee that request objects
+ * are safe to use from other threads, let alone after the request was
+ * dispatched again.
+ */
+final class CapturedRequest extends HttpServletRequestWrapper {
+
+	private final String requestUrl;
+	private final String queryString;
+	private final Map<String, String[]> parameters;
+	private final Map<String, Object> attributes;
+	private final HttpSession session;
+
+	@SuppressWarnings("unchecked")
+	CapturedRequest(HttpServletRequest request) {
+		super(request);
+		requestUrl = request.getRequestURL().toString();
+		queryString = request.getQueryString();
+		parameters = Collections.unmodifiableMap(new HashMap<String, String[]>(request.getParameterMap()));
+		attributes = new ConcurrentHashMap<String, Object>();
+		Enumeration<String> names = request.getAttributeNames();
+		while (names.hasMoreElements()) {
+			String name = names.nextElement();
+			Object value = request.getAttribute(name);
+			if (value != null) {
+				attributes.put(name, value);
+			}
+		}
+		session = request.getSession(false);
+	}
+
+	@Override
+	public StringBuffer getRequestURL() {
+		return new StringBuffer(requestUrl);
+	}
+
+	@Override
+	public String getQueryString() {
+		return queryString;
+	}
+
+	@Override
+	public String getParameter(String name) {
+		String[] values = parameters.get(name);
+		return values == null || values.length == 0 ? null : values[0];
+	}
+
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		return parameters;
+	}
+
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return Collections.enumeration(parameters.keySet());
+	}
+
+	@Override
+	public String[] getParameterValues(String name) {
+		String[] values = parameters.get(name);
+		return values == null ? null : values.clone();
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		return Collections.enumeration(attributes.keySet());
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, value);
+		}
+	}
+
+	@Override
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+
+	/**
+	 * @return the session as of capturing, never creates one
+	 */
+	@Override
+	public HttpSession getSession(boolean create) {
+		if (session == null && create) {
+			throw new IllegalStateException("can't create a session while verifying asynchronously");
+		}
+		return session;
+	}
+
+	@Override
+	public HttpSession getSession() {
+		return getSession(true);
+	}
+}
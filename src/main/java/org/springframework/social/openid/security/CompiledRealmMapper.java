@@ -0,0 +1,344 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.util.Assert;
+
+/**
+ * {@link IRequestRealmMapper} for many virtual hosts. Host patterns are
+ * compiled into a trie of host labels once, resolved realms are memoized per
+ * host. Neither URL parsing nor regular expressions are involved in
+ * resolution.
+ *
+ * Patterns are either host names (<tt>www.example.com</tt>), wildcards
+ * matching all subdomains (<tt>*.example.com</tt>) or <tt>*</tt> matching
+ * all hosts. The most specific pattern wins. Realms are templates that may
+ * contain <tt>{scheme}</tt>, <tt>{host}</tt> and <tt>{port}</tt> (<tt>:</tt>
+ * followed by the port, empty for default ports), for example: <pre>
+ * *.example.com -> {scheme}://*.example.com{port}/
+ * </pre> Hosts without matching pattern are mapped to
+ * <tt>{scheme}://{host}{port}/</tt> or, if wildcard fallback is enabled, the
+ * way {@link WildcardRealmMapper} does, except for IP addresses. IPv6 hosts
+ * keep their brackets, <tt>[::1]</tt>.
+ */
+public class CompiledRealmMapper implements IRequestRealmMapper {
+
+	public static final int DEFAULT_MAX_MEMOIZED_HOSTS = 10000;
+
+	private static final int MAX_PORT = 65535;
+
+	private static final Template DEFAULT_TEMPLATE = new Template("{scheme}://{host}{port}/");
+
+	private volatile Node root = new Node();
+	private volatile boolean wildcardFallback = false;
+	private int maxMemoizedHosts = DEFAULT_MAX_MEMOIZED_HOSTS;
+
+	private final ConcurrentMap<String, HostRealms> memo = new ConcurrentHashMap<String, HostRealms>();
+
+	@Override
+	public String getMapping(String returnToUrl) {
+		// parse scheme://host[:port]/... without java.net.URL
+		int schemeEnd = returnToUrl.indexOf("://");
+		if (schemeEnd <= 0) {
+			return null;
+		}
+		int hostStart = schemeEnd + 3;
+		int hostEnd;
+		if (hostStart < returnToUrl.length() && returnToUrl.charAt(hostStart) == '[') {
+			// IPv6 literal, keeping the brackets
+			hostEnd = returnToUrl.indexOf(']', hostStart) + 1;
+			if (hostEnd == 0) {
+				return null;
+			}
+		} else {
+			hostEnd = hostStart;
+			while (hostEnd < returnToUrl.length() && "/:?#".indexOf(returnToUrl.charAt(hostEnd)) < 0) {
+				hostEnd++;
+			}
+			if (hostEnd == hostStart) {
+				return null;
+			}
+		}
+
+		int port = -1;
+		if (hostEnd < returnToUrl.length()) {
+			char next = returnToUrl.charAt(hostEnd);
+			if (next == ':') {
+				port = 0;
+				for (int i = hostEnd + 1; i < returnToUrl.length() && "/?#".indexOf(returnToUrl.charAt(i)) < 0; i++) {
+					char c = returnToUrl.charAt(i);
+					if (c < '0' || c > '9') {
+						return null;
+					}
+					port = port * 10 + (c - '0');
+					if (port > MAX_PORT) {
+						return null;
+					}
+				}
+			} else if ("/?#".indexOf(next) < 0) {
+				// e.g. characters after an IPv6 literal
+				return null;
+			}
+		}
+
+		return getMapping(returnToUrl.substring(0, schemeEnd), returnToUrl.substring(hostStart, hostEnd), port);
+	}
+
+	@Override
+	public String getMapping(String scheme, String host, int port) {
+		HostRealms realms = memo.get(host);
+		if (realms == null) {
+			realms = new HostRealms(host.toLowerCase(Locale.ENGLISH), resolve(host.toLowerCase(Locale.ENGLISH)));
+			if (memo.size() < maxMemoizedHosts) {
+				// host names come from clients, don't memoize without bounds
+				memo.putIfAbsent(host, realms);
+			}
+		}
+		return realms.getRealm(scheme, port);
+	}
+
+	/**
+	 * @param realmMapping
+	 *            host patterns mapped to realm templates
+	 */
+	public void setRealmMapping(Map<String, String> realmMapping) {
+		Node newRoot = new Node();
+		for (Map.Entry<String, String> e : realmMapping.entrySet()) {
+			newRoot.add(e.getKey().trim().toLowerCase(Locale.ENGLISH), new Template(e.getValue()));
+		}
+		root = newRoot;
+		memo.clear();
+	}
+
+	/**
+	 * @param wildcardFallback
+	 *            map hosts without matching pattern to wildcard realms like
+	 *            {@link WildcardRealmMapper}, defaults to <code>false</code>
+	 */
+	public void setWildcardFallback(boolean wildcardFallback) {
+		this.wildcardFallback = wildcardFallback;
+		memo.clear();
+	}
+
+	public void setMaxMemoizedHosts(int maxMemoizedHosts) {
+		this.maxMemoizedHosts = maxMemoizedHosts;
+	}
+
+	private Template resolve(String host) {
+		Node node = root;
+		Template match = node.wildcard;
+
+		int end = host.length();
+		while (true) {
+			int start = host.lastIndexOf('.', end - 1) + 1;
+			Node child = node.children.get(host.substring(start, end));
+			if (child == null) {
+				break;
+			}
+			node = child;
+			if (start == 0) {
+				// all labels consumed
+				if (node.exact != null) {
+					return node.exact;
+				}
+				break;
+			}
+			if (node.wildcard != null) {
+				match = node.wildcard;
+			}
+			end = start - 1;
+		}
+
+		if (match != null) {
+			return match;
+		}
+		return wildcardFallback ? wildcardTemplate(host) : DEFAULT_TEMPLATE;
+	}
+
+	private static Template wildcardTemplate(String host) {
+		if (isIpLiteral(host)) {
+			return DEFAULT_TEMPLATE;
+		}
+		int last = host.lastIndexOf('.');
+		int secondLast = last > 0 ? host.lastIndexOf('.', last - 1) : -1;
+		if (secondLast < 0) {
+			return DEFAULT_TEMPLATE;
+		}
+		return new Template("{scheme}://*." + host.substring(secondLast + 1) + "{port}/");
+	}
+
+	/**
+	 * @return <code>true</code> for IPv6 literals in brackets and IPv4
+	 *         addresses, i.e. hosts without subdomains
+	 */
+	private static boolean isIpLiteral(String host) {
+		if (host.startsWith("[")) {
+			return true;
+		}
+		for (int i = host.lastIndexOf('.') + 1; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDefaultPort(String scheme, int port) {
+		return port <= 0 || port == 80 && "http".equals(scheme) || port == 443 && "https".equals(scheme);
+	}
+
+	private static final class Node {
+
+		private final Map<String, Node> children = new HashMap<String, Node>(4);
+		private Template exact;
+		private Template wildcard;
+
+		private void add(String pattern, Template template) {
+			if ("*".equals(pattern)) {
+				wildcard = template;
+				return;
+			}
+
+			boolean isWildcard = pattern.startsWith("*.");
+			String host = isWildcard ? pattern.substring(2) : pattern;
+			Assert.isTrue(host.length() > 0 && host.indexOf('*') < 0, "invalid host pattern: " + pattern);
+
+			Node node = this;
+			int end = host.length();
+			while (end > 0) {
+				int start = host.lastIndexOf('.', end - 1) + 1;
+				String label = host.substring(start, end);
+				Node child = node.children.get(label);
+				if (child == null) {
+					node.children.put(label, child = new Node());
+				}
+				node = child;
+				end = start - 1;
+			}
+
+			if (isWildcard) {
+				node.wildcard = template;
+			} else {
+				node.exact = template;
+			}
+		}
+	}
+
+	private enum Placeholder {
+		SCHEME("{scheme}"), HOST("{host}"), PORT("{port}");
+
+		private final String token;
+
+		private Placeholder(String token) {
+			this.token = token;
+		}
+	}
+
+	/**
+	 * Realm template split into literals and {@link Placeholder}s once.
+	 */
+	private static final class Template {
+
+		private final Object[] parts;
+
+		private Template(String template) {
+			List<Object> parts = new ArrayList<Object>();
+			StringBuilder literal = new StringBuilder();
+			int pos = 0;
+			while (pos < template.length()) {
+				Placeholder placeholder = null;
+				if (template.charAt(pos) == '{') {
+					for (Placeholder p : Placeholder.values()) {
+						if (template.startsWith(p.token, pos)) {
+							placeholder = p;
+						}
+					}
+				}
+				if (placeholder == null) {
+					literal.append(template.charAt(pos++));
+				} else {
+					if (literal.length() > 0) {
+						parts.add(literal.toString());
+						literal.setLength(0);
+					}
+					parts.add(placeholder);
+					pos += placeholder.token.length();
+				}
+			}
+			if (literal.length() > 0) {
+				parts.add(literal.toString());
+			}
+			this.parts = parts.toArray();
+		}
+
+		private String render(String scheme, String host, int port) {
+			StringBuilder buf = new StringBuilder(64);
+			for (Object part : parts) {
+				if (part == Placeholder.SCHEME) {
+					buf.append(scheme);
+				} else if (part == Placeholder.HOST) {
+					buf.append(host);
+				} else if (part == Placeholder.PORT) {
+					if (!isDefaultPort(scheme, port)) {
+						buf.append(':').append(port);
+					}
+				} else {
+					buf.append((String) part);
+				}
+			}
+			return buf.toString();
+		}
+	}
+
+	/**
+	 * Realms of a single host, rendered once for default ports.
+	 */
+	private static final class HostRealms {
+
+		private final String host;
+		private final Template template;
+		private final String http;
+		private final String https;
+
+		private HostRealms(String host, Template template) {
+			this.host = host;
+			this.template = template;
+			this.http = template.render("http", host, -1);
+			this.https = template.render("https", host, -1);
+		}
+
+		private String getRealm(String scheme, int port) {
+			if (isDefaultPort(scheme, port)) {
+				if ("https".equals(scheme)) {
+					return https;
+				} else if ("http".equals(scheme)) {
+					return http;
+				}
+			}
+			return template.render(scheme, host, port);
+		}
+	}
+}
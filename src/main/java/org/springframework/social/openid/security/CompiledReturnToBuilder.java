@@ -0,0 +1,221 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.social.openid.metrics.LoginOutcome;
+import org.springframework.social.openid.metrics.LoginPhase;
+import org.springframework.social.openid.metrics.NoOpOpenIdTracer;
+import org.springframework.social.openid.metrics.OpenIdSpan;
+import org.springframework.social.openid.metrics.OpenIdTracer;
+import org.springframework.util.Assert;
+
+/**
+ * Default {@link IReturnToBuilder}: the URL of the current request plus the
+ * configured request parameters, properly URL encoded. Parameter names are
+ * encoded once, the origin (<tt>scheme://host[:port]</tt>) is memoized per
+ * host, so building a <tt>return_to</tt> takes a single presized buffer.
+ * 
+ * Realms are resolved by the {@link IRealmMapper}, from the request if it is
+ * an {@link IRequestRealmMapper}. Without mapping, the realm is the origin of
+ * the request.
+ */
+public class CompiledReturnToBuilder implements IReturnToBuilder {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CompiledReturnToBuilder.class);
+
+	public static final int DEFAULT_MAX_MEMOIZED_HOSTS = 1000;
+
+	private static final String ENCODING = "UTF-8";
+
+	private final String[] names;
+	private final String[] prefixes;
+	private final IRealmMapper realmMapper;
+	private int maxMemoizedHosts = DEFAULT_MAX_MEMOIZED_HOSTS;
+	private volatile OpenIdTracer tracer = NoOpOpenIdTracer.INSTANCE;
+
+	private final ConcurrentMap<String, Origin> memo = new ConcurrentHashMap<String, Origin>();
+
+	/**
+	 * @param returnToUrlParameters
+	 *            names of request parameters to append
+	 * @param realmMapper
+	 *            may be <code>null</code>
+	 */
+	public CompiledReturnToBuilder(Collection<String> returnToUrlParameters, IRealmMapper realmMapper) {
+		Assert.notNull(returnToUrlParameters, "returnToUrlParameters cannot be null");
+		names = returnToUrlParameters.toArray(new String[returnToUrlParameters.size()]);
+		prefixes = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			prefixes[i] = encode(names[i]) + "=";
+		}
+		this.realmMapper = realmMapper;
+	}
+
+	@Override
+	public ReturnTo build(HttpServletRequest request) {
+		Origin origin = getOrigin(request.getScheme(), request.getServerName(), request.getServerPort());
+		String path = request.getRequestURI();
+
+		String[] values = null;
+		int length = origin.origin.length() + path.length();
+		for (int i = 0; i < names.length; i++) {
+			String value = request.getParameter(names[i]);
+			if (value != null) {
+				if (values == null) {
+					values = new String[names.length];
+				}
+				values[i] = encode(value);
+				length += prefixes[i].length() + values[i].length() + 1;
+			}
+		}
+
+		String url;
+		if (values == null) {
+			url = origin.origin.concat(path);
+		} else {
+			StringBuilder buf = new StringBuilder(length);
+			buf.append(origin.origin).append(path);
+			char separator = '?';
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					buf.append(separator).append(prefixes[i]).append(values[i]);
+					separator = '&';
+				}
+			}
+			url = buf.toString();
+		}
+
+		return new ReturnTo(url, lookupRealm(request, url, origin));
+	}
+
+	/**
+	 * @return the realm of a <tt>return_to</tt> URL built for the request
+	 */
+	public String lookupRealm(HttpServletRequest request, String returnToUrl) {
+		return lookupRealm(request, returnToUrl,
+				getOrigin(request.getScheme(), request.getServerName(), request.getServerPort()));
+	}
+
+	/**
+	 * @return the realm of a <tt>return_to</tt> URL, <code>null</code> if it
+	 *         isn't mapped nor a valid URL
+	 */
+	public String lookupRealm(String returnToUrl) {
+		OpenIdSpan span = tracer.start(LoginPhase.LOOKUP_REALM);
+		String realm = null;
+		try {
+			realm = realmMapper == null ? null : realmMapper.getMapping(returnToUrl);
+			if (realm == null) {
+				try {
+					URL url = new URL(returnToUrl);
+					realm = new Origin(url.getProtocol(), url.getHost(), url.getPort()).realm;
+				} catch (MalformedURLException e) {
+					log.warn("returnToUrl was not a valid URL: [" + returnToUrl + "]", e);
+				}
+			}
+			return realm;
+		} finally {
+			span.end(null, realm != null ? LoginOutcome.SUCCESS : LoginOutcome.FAILURE);
+		}
+	}
+
+	private String lookupRealm(HttpServletRequest request, String url, Origin origin) {
+		OpenIdSpan span = tracer.start(LoginPhase.LOOKUP_REALM);
+		String realm = null;
+		try {
+			if (realmMapper instanceof IRequestRealmMapper) {
+				realm = ((IRequestRealmMapper) realmMapper).getMapping(request.getScheme(),
+						request.getServerName(), request.getServerPort());
+			}
+			if (realm == null && realmMapper != null) {
+				realm = realmMapper.getMapping(url);
+			}
+			if (realm == null) {
+				realm = origin.realm;
+			}
+			return realm;
+		} finally {
+			span.end(null, realm != null ? LoginOutcome.SUCCESS : LoginOutcome.FAILURE);
+		}
+	}
+
+	/**
+	 * @param maxMemoizedHosts
+	 *            hosts to memoize origins for, defaults to
+	 *            {@link #DEFAULT_MAX_MEMOIZED_HOSTS}
+	 */
+	public void setMaxMemoizedHosts(int maxMemoizedHosts) {
+		this.maxMemoizedHosts = maxMemoizedHosts;
+	}
+
+	/**
+	 * @param tracer
+	 *            traces realm lookups as {@link LoginPhase#LOOKUP_REALM}
+	 */
+	public void setTracer(OpenIdTracer tracer) {
+		Assert.notNull(tracer, "tracer must not be null");
+		this.tracer = tracer;
+	}
+
+	private Origin getOrigin(String scheme, String host, int port) {
+		Origin origin = memo.get(host);
+		if (origin == null || origin.port != port || !origin.scheme.equals(scheme)) {
+			origin = new Origin(scheme, host, port);
+			if (memo.size() < maxMemoizedHosts) {
+				memo.put(host, origin);
+			}
+		}
+		return origin;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(ENCODING + " not supported", e);
+		}
+	}
+
+	private static boolean isDefaultPort(String scheme, int port) {
+		return port <= 0 || port == 80 && "http".equals(scheme) || port == 443 && "https".equals(scheme);
+	}
+
+	private static final class Origin {
+
+		private final String scheme;
+		private final int port;
+		private final String origin;
+		private final String realm;
+
+		private Origin(String scheme, String host, int port) {
+			this.scheme = scheme;
+			this.port = port;
+			this.origin = isDefaultPort(scheme, port) ? scheme + "://" + host : scheme + "://" + host + ":" + port;
+			this.realm = origin + "/";
+		}
+	}
+}
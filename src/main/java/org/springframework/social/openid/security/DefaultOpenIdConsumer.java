@@ -0,0 +1,283 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.openid4java.OpenIDException;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.consumer.VerificationResult;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.Message;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.MessageExtension;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchRequest;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegRequest;
+import org.openid4java.message.sreg.SRegResponse;
+import org.springframework.security.openid.OpenIDAttribute;
+import org.springframework.security.openid.OpenIDAuthenticationStatus;
+import org.springframework.security.openid.OpenIDAuthenticationToken;
+import org.springframework.security.openid.OpenIDConsumer;
+import org.springframework.security.openid.OpenIDConsumerException;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * {@link OpenIDConsumer} on an openid4java {@link ConsumerManager}, like
+ * Spring Security's <tt>OpenID4JavaConsumer</tt> but verifying responses from
+ * the parameters parsed by {@link OpenIdRequest} instead of copying the whole
+ * parameter map. Requests attributes via Attribute Exchange and, for OPs
+ * supporting it only, Simple Registration.
+ */
+public class DefaultOpenIdConsumer implements OpenIDConsumer {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DefaultOpenIdConsumer.class);
+
+	/**
+	 * <tt>return_to</tt> parameter carrying the {@link DiscoveryStateToken} in
+	 * stateless mode
+	 */
+	public static final String STATE_PARAMETER = "openid_state";
+
+	private static final String DISCOVERY_INFO_KEY = DiscoveryInformation.class.getName();
+
+	private final ConsumerManager consumerManager;
+	private List<OpenIDAttribute> attributes = Collections.emptyList();
+	private boolean simpleRegistration = true;
+	private DiscoveryStateToken stateToken;
+
+	public DefaultOpenIdConsumer(ConsumerManager consumerManager) {
+		Assert.notNull(consumerManager, "consumerManager must not be null");
+		this.consumerManager = consumerManager;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public String beginConsumption(HttpServletRequest req, String identityUrl, String returnToUrl, String realm)
+			throws OpenIDConsumerException {
+		try {
+			List discoveries = consumerManager.discover(identityUrl);
+			DiscoveryInformation information = consumerManager.associate(discoveries);
+			if (information == null) {
+				throw new OpenIDConsumerException("No OpenID endpoint found for " + identityUrl);
+			}
+			if (stateToken != null) {
+				returnToUrl = appendState(returnToUrl, stateToken.encode(information));
+			} else {
+				req.getSession().setAttribute(DISCOVERY_INFO_KEY, information);
+			}
+
+			AuthRequest authReq = consumerManager.authenticate(information, returnToUrl, realm);
+			addAttributeRequests(authReq);
+			return authReq.getDestinationUrl(true);
+		} catch (OpenIDException e) {
+			throw new OpenIDConsumerException("Error processing OpenID authentication request", e);
+		}
+	}
+
+	@Override
+	public OpenIDAuthenticationToken endConsumption(HttpServletRequest request) throws OpenIDConsumerException {
+		DiscoveryInformation discovered = null;
+		String state = stateToken == null ? null : request.getParameter(STATE_PARAMETER);
+		if (state != null) {
+			// without valid state, verification discovers the claimed identifier again
+			discovered = stateToken.decode(state, consumerManager.getDiscovery());
+		} else {
+			HttpSession session = request.getSession(false);
+			if (session != null) {
+				discovered = (DiscoveryInformation) session.getAttribute(DISCOVERY_INFO_KEY);
+				session.removeAttribute(DISCOVERY_INFO_KEY);
+			}
+		}
+
+		StringBuffer receivingUrl = request.getRequestURL();
+		String queryString = request.getQueryString();
+		if (StringUtils.hasLength(queryString)) {
+			receivingUrl.append('?').append(queryString);
+		}
+
+		VerificationResult verification;
+		try {
+			verification = consumerManager.verify(receivingUrl.toString(), OpenIdRequest.get(request)
+					.toParameterList(), discovered);
+		} catch (OpenIDException e) {
+			throw new OpenIDConsumerException("Error verifying openid response", e);
+		}
+
+		Identifier verified = verification.getVerifiedId();
+		if (verified == null) {
+			Identifier id = discovered == null ? null : discovered.getClaimedIdentifier();
+			log.debug("verification failed: {}", verification.getStatusMsg());
+			return new OpenIDAuthenticationToken(OpenIDAuthenticationStatus.FAILURE, id == null ? "Unknown"
+					: id.getIdentifier(), "Verification status message: [" + verification.getStatusMsg() + "]",
+					Collections.<OpenIDAttribute> emptyList());
+		}
+
+		return new OpenIDAuthenticationToken(OpenIDAuthenticationStatus.SUCCESS, verified.getIdentifier(),
+				"some message", getAttributes(verification.getAuthResponse()));
+	}
+
+	private static String appendState(String returnToUrl, String state) {
+		StringBuilder buf = new StringBuilder(returnToUrl.length() + STATE_PARAMETER.length() + state.length() + 2);
+		buf.append(returnToUrl);
+		char last = returnToUrl.charAt(returnToUrl.length() - 1);
+		if (returnToUrl.indexOf('?') < 0) {
+			buf.append('?');
+		} else if (last != '?' && last != '&') {
+			buf.append('&');
+		}
+		return buf.append(STATE_PARAMETER).append('=').append(state).toString();
+	}
+
+	private void addAttributeRequests(AuthRequest authReq) throws MessageException {
+		if (attributes.isEmpty()) {
+			return;
+		}
+
+		FetchRequest fetchRequest = FetchRequest.createFetchRequest();
+		SRegRequest sregRequest = simpleRegistration ? SRegRequest.createFetchRequest() : null;
+		for (OpenIDAttribute attribute : attributes) {
+			fetchRequest.addAttribute(attribute.getName(), attribute.getType(), attribute.isRequired(),
+					attribute.getCount());
+			String sregName = OpenIdAttributes.getSRegName(attribute.getType());
+			if (sregRequest != null && sregName != null) {
+				sregRequest.addAttribute(sregName, attribute.isRequired());
+			}
+		}
+		authReq.addExtension(fetchRequest);
+		if (sregRequest != null && !sregRequest.getAttributes().isEmpty()) {
+			authReq.addExtension(sregRequest);
+		}
+	}
+
+	/**
+	 * @return requested attributes found in AX or SReg response, preferring AX
+	 */
+	@SuppressWarnings("unchecked")
+	private List<OpenIDAttribute> getAttributes(Message response) throws OpenIDConsumerException {
+		if (attributes.isEmpty() || !(response instanceof AuthSuccess)) {
+			return Collections.emptyList();
+		}
+
+		try {
+			FetchResponse fetchResponse = null;
+			if (response.hasExtension(AxMessage.OPENID_NS_AX)) {
+				MessageExtension ext = response.getExtension(AxMessage.OPENID_NS_AX);
+				if (ext instanceof FetchResponse) {
+					fetchResponse = (FetchResponse) ext;
+				}
+			}
+			SRegResponse sregResponse = null;
+			if (simpleRegistration) {
+				for (String ns : new String[] { SRegMessage.OPENID_NS_SREG11, SRegMessage.OPENID_NS_SREG }) {
+					if (sregResponse == null && response.hasExtension(ns)) {
+						MessageExtension ext = response.getExtension(ns);
+						if (ext instanceof SRegResponse) {
+							sregResponse = (SRegResponse) ext;
+						}
+					}
+				}
+			}
+
+			List<OpenIDAttribute> received = new ArrayList<OpenIDAttribute>(attributes.size());
+			for (OpenIDAttribute attribute : attributes) {
+				List<String> values = Collections.emptyList();
+				if (fetchResponse != null) {
+					values = nonNull(fetchResponse.getAttributeValues(attribute.getName()));
+				}
+				if (values.isEmpty() && sregResponse != null) {
+					String sregName = OpenIdAttributes.getSRegName(attribute.getType());
+					String value = sregName == null ? null : sregResponse.getAttributeValue(sregName);
+					if (value != null) {
+						values = Collections.singletonList(value);
+					}
+				}
+				if (!values.isEmpty()) {
+					received.add(new OpenIDAttribute(attribute.getName(), attribute.getType(), values));
+				}
+			}
+			return received;
+		} catch (MessageException e) {
+			throw new OpenIDConsumerException("Attribute retrieval failed", e);
+		}
+	}
+
+	/**
+	 * @return values without <code>null</code>, which openid4java returns for
+	 *         aliases missing from an AX response
+	 */
+	private static List<String> nonNull(List<?> values) {
+		List<String> list = new ArrayList<String>(values.size());
+		for (Object value : values) {
+			if (value != null) {
+				list.add((String) value);
+			}
+		}
+		return list;
+	}
+
+	public ConsumerManager getConsumerManager() {
+		return consumerManager;
+	}
+
+	public List<OpenIDAttribute> getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * @param attributes
+	 *            attributes to request via Attribute Exchange, none by
+	 *            default. See {@link OpenIdAttributes#profileAttributes()}.
+	 */
+	public void setAttributes(List<OpenIDAttribute> attributes) {
+		Assert.notNull(attributes, "attributes must not be null");
+		this.attributes = OpenIdAttributes.copy(attributes);
+	}
+
+	/**
+	 * Enables stateless mode, carrying discovery results in a signed
+	 * <tt>return_to</tt> parameter instead of the session. Callbacks may then
+	 * be handled by any node sharing the same key.
+	 * 
+	 * @param stateToken
+	 *            <code>null</code> (default) to keep discovery results in the
+	 *            session
+	 */
+	public void setStateToken(DiscoveryStateToken stateToken) {
+		this.stateToken = stateToken;
+	}
+
+	/**
+	 * @param simpleRegistration
+	 *            whether to request known attributes via Simple Registration
+	 *            too, defaults to <code>true</code>
+	 */
+	public void setSimpleRegistration(boolean simpleRegistration) {
+		this.simpleRegistration = simpleRegistration;
+	}
+}
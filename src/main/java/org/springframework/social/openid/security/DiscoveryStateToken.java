@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.springframework.util.Assert;
+import org.springframework.util.Base64Utils;
+
+/**
+ * Encodes {@link DiscoveryInformation} into a compact, URL safe token signed
+ * with HMAC-SHA256 and expiring after {@link #setTimeToLive(long)}, allowing
+ * to verify assertions without keeping discovery results in the session.
+ */
+public class DiscoveryStateToken {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DiscoveryStateToken.class);
+
+	public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000L;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final char SEPARATOR = '\n';
+
+	private final Mac prototype;
+	private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	/**
+	 * @param key
+	 *            secret shared by all nodes verifying tokens, at least 16
+	 *            bytes
+	 */
+	public DiscoveryStateToken(byte[] key) {
+		Assert.isTrue(key != null && key.length >= 16, "key must have at least 16 bytes");
+		try {
+			prototype = Mac.getInstance(ALGORITHM);
+			prototype.init(new SecretKeySpec(key, ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("failed to initialize " + ALGORITHM, e);
+		}
+	}
+
+	public String encode(DiscoveryInformation discovered) {
+		StringBuilder buf = new StringBuilder(256);
+		buf.append(System.currentTimeMillis() + timeToLive).append(SEPARATOR);
+		buf.append(discovered.getOPEndpoint()).append(SEPARATOR);
+		if (discovered.hasClaimedIdentifier()) {
+			buf.append(discovered.getClaimedIdentifier().getIdentifier());
+		}
+		buf.append(SEPARATOR);
+		if (discovered.hasDelegateIdentifier()) {
+			buf.append(discovered.getDelegateIdentifier());
+		}
+		buf.append(SEPARATOR).append(discovered.getVersion());
+
+		byte[] payload = buf.toString().getBytes(UTF_8);
+		return encode(payload) + '.' + encode(mac(payload));
+	}
+
+	/**
+	 * @return the decoded state or <code>null</code> if the token is invalid
+	 *         or expired
+	 */
+	public DiscoveryInformation decode(String token, Discovery discovery) {
+		int dot = token.indexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+
+		byte[] payload;
+		byte[] signature;
+		try {
+			payload = decode(token.substring(0, dot));
+			signature = decode(token.substring(dot + 1));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (!MessageDigest.isEqual(signature, mac(payload))) {
+			log.debug("invalid signature of discovery state");
+			return null;
+		}
+
+		String[] fields = new String(payload, UTF_8).split(String.valueOf(SEPARATOR), -1);
+		if (fields.length != 5) {
+			return null;
+		}
+		try {
+			if (Long.parseLong(fields[0]) < System.currentTimeMillis()) {
+				log.debug("discovery state expired");
+				return null;
+			}
+			Identifier claimedIdentifier = fields[2].length() == 0 ? null : discovery.parseIdentifier(fields[2]);
+			String delegate = fields[3].length() == 0 ? null : fields[3];
+			return new DiscoveryInformation(new URL(fields[1]), claimedIdentifier, delegate, fields[4]);
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (MalformedURLException e) {
+			return null;
+		} catch (DiscoveryException e) {
+			log.debug("failed to decode discovery state", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param timeToLive
+	 *            milliseconds a token is valid, i.e. the time users have to
+	 *            log in at their OP. Defaults to {@link #DEFAULT_TIME_TO_LIVE}.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	private byte[] mac(byte[] payload) {
+		Mac mac;
+		try {
+			mac = (Mac) prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(ALGORITHM + " not cloneable", e);
+		}
+		return mac.doFinal(payload);
+	}
+
+	private static String encode(byte[] bytes) {
+		String base64 = new String(Base64Utils.encode(bytes), UTF_8);
+		StringBuilder buf = new StringBuilder(base64.length());
+		for (int i = 0; i < base64.length(); i++) {
+			char c = base64.charAt(i);
+			if (c == '+') {
+				buf.append('-');
+			} else if (c == '/') {
+				buf.append('_');
+			} else if (c != '=') {
+				buf.append(c);
+			}
+		}
+		return buf.toString();
+	}
+
+	private static byte[] decode(String urlSafe) {
+		StringBuilder buf = new StringBuilder(urlSafe.length() + 3);
+		for (int i = 0; i < urlSafe.length(); i++) {
+			char c = urlSafe.charAt(i);
+			buf.append(c == '-' ? '+' : c == '_' ? '/' : c);
+		}
+		while (buf.length() % 4 != 0) {
+			buf.append('=');
+		}
+		return Base64Utils.decode(buf.toString().getBytes(UTF_8));
+	}
+}
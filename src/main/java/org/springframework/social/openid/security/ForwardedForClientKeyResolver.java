@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.util.Assert;
+
+/**
+ * Identifies clients behind reverse proxies by the <tt>X-Forwarded-For</tt>
+ * header. Only addresses added by trusted proxies are believed: the header is
+ * read from right to left, skipping trusted proxies, and the first other
+ * address is the client. Requests not coming from a trusted proxy are
+ * identified by their remote address, as clients may send the header
+ * themselves.
+ */
+public class ForwardedForClientKeyResolver implements IClientKeyResolver {
+
+	public static final String DEFAULT_HEADER = "X-Forwarded-For";
+
+	private volatile Set<String> trustedProxies = Collections.emptySet();
+	private volatile String header = DEFAULT_HEADER;
+
+	public ForwardedForClientKeyResolver() {
+	}
+
+	public ForwardedForClientKeyResolver(Collection<String> trustedProxies) {
+		setTrustedProxies(trustedProxies);
+	}
+
+	@Override
+	public String getClientKey(HttpServletRequest request) {
+		String address = request.getRemoteAddr();
+		Set<String> trustedProxies = this.trustedProxies;
+		if (!trustedProxies.contains(address)) {
+			return address;
+		}
+
+		// later headers and entries were added by proxies closer to us
+		String[] forwarded = forwarded(request.getHeaders(header));
+		for (int i = forwarded.length - 1; i >= 0; i--) {
+			String hop = forwarded[i].trim();
+			if (hop.length() == 0) {
+				continue;
+			}
+			address = hop;
+			if (!trustedProxies.contains(hop)) {
+				break;
+			}
+		}
+		return address;
+	}
+
+	private static String[] forwarded(Enumeration<?> headers) {
+		if (headers == null || !headers.hasMoreElements()) {
+			return new String[0];
+		}
+		String value = (String) headers.nextElement();
+		while (headers.hasMoreElements()) {
+			value = value + "," + headers.nextElement();
+		}
+		return value.split(",");
+	}
+
+	public Set<String> getTrustedProxies() {
+		return trustedProxies;
+	}
+
+	/**
+	 * @param trustedProxies
+	 *            addresses of reverse proxies as seen in
+	 *            {@link HttpServletRequest#getRemoteAddr()} or added to the
+	 *            header by other trusted proxies
+	 */
+	public void setTrustedProxies(Collection<String> trustedProxies) {
+		Assert.notNull(trustedProxies, "trustedProxies must not be null");
+		this.trustedProxies = Collections.unmodifiableSet(new HashSet<String>(trustedProxies));
+	}
+
+	/**
+	 * @param header
+	 *            defaults to {@link #DEFAULT_HEADER}
+	 */
+	public void setHeader(String header) {
+		Assert.hasText(header, "header must not be empty");
+		this.header = header;
+	}
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * Admission control for login initiation, rejecting requests before any
+ * outbound discovery. Keeps a token bucket per client address and per host of
+ * the claimed identifier. Buckets are a single {@link AtomicLong} each
+ * (theoretical arrival time of the next request, see GCRA) updated by CAS, so
+ * the normal path takes no locks and allocates nothing for known keys.
+ * Buckets live in a striped table bounded by {@link #setMaxKeys(int)}; full
+ * (i.e. idle) buckets are evicted when a stripe runs out of room. While a
+ * stripe is full of busy buckets, new keys share an overflow bucket of each
+ * table with its own {@link #setOverflowRate(double, int) rate}. Clients are
+ * identified by an {@link IClientKeyResolver}.
+ */
+public class LoginRateLimiter {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(LoginRateLimiter.class);
+
+	public static final double DEFAULT_CLIENT_RATE = 1;
+	public static final int DEFAULT_CLIENT_BURST = 30;
+	public static final double DEFAULT_HOST_RATE = 1000;
+	public static final int DEFAULT_HOST_BURST = 10000;
+	public static final double DEFAULT_OVERFLOW_RATE = 100;
+	public static final int DEFAULT_OVERFLOW_BURST = 1000;
+	public static final int DEFAULT_MAX_KEYS = 10000;
+
+	private static final int STRIPES = 16;
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final BucketTable clients = new BucketTable("client");
+	private final BucketTable hosts = new BucketTable("host");
+	private volatile IClientKeyResolver clientKeyResolver = RemoteAddressClientKeyResolver.INSTANCE;
+
+	public LoginRateLimiter() {
+		setClientRate(DEFAULT_CLIENT_RATE, DEFAULT_CLIENT_BURST);
+		setHostRate(DEFAULT_HOST_RATE, DEFAULT_HOST_BURST);
+		setOverflowRate(DEFAULT_OVERFLOW_RATE, DEFAULT_OVERFLOW_BURST);
+		setMaxKeys(DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * @return <code>false</code> if the client exceeded its rate
+	 */
+	public boolean tryAcquireClient(String clientKey) {
+		return clientKey == null || clients.tryAcquire(clientKey, System.nanoTime());
+	}
+
+	/**
+	 * @return <code>false</code> if logins with identifiers of host exceeded
+	 *         their rate
+	 */
+	public boolean tryAcquireHost(String host) {
+		return host == null || hosts.tryAcquire(host, System.nanoTime());
+	}
+
+	/**
+	 * @param perSecond
+	 *            sustained logins per client address, defaults to
+	 *            {@link #DEFAULT_CLIENT_RATE}, 0 disables the limit
+	 * @param burst
+	 *            logins allowed at once, defaults to
+	 *            {@link #DEFAULT_CLIENT_BURST}
+	 */
+	public void setClientRate(double perSecond, int burst) {
+		clients.setRate(perSecond, burst);
+	}
+
+	/**
+	 * @param perSecond
+	 *            sustained logins per identifier host, defaults to
+	 *            {@link #DEFAULT_HOST_RATE}, 0 disables the limit
+	 * @param burst
+	 *            logins allowed at once, defaults to
+	 *            {@link #DEFAULT_HOST_BURST}
+	 */
+	public void setHostRate(double perSecond, int burst) {
+		hosts.setRate(perSecond, burst);
+	}
+
+	/**
+	 * Rate shared by new clients or hosts while their table is full of busy
+	 * buckets, i.e. during floods from many addresses.
+	 * 
+	 * @param perSecond
+	 *            sustained logins per table, defaults to
+	 *            {@link #DEFAULT_OVERFLOW_RATE}, 0 admits overflowing keys
+	 *            without limit
+	 * @param burst
+	 *            logins allowed at once, defaults to
+	 *            {@link #DEFAULT_OVERFLOW_BURST}
+	 */
+	public void setOverflowRate(double perSecond, int burst) {
+		clients.overflow.setRate(perSecond, burst);
+		hosts.overflow.setRate(perSecond, burst);
+	}
+
+	public IClientKeyResolver getClientKeyResolver() {
+		return clientKeyResolver;
+	}
+
+	/**
+	 * @param clientKeyResolver
+	 *            defaults to {@link RemoteAddressClientKeyResolver}, use a
+	 *            {@link ForwardedForClientKeyResolver} behind reverse proxies
+	 */
+	public void setClientKeyResolver(IClientKeyResolver clientKeyResolver) {
+		Assert.notNull(clientKeyResolver, "clientKeyResolver must not be null");
+		this.clientKeyResolver = clientKeyResolver;
+	}
+
+	/**
+	 * @param maxKeys
+	 *            client addresses and hosts to keep buckets for (each),
+	 *            defaults to {@link #DEFAULT_MAX_KEYS}
+	 */
+	public void setMaxKeys(int maxKeys) {
+		Assert.isTrue(maxKeys >= STRIPES, "maxKeys must be at least " + STRIPES);
+		clients.maxKeysPerStripe = maxKeys / STRIPES;
+		hosts.maxKeysPerStripe = maxKeys / STRIPES;
+	}
+
+	/**
+	 * Token bucket as generic cell rate algorithm: holds the time at which the
+	 * bucket will be full again.
+	 */
+	private static final class Bucket extends AtomicLong {
+
+		private static final long serialVersionUID = 1L;
+
+		private Bucket(long now) {
+			super(now);
+		}
+
+		private boolean tryAcquire(long now, long interval, long tolerance) {
+			while (true) {
+				long tat = get();
+				long next = (tat - now > 0 ? tat : now) + interval;
+				if (next - now > tolerance) {
+					return false;
+				}
+				if (compareAndSet(tat, next)) {
+					return true;
+				}
+			}
+		}
+
+		private boolean isIdle(long now) {
+			return now - get() >= 0;
+		}
+	}
+
+	/**
+	 * A bucket's rate, replaced as a whole to keep interval and tolerance
+	 * consistent.
+	 */
+	private static final class Rate {
+
+		private final long interval;
+		private final long tolerance;
+
+		private Rate(double perSecond, int burst) {
+			Assert.isTrue(burst > 0, "burst must be positive");
+			interval = perSecond <= 0 ? 0 : Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+			tolerance = interval * burst;
+		}
+
+		private boolean tryAcquire(Bucket bucket, long now) {
+			return interval == 0 || bucket.tryAcquire(now, interval, tolerance);
+		}
+	}
+
+	private static final class Overflow {
+
+		private final Bucket bucket = new Bucket(System.nanoTime());
+		private volatile Rate rate;
+
+		private void setRate(double perSecond, int burst) {
+			rate = new Rate(perSecond, burst);
+		}
+	}
+
+	private static final class BucketTable {
+
+		private final String name;
+		private final Stripe[] stripes = new Stripe[STRIPES];
+		private final Overflow overflow = new Overflow();
+
+		private volatile Rate rate;
+		private volatile int maxKeysPerStripe;
+
+		private BucketTable(String name) {
+			this.name = name;
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new Stripe();
+			}
+		}
+
+		private void setRate(double perSecond, int burst) {
+			rate = new Rate(perSecond, burst);
+		}
+
+		private boolean tryAcquire(String key, long now) {
+			Rate rate = this.rate;
+			if (rate.interval == 0) {
+				return true;
+			}
+			int h = key.hashCode();
+			Stripe stripe = stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+			Bucket bucket = stripe.buckets.get(key);
+			if (bucket == null) {
+				bucket = stripe.create(key, now);
+				if (bucket == null) {
+					return overflow.rate.tryAcquire(overflow.bucket, now);
+				}
+			}
+			return rate.tryAcquire(bucket, now);
+		}
+
+		private final class Stripe {
+
+			private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+			private final AtomicInteger size = new AtomicInteger();
+			private final AtomicBoolean sweeping = new AtomicBoolean();
+			private volatile long nextSweep = System.nanoTime();
+
+			/**
+			 * @return <code>null</code> if the stripe is full
+			 */
+			private Bucket create(String key, long now) {
+				if (size.get() >= maxKeysPerStripe && !sweep(now)) {
+					return null;
+				}
+				Bucket bucket = new Bucket(now);
+				Bucket existing = buckets.putIfAbsent(key, bucket);
+				if (existing != null) {
+					return existing;
+				}
+				size.incrementAndGet();
+				return bucket;
+			}
+
+			/**
+			 * evicts idle buckets, at most once per {@link #SWEEP_INTERVAL}
+			 * 
+			 * @return <code>true</code> if there's room for another bucket
+			 */
+			private boolean sweep(long now) {
+				if (now - nextSweep < 0 || !sweeping.compareAndSet(false, true)) {
+					return false;
+				}
+				try {
+					int evicted = 0;
+					for (Iterator<Map.Entry<String, Bucket>> iter = buckets.entrySet().iterator(); iter.hasNext();) {
+						Map.Entry<String, Bucket> e = iter.next();
+						if (e.getValue().isIdle(now) && buckets.remove(e.getKey(), e.getValue())) {
+							size.decrementAndGet();
+							evicted++;
+						}
+					}
+					nextSweep = now + SWEEP_INTERVAL;
+					if (evicted == 0) {
+						log.warn("{} rate limits full, sharing overflow bucket", name);
+					}
+					return size.get() < maxKeysPerStripe;
+				} finally {
+					sweeping.set(false);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.security.openid.OpenIDAttribute;
+import org.springframework.social.openid.connect.OpenIdProfile;
+
+/**
+ * Attribute Exchange types for profile data, their Simple Registration
+ * equivalents and mapping of received attributes to an {@link OpenIdProfile}.
+ */
+public final class OpenIdAttributes {
+
+	public static final String EMAIL = "http://axschema.org/contact/email";
+	public static final String FULL_NAME = "http://axschema.org/namePerson";
+	public static final String FIRST_NAME = "http://axschema.org/namePerson/first";
+	public static final String LAST_NAME = "http://axschema.org/namePerson/last";
+	public static final String NICKNAME = "http://axschema.org/namePerson/friendly";
+	public static final String PROFILE_URL = "http://axschema.org/contact/web/default";
+	public static final String IMAGE_URL = "http://axschema.org/media/image/default";
+
+	/**
+	 * legacy type used by some OPs instead of {@link #EMAIL}
+	 */
+	public static final String SCHEMA_OPENID_EMAIL = "http://schema.openid.net/contact/email";
+
+	private static final Map<String, String> SREG_NAMES;
+	static {
+		Map<String, String> names = new HashMap<String, String>();
+		names.put(EMAIL, "email");
+		names.put(SCHEMA_OPENID_EMAIL, "email");
+		names.put(FULL_NAME, "fullname");
+		names.put(NICKNAME, "nickname");
+		SREG_NAMES = Collections.unmodifiableMap(names);
+	}
+
+	private OpenIdAttributes() {
+	}
+
+	/**
+	 * @return email, first, last and full name, all optional
+	 */
+	public static List<OpenIDAttribute> profileAttributes() {
+		return Arrays.asList(new OpenIDAttribute("email", EMAIL), new OpenIDAttribute("firstname", FIRST_NAME),
+				new OpenIDAttribute("lastname", LAST_NAME), new OpenIDAttribute("fullname", FULL_NAME));
+	}
+
+	/**
+	 * @return the Simple Registration field for an AX type or
+	 *         <code>null</code>
+	 */
+	public static String getSRegName(String type) {
+		return SREG_NAMES.get(type);
+	}
+
+	/**
+	 * @return a profile of all known types or <code>null</code> if there are
+	 *         none
+	 */
+	public static OpenIdProfile toProfile(List<OpenIDAttribute> attributes) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (OpenIDAttribute attribute : attributes) {
+			List<String> v = attribute.getValues();
+			if (v != null && !v.isEmpty() && v.get(0) != null && !values.containsKey(attribute.getType())) {
+				values.put(attribute.getType(), v.get(0));
+			}
+		}
+		if (values.isEmpty()) {
+			return null;
+		}
+
+		String email = values.get(EMAIL);
+		if (email == null) {
+			email = values.get(SCHEMA_OPENID_EMAIL);
+		}
+		return new OpenIdProfile(email, values.get(FULL_NAME), values.get(FIRST_NAME), values.get(LAST_NAME),
+				values.get(NICKNAME), values.get(PROFILE_URL), values.get(IMAGE_URL));
+	}
+
+	/**
+	 * @return first value by attribute name
+	 */
+	public static Map<String, String> toMap(List<OpenIDAttribute> attributes) {
+		Map<String, String> map = new HashMap<String, String>();
+		for (OpenIDAttribute attribute : attributes) {
+			List<String> v = attribute.getValues();
+			if (v != null && !v.isEmpty()) {
+				map.put(attribute.getName(), v.get(0));
+			}
+		}
+		return map;
+	}
+
+	static List<OpenIDAttribute> copy(List<OpenIDAttribute> attributes) {
+		return Collections.unmodifiableList(new ArrayList<OpenIDAttribute>(attributes));
+	}
+}
@@ -16,43 +16,113 @@
 
 package org.springframework.social.openid.security;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.openid4java.consumer.ConsumerException;
+import org.openid4java.consumer.ConsumerAssociationStore;
+import org.openid4java.consumer.ConsumerManager;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.util.HttpCache;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.security.authentication.AuthenticationServiceException;
-import org.springframework.security.openid.OpenID4JavaConsumer;
+import org.springframework.security.openid.OpenIDAttribute;
+import org.springframework.security.openid.OpenIDAuthenticationStatus;
 import org.springframework.security.openid.OpenIDAuthenticationToken;
 import org.springframework.security.openid.OpenIDConsumer;
 import org.springframework.security.openid.OpenIDConsumerException;
 import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.openid.api.OpenId;
 import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.openid.connect.OpenIdProfile;
+import org.springframework.social.openid.connect.OpenIdProfileCache;
+import org.springframework.social.openid.consumer.AssociationRefresher;
+import org.springframework.social.openid.consumer.CacheControlHttpFetcher;
+import org.springframework.social.openid.consumer.CachingDiscovery;
+import org.springframework.social.openid.consumer.CircuitBreakingHttpFetcher;
+import org.springframework.social.openid.consumer.CircuitOpenException;
+import org.springframework.social.openid.consumer.ClaimedIdentifierResolver;
+import org.springframework.social.openid.consumer.BucketedNonceStore;
+import org.springframework.social.openid.consumer.ConcurrentConsumerAssociationStore;
+import org.springframework.social.openid.consumer.DiscoveryCache;
+import org.springframework.social.openid.consumer.EndpointSelector;
+import org.springframework.social.openid.consumer.LruDiscoveryCache;
+import org.springframework.social.openid.consumer.NonceStore;
+import org.springframework.social.openid.consumer.NonceStoreVerifier;
+import org.springframework.social.openid.consumer.OpenIdConsumerManager;
+import org.springframework.social.openid.consumer.PrioritizingYadisResolver;
+import org.springframework.social.openid.consumer.ProviderCircuitBreaker;
+import org.springframework.social.openid.consumer.Urls;
+import org.springframework.social.openid.metrics.LoginOutcome;
+import org.springframework.social.openid.metrics.LoginPhase;
+import org.springframework.social.openid.metrics.NoOpOpenIdMetrics;
+import org.springframework.social.openid.metrics.NoOpOpenIdTracer;
+import org.springframework.social.openid.metrics.OpenIdMetrics;
+import org.springframework.social.openid.metrics.OpenIdSpan;
+import org.springframework.social.openid.metrics.OpenIdTracer;
 import org.springframework.social.security.SocialAuthenticationRedirectException;
 import org.springframework.social.security.SocialAuthenticationToken;
 import org.springframework.social.security.provider.AbstractSocialAuthenticationService;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
-public class OpenIdAuthenticationService extends AbstractSocialAuthenticationService<OpenId> {
+import com.google.inject.Provider;
+
+public class OpenIdAuthenticationService extends AbstractSocialAuthenticationService<OpenId> implements DisposableBean {
 
 	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(OpenIdAuthenticationService.class);
 
-	public static final String DEFAULT_CLAIMED_IDENTITY_FIELD = "openid_identifier";
+	public static final String DEFAULT_CLAIMED_IDENTITY_FIELD = OpenIdRequest.DEFAULT_CLAIMED_IDENTITY_PARAMETER;
+
+	public static final long DEFAULT_ASYNC_VERIFICATION_TIMEOUT = 30000;
+
+	private static final String VERIFICATION_RESULT_ATTRIBUTE = OpenIdAuthenticationService.class.getName()
+			+ ".VERIFICATION_RESULT";
 
 	private OpenIdConnectionFactory connectionFactory;
 
-	private OpenIDConsumer consumer;
+	private final Object initLock = new Object();
+	private volatile OpenIDConsumer consumer;
+	private volatile ConsumerManager consumerManager;
+	private AssociationRefresher associationRefresher;
+	private boolean lazyInit = false;
 	private String claimedIdentityFieldName = DEFAULT_CLAIMED_IDENTITY_FIELD;
 	private IRealmMapper realmMapper = null;
+	private IReturnToBuilder returnToBuilder;
+	private volatile CompiledReturnToBuilder defaultReturnToBuilder;
 	private Set<String> returnToUrlParameters = Collections.emptySet();
+	private List<OpenIDAttribute> attributes = Collections.emptyList();
+	private DiscoveryStateToken stateToken;
+	private DiscoveryCache discoveryCache = new LruDiscoveryCache();
+	private ConsumerAssociationStore associationStore = new ConcurrentConsumerAssociationStore();
+	private NonceStore nonceStore = new BucketedNonceStore();
+	private int maxNonceFutureSkew = NonceStoreVerifier.DEFAULT_MAX_FUTURE_SKEW;
+	private List<String> knownProviders = Collections.emptyList();
+	private OpenIdMetrics metrics = NoOpOpenIdMetrics.INSTANCE;
+	private OpenIdTracer tracer = NoOpOpenIdTracer.INSTANCE;
+	private Executor verificationExecutor;
+	private HttpFetcher httpFetcher;
+	private Executor associationExecutor;
+	private EndpointSelector endpointSelector;
+	private ProviderCircuitBreaker circuitBreaker;
+	private LoginRateLimiter loginRateLimiter;
+	private long asyncVerificationTimeout = DEFAULT_ASYNC_VERIFICATION_TIMEOUT;
 
 	public OpenIdAuthenticationService() {
 		super();
@@ -66,13 +136,124 @@ public class OpenIdAuthenticationService extends AbstractSocialAuthenticationSer
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		super.afterPropertiesSet();
-        if (consumer == null) {
-            try {
-                consumer = new OpenID4JavaConsumer();
-            } catch (ConsumerException e) {
-                throw new IllegalArgumentException("Failed to initialize OpenID", e);
-            }
-        }
+		if (!lazyInit) {
+			warmUp();
+		}
+	}
+
+	/**
+	 * Initializes the consumer (if not done yet) and starts associating with
+	 * known providers. Only needed in lazy mode, e.g. once a node starts
+	 * receiving traffic.
+	 */
+	public void warmUp() {
+		getConsumer();
+	}
+
+	private OpenIDConsumer getConsumer() {
+		OpenIDConsumer consumer = this.consumer;
+		if (consumer == null) {
+			synchronized (initLock) {
+				consumer = this.consumer;
+				if (consumer == null) {
+					consumer = this.consumer = createDefaultConsumer();
+				}
+			}
+		}
+		return consumer;
+	}
+
+	/**
+	 * @return <code>null</code> until the default consumer is initialized
+	 */
+	ConsumerManager getConsumerManager() {
+		return consumerManager;
+	}
+
+	private OpenIDConsumer createDefaultConsumer() {
+		long start = System.currentTimeMillis();
+		ConsumerManager consumerManager = createConsumerManager();
+		DefaultOpenIdConsumer consumer = new DefaultOpenIdConsumer(consumerManager);
+		consumer.setAttributes(attributes);
+		consumer.setStateToken(stateToken);
+		this.consumerManager = consumerManager;
+
+		if (!knownProviders.isEmpty()) {
+			associationRefresher = new AssociationRefresher(consumerManager, knownProviders);
+			associationRefresher.start();
+		}
+		log.debug("initialized OpenID consumer in {}ms", System.currentTimeMillis() - start);
+		return consumer;
+	}
+
+	@Override
+	public void destroy() {
+		synchronized (initLock) {
+			if (associationRefresher != null) {
+				associationRefresher.stop();
+				associationRefresher = null;
+			}
+		}
+	}
+
+	/**
+	 * Creates the {@link ConsumerManager} used by the default consumer. If a
+	 * {@link DiscoveryCache} is set, discovery results are served from it.
+	 * Associations are kept in the configured {@link ConsumerAssociationStore}.
+	 */
+	protected ConsumerManager createConsumerManager() {
+		HttpFetcherFactory httpFetcherFactory = createHttpFetcherFactory();
+
+		Discovery discovery;
+		if (discoveryCache != null) {
+			discovery = new CachingDiscovery(httpFetcherFactory, discoveryCache);
+		} else {
+			discovery = new Discovery(new HtmlResolver(httpFetcherFactory), new PrioritizingYadisResolver(
+					httpFetcherFactory), Discovery.getXriResolver());
+		}
+
+		OpenIdConsumerManager consumerManager = new OpenIdConsumerManager(new RealmVerifierFactory(new YadisResolver(
+				httpFetcherFactory)), discovery, httpFetcherFactory);
+		consumerManager.setAssociations(associationStore);
+		NonceStoreVerifier nonceVerifier = new NonceStoreVerifier(nonceStore);
+		nonceVerifier.setMaxFutureSkew(maxNonceFutureSkew);
+		consumerManager.setNonceVerifier(nonceVerifier);
+		consumerManager.setMetrics(metrics);
+		consumerManager.setTracer(tracer);
+		consumerManager.setAssociationExecutor(associationExecutor);
+		consumerManager.setEndpointSelector(endpointSelector);
+		consumerManager.setCircuitBreaker(circuitBreaker);
+		return consumerManager;
+	}
+
+	/**
+	 * Creates the factory for all outbound HTTP of the default consumer. Every
+	 * fetcher records cache headers for {@link CachingDiscovery} and shares the
+	 * configured {@link HttpFetcher}, if any. Otherwise each fetcher gets its
+	 * own {@link HttpCache}, which isn't thread-safe to share. Calls to OPs are
+	 * reported to the circuit breaker, if any.
+	 */
+	protected HttpFetcherFactory createHttpFetcherFactory() {
+		final HttpFetcher httpFetcher = this.httpFetcher;
+		final ProviderCircuitBreaker circuitBreaker = this.circuitBreaker;
+		return new HttpFetcherFactory(new Provider<HttpFetcher>() {
+
+			@Override
+			public HttpFetcher get() {
+				HttpFetcher fetcher = new CacheControlHttpFetcher(httpFetcher != null ? httpFetcher : new HttpCache());
+				return circuitBreaker != null ? new CircuitBreakingHttpFetcher(fetcher, circuitBreaker) : fetcher;
+			}
+		});
+	}
+
+	/**
+	 * Creates a resolver for batches of claimed identifiers using the
+	 * transport of the default consumer. Results are cached separately from
+	 * the {@link #setDiscoveryCache(DiscoveryCache) discovery cache}, so
+	 * batches don't evict entries of interactive logins.
+	 */
+	public ClaimedIdentifierResolver createClaimedIdentifierResolver() {
+		return new ClaimedIdentifierResolver(new CachingDiscovery(createHttpFetcherFactory(), new LruDiscoveryCache()));
 	}
 
 	public void setConnectionFactory(OpenIdConnectionFactory connectionFactory) {
@@ -87,22 +268,42 @@ public class OpenIdAuthenticationService extends AbstractSocialAuthenticationSer
 	@Override
 	public SocialAuthenticationToken getAuthToken(HttpServletRequest request,
 			HttpServletResponse response) throws SocialAuthenticationRedirectException {
+		OpenIdSpan span = tracer.start(LoginPhase.AUTH_TOKEN);
+		try {
+			return getAuthToken(request, span);
+		} finally {
+			// unless ended with the outcome already
+			span.end(null, LoginOutcome.FAILURE);
+		}
+	}
+
+	private SocialAuthenticationToken getAuthToken(HttpServletRequest request, OpenIdSpan span)
+			throws SocialAuthenticationRedirectException {
 
-		String identity = request.getParameter("openid.identity");
+		OpenIdRequest openIdRequest = OpenIdRequest.get(request, claimedIdentityFieldName);
+		String identity = openIdRequest.getIdentity();
 
 		if (!StringUtils.hasText(identity)) {
 			String claimedIdentity = obtainUsername(request);
+			String host = Urls.getHost(claimedIdentity);
+			admit(request, host, span);
+			long start = metrics.isEnabled() ? System.nanoTime() : 0;
 
 			try {
-				String returnToUrl = buildReturnToUrl(request);
-				String realm = lookupRealm(returnToUrl);
-				String openIdUrl = consumer.beginConsumption(request, claimedIdentity, returnToUrl, realm);
+				ReturnTo returnTo = buildReturnTo(request, host);
+				String openIdUrl = getConsumer().beginConsumption(request, claimedIdentity, returnTo.getUrl(),
+						returnTo.getRealm());
 				if (log.isDebugEnabled()) {
-					log.debug("return_to is '" + returnToUrl + "', realm is '" + realm + "'");
+					log.debug(returnTo.toString());
 					log.debug("Redirecting to " + openIdUrl);
 				}
+				// the OP redirected to rather than the user supplied host
+				recordRedirect(Urls.getHost(openIdUrl), start, LoginOutcome.REDIRECT, span);
 				throw new SocialAuthenticationRedirectException(openIdUrl);
+			} catch (CircuitOpenException e) {
+				throw providerUnavailable(e, span);
 			} catch (OpenIDConsumerException e) {
+				recordRedirect(host, start, LoginOutcome.REDIRECT_FAILED, span);
 				log.debug("Failed to consume claimedIdentity: " + claimedIdentity, e);
 				throw new AuthenticationServiceException("Unable to process claimed identity '" + claimedIdentity + "'");
 			}
@@ -112,87 +313,195 @@ public class OpenIdAuthenticationService extends AbstractSocialAuthenticationSer
 			log.debug("Supplied OpenID identity is " + identity);
 		}
 
+		String opHost = getOpHost(openIdRequest);
 		try {
-			OpenIDAuthenticationToken token = consumer.endConsumption(request);
+			OpenIDAuthenticationToken token = verify(request);
+			outcome(opHost, token.getStatus() == OpenIDAuthenticationStatus.SUCCESS ? LoginOutcome.SUCCESS
+					: LoginOutcome.FAILURE, span);
 
 			String verifiedId = (String) token.getPrincipal();
-			ConnectionData data = new ConnectionData(connectionFactory.getProviderId(), verifiedId, null, null, null,
-					null, null, null, null);
+			OpenIdProfile profile = OpenIdAttributes.toProfile(token.getAttributes());
+			ConnectionData data;
+			if (profile != null) {
+				OpenIdProfileCache profileCache = connectionFactory.getProfileCache();
+				if (profileCache != null) {
+					profileCache.put(verifiedId, profile);
+				}
+				data = new ConnectionData(connectionFactory.getProviderId(), verifiedId, profile.getDisplayName(),
+						profile.getProfileUrl(), profile.getImageUrl(), null, null, null, null);
+			} else {
+				data = new ConnectionData(connectionFactory.getProviderId(), verifiedId, null, null, null, null, null,
+						null, null);
+			}
 
 			return new SocialAuthenticationToken(connectionFactory.createConnection(data), obtainAccountData(token));
+		} catch (CircuitOpenException e) {
+			throw providerUnavailable(e, span);
 		} catch (OpenIDConsumerException oice) {
+			outcome(opHost, LoginOutcome.CONSUMER_ERROR, span);
 			throw new AuthenticationServiceException("Consumer error", oice);
 		}
 	}
 
-	protected Map<String, String> obtainAccountData(OpenIDAuthenticationToken token) {
-		return Collections.emptyMap();
-	}
+	/**
+	 * Verifies the assertion of an OpenID callback unless it already has been
+	 * verified asynchronously.
+	 */
+	protected OpenIDAuthenticationToken verify(HttpServletRequest request) throws OpenIDConsumerException {
+		Object result = request.getAttribute(VERIFICATION_RESULT_ATTRIBUTE);
+		if (result == null) {
+			return getConsumer().endConsumption(request);
+		}
 
-	protected String lookupRealm(String returnToUrl) {
-		String mapping = null;
+		request.removeAttribute(VERIFICATION_RESULT_ATTRIBUTE);
+		if (result instanceof OpenIDConsumerException) {
+			throw (OpenIDConsumerException) result;
+		} else if (result instanceof RuntimeException) {
+			throw (RuntimeException) result;
+		}
+		return (OpenIDAuthenticationToken) result;
+	}
 
-		IRealmMapper realmMapper = getRealmMapper();
-		if (realmMapper != null) {
-			mapping = realmMapper.getMapping(returnToUrl);
+	/**
+	 * Starts verification of an OpenID callback on the verification executor
+	 * and releases the request thread. Once verification completes, the
+	 * request is dispatched again and {@link #getAuthToken} picks up the
+	 * result.
+	 * 
+	 * @return <code>false</code> if the request isn't handled asynchronously
+	 *         (no executor set, async not supported or not a callback)
+	 */
+	public boolean startAsyncVerification(final HttpServletRequest request, HttpServletResponse response) {
+		final OpenIdRequest openIdRequest = OpenIdRequest.get(request, claimedIdentityFieldName);
+		if (verificationExecutor == null || !request.isAsyncSupported()
+				|| openIdRequest.getPhase() != OpenIdRequest.Phase.CALLBACK) {
+			return false;
 		}
 
+		// the executor must not touch the request, it may be recycled on timeout
+		final HttpServletRequest callback = new CapturedRequest(request);
+		final AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(asyncVerificationTimeout);
 
-		if (mapping == null) {
-			try {
-				URL url = new URL(returnToUrl);
-				int port = url.getPort();
+		final AtomicBoolean done = new AtomicBoolean();
+		asyncContext.addListener(new AsyncListener() {
 
-				StringBuilder realmBuffer = new StringBuilder(returnToUrl.length()).append(url.getProtocol())
-						.append("://").append(url.getHost());
-				if (port > 0) {
-					realmBuffer.append(":").append(port);
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				if (done.compareAndSet(false, true)) {
+					request.setAttribute(VERIFICATION_RESULT_ATTRIBUTE, new OpenIDConsumerException(
+							"Verification timed out"));
+					asyncContext.dispatch();
 				}
-				realmBuffer.append("/");
-				mapping = realmBuffer.toString();
-			} catch (MalformedURLException e) {
-				log.warn("returnToUrl was not a valid URL: [" + returnToUrl + "]", e);
 			}
-		}
 
-		return mapping;
-	}
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
 
-	/**
-	 * Builds the <tt>return_to</tt> URL that will be sent to the OpenID service
-	 * provider. By default returns the URL of the current request.
-	 *
-	 * @param request
-	 *            the current request which is being processed by this filter
-	 * @return The <tt>return_to</tt> URL.
-	 */
-	protected String buildReturnToUrl(HttpServletRequest request) {
-		StringBuffer sb = request.getRequestURL();
+			@Override
+			public void onError(AsyncEvent event) {
+				if (done.compareAndSet(false, true)) {
+					log.debug("asynchronous verification failed", event.getThrowable());
+					asyncContext.complete();
+				}
+			}
 
-		Iterator<String> iterator = returnToUrlParameters.iterator();
-		boolean isFirst = true;
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+		});
 
-		while (iterator.hasNext()) {
-			String name = iterator.next();
-			// Assume for simplicity that there is only one value
-			String value = request.getParameter(name);
+		Runnable verification = new Runnable() {
 
-			if (value == null) {
-				continue;
+			@Override
+			public void run() {
+				if (done.get()) {
+					// timed out while queued
+					return;
+				}
+				Object result;
+				try {
+					result = getConsumer().endConsumption(callback);
+				} catch (OpenIDConsumerException e) {
+					result = e;
+				} catch (RuntimeException e) {
+					result = e;
+				}
+				if (done.compareAndSet(false, true)) {
+					request.setAttribute(VERIFICATION_RESULT_ATTRIBUTE, result);
+					asyncContext.dispatch();
+				}
 			}
+		};
 
-			if (isFirst) {
-				sb.append("?");
-				isFirst = false;
-			}
-			sb.append(name).append("=").append(value);
+		try {
+			verificationExecutor.execute(verification);
+		} catch (RejectedExecutionException e) {
+			// executor saturated, verify on this thread
+			log.debug("verification executor rejected callback, verifying synchronously");
+			verification.run();
+		}
+		return true;
+	}
 
-			if (iterator.hasNext()) {
-				sb.append("&");
-			}
+	private ReturnTo buildReturnTo(HttpServletRequest request, String host) {
+		OpenIdSpan span = tracer.start(LoginPhase.BUILD_RETURN_TO_URL);
+		boolean success = false;
+		try {
+			ReturnTo returnTo = getReturnToBuilder().build(request);
+			success = true;
+			return returnTo;
+		} finally {
+			span.end(host, success ? LoginOutcome.SUCCESS : LoginOutcome.FAILURE);
+		}
+	}
+
+	private void admit(HttpServletRequest request, String host, OpenIdSpan span) {
+		if (loginRateLimiter == null) {
+			return;
+		}
+		String clientKey = loginRateLimiter.getClientKeyResolver().getClientKey(request);
+		if (!loginRateLimiter.tryAcquireClient(clientKey)) {
+			outcome(host, LoginOutcome.RATE_LIMITED, span);
+			log.debug("rejecting login from {}, rate exceeded", clientKey);
+			throw new LoginRateExceededException("Too many logins from " + clientKey);
+		}
+		if (!loginRateLimiter.tryAcquireHost(host)) {
+			outcome(host, LoginOutcome.RATE_LIMITED, span);
+			log.debug("rejecting login through {}, rate exceeded", host);
+			throw new LoginRateExceededException("Too many logins through " + host);
 		}
+	}
 
-		return sb.toString();
+	private ProviderUnavailableException providerUnavailable(CircuitOpenException e, OpenIdSpan span) {
+		outcome(e.getHost(), LoginOutcome.CIRCUIT_OPEN, span);
+		log.debug("circuit open, rejecting login through {}", e.getHost());
+		return new ProviderUnavailableException(e.getHost());
+	}
+
+	private void recordRedirect(String host, long start, LoginOutcome outcome, OpenIdSpan span) {
+		if (metrics.isEnabled()) {
+			metrics.redirect(host, System.nanoTime() - start, outcome == LoginOutcome.REDIRECT);
+		}
+		outcome(host, outcome, span);
+	}
+
+	private void outcome(String host, LoginOutcome outcome, OpenIdSpan span) {
+		span.end(host, outcome);
+		metrics.outcome(host, outcome);
+	}
+
+	private static String getOpHost(OpenIdRequest openIdRequest) {
+		String opEndpoint = openIdRequest.getOpEndpoint();
+		return Urls.getHost(opEndpoint != null ? opEndpoint : openIdRequest.getIdentity());
+	}
+
+	/**
+	 * @return first value of received attributes by name
+	 */
+	protected Map<String, String> obtainAccountData(OpenIDAuthenticationToken token) {
+		return OpenIdAttributes.toMap(token.getAttributes());
 	}
 
 	/**
@@ -209,6 +518,10 @@ public class OpenIdAuthenticationService extends AbstractSocialAuthenticationSer
 		return claimedIdentity.trim();
 	}
 
+	public String getClaimedIdentityFieldName() {
+		return claimedIdentityFieldName;
+	}
+
 	/**
 	 * The name of the request parameter containing the OpenID identity, as
 	 * submitted from the initial login form.
@@ -224,18 +537,325 @@ public class OpenIdAuthenticationService extends AbstractSocialAuthenticationSer
 		this.consumer = consumer;
 	}
 
+	public boolean isLazyInit() {
+		return lazyInit;
+	}
+
+	/**
+	 * Defers creation of the default consumer (loading HTTP client, resolvers
+	 * and XML parsers) and associating with known providers until the first
+	 * login or {@link #warmUp()}, e.g. for nodes or tenants rarely seeing
+	 * OpenID logins.
+	 * 
+	 * @param lazyInit
+	 *            defaults to <code>false</code>
+	 */
+	public void setLazyInit(boolean lazyInit) {
+		this.lazyInit = lazyInit;
+	}
+
+	public DiscoveryCache getDiscoveryCache() {
+		return discoveryCache;
+	}
+
+	/**
+	 * Cache for discovery results of the default consumer, ignored if a
+	 * consumer is set.
+	 * 
+	 * @param discoveryCache
+	 *            defaults to a {@link LruDiscoveryCache}, <code>null</code>
+	 *            disables caching
+	 */
+	public void setDiscoveryCache(DiscoveryCache discoveryCache) {
+		this.discoveryCache = discoveryCache;
+	}
+
+	public ConsumerAssociationStore getAssociationStore() {
+		return associationStore;
+	}
+
+	/**
+	 * Store for associations of the default consumer, ignored if a consumer is
+	 * set. Use a {@link org.springframework.social.openid.consumer.TieredConsumerAssociationStore}
+	 * to share associations across a cluster.
+	 * 
+	 * @param associationStore
+	 *            defaults to a {@link ConcurrentConsumerAssociationStore}
+	 */
+	public void setAssociationStore(ConsumerAssociationStore associationStore) {
+		Assert.notNull(associationStore, "associationStore cannot be null");
+		this.associationStore = associationStore;
+	}
+
+	public List<OpenIDAttribute> getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Attributes the default consumer requests via Attribute Exchange (and
+	 * Simple Registration where possible). Received values are returned as
+	 * account data, profile data is cached in the
+	 * {@link OpenIdConnectionFactory#getProfileCache() profile cache} if the
+	 * connection factory has one.
+	 * 
+	 * @param attributes
+	 *            none by default, see
+	 *            {@link OpenIdAttributes#profileAttributes()}
+	 */
+	public void setAttributes(List<OpenIDAttribute> attributes) {
+		Assert.notNull(attributes, "attributes cannot be null");
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Enables stateless logins for the default consumer: discovery results are
+	 * passed in a signed <tt>return_to</tt> parameter rather than the session.
+	 * 
+	 * @param statelessSecret
+	 *            secret shared by all nodes, <code>null</code> (default) to use
+	 *            the session
+	 */
+	public void setStatelessSecret(String statelessSecret) {
+		this.stateToken = statelessSecret == null ? null : new DiscoveryStateToken(
+				statelessSecret.getBytes(Charset.forName("UTF-8")));
+	}
+
+	public NonceStore getNonceStore() {
+		return nonceStore;
+	}
+
+	/**
+	 * Store for response nonces of the default consumer, ignored if a consumer
+	 * is set. Use a {@link org.springframework.social.openid.consumer.FileNonceStore}
+	 * on a shared filesystem for replay protection across a cluster.
+	 * 
+	 * @param nonceStore
+	 *            defaults to a {@link BucketedNonceStore}
+	 */
+	public void setNonceStore(NonceStore nonceStore) {
+		Assert.notNull(nonceStore, "nonceStore cannot be null");
+		this.nonceStore = nonceStore;
+	}
+
+	public int getMaxNonceFutureSkew() {
+		return maxNonceFutureSkew;
+	}
+
+	/**
+	 * Seconds a response nonce may be ahead of the local clock. Nonces are
+	 * stored before signatures are checked, so the limit bounds how long
+	 * (unsigned) nonces are kept. Ignored if a consumer is set.
+	 * 
+	 * @param maxNonceFutureSkew
+	 *            defaults to {@link NonceStoreVerifier#DEFAULT_MAX_FUTURE_SKEW}
+	 */
+	public void setMaxNonceFutureSkew(int maxNonceFutureSkew) {
+		this.maxNonceFutureSkew = maxNonceFutureSkew;
+	}
+
+	/**
+	 * OPs to associate with in the background, at startup and before
+	 * associations expire, so that logins don't block on association setup.
+	 * Only applies to the default consumer.
+	 * 
+	 * @param knownProviders
+	 *            OP identifiers (e.g.
+	 *            <tt>https://www.google.com/accounts/o8/id</tt>) or claimed
+	 *            identifiers, empty by default
+	 */
+	public void setKnownProviders(List<String> knownProviders) {
+		Assert.notNull(knownProviders, "knownProviders cannot be null");
+		this.knownProviders = knownProviders;
+	}
+
+	public OpenIdMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Receives timings and outcomes of logins. Discovery, association and
+	 * verification timings are only reported by the default consumer.
+	 * 
+	 * @param metrics
+	 *            defaults to {@link NoOpOpenIdMetrics}
+	 */
+	public void setMetrics(OpenIdMetrics metrics) {
+		Assert.notNull(metrics, "metrics cannot be null");
+		this.metrics = metrics;
+	}
+
+	public OpenIdTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Traces individual logins: the whole request, <tt>return_to</tt> and
+	 * realm building and, by the default consumer, discovery, association and
+	 * verification. See the <tt>jfr</tt> module for Java Flight Recorder
+	 * events.
+	 * 
+	 * @param tracer
+	 *            defaults to {@link NoOpOpenIdTracer}
+	 */
+	public void setTracer(OpenIdTracer tracer) {
+		Assert.notNull(tracer, "tracer cannot be null");
+		this.tracer = tracer;
+		defaultReturnToBuilder = null;
+	}
+
+	public HttpFetcher getHttpFetcher() {
+		return httpFetcher;
+	}
+
+	/**
+	 * Transport for discovery, association and verification requests of the
+	 * default consumer, ignored if a consumer is set. Use a
+	 * {@link org.springframework.social.openid.consumer.PooledHttpFetcher} for
+	 * persistent connections and per OP connection limits.
+	 * 
+	 * @param httpFetcher
+	 *            a thread-safe fetcher, defaults to an {@link HttpCache} per
+	 *            openid4java component
+	 */
+	public void setHttpFetcher(HttpFetcher httpFetcher) {
+		this.httpFetcher = httpFetcher;
+	}
+
+	public ProviderCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Rejects logins with a {@link ProviderUnavailableException} while an OP
+	 * keeps failing instead of waiting for its timeouts. Circuits are kept per
+	 * host of discovered OP endpoints and only count transport failures and
+	 * timeouts of association and verification requests. Only applies to the
+	 * default consumer.
+	 * 
+	 * @param circuitBreaker
+	 *            <code>null</code> (default) disables fast failing
+	 */
+	public void setCircuitBreaker(ProviderCircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public LoginRateLimiter getLoginRateLimiter() {
+		return loginRateLimiter;
+	}
+
+	/**
+	 * Rejects login initiations with a {@link LoginRateExceededException}
+	 * before any discovery once a client address or the host of claimed
+	 * identifiers exceeds its rate, protecting against abuse of discovery
+	 * requests to arbitrary URLs.
+	 * 
+	 * @param loginRateLimiter
+	 *            <code>null</code> (default) disables admission control
+	 */
+	public void setLoginRateLimiter(LoginRateLimiter loginRateLimiter) {
+		this.loginRateLimiter = loginRateLimiter;
+	}
+
+	/**
+	 * Establishes associations of the default consumer in the background
+	 * rather than during login, keeping Diffie-Hellman key generation off
+	 * request threads. Logins to OPs without association use stateless mode
+	 * meanwhile.
+	 * 
+	 * @param associationExecutor
+	 *            a small bounded executor, <code>null</code> (default) to
+	 *            associate on request threads
+	 */
+	public void setAssociationExecutor(Executor associationExecutor) {
+		this.associationExecutor = associationExecutor;
+	}
+
+	public EndpointSelector getEndpointSelector() {
+		return endpointSelector;
+	}
+
+	/**
+	 * Lets the default consumer prefer the fastest healthy OP endpoint if
+	 * discovery returns several, within XRDS priority classes.
+	 * 
+	 * @param endpointSelector
+	 *            <code>null</code> (default) to use the first endpoint
+	 *            discovered
+	 */
+	public void setEndpointSelector(EndpointSelector endpointSelector) {
+		this.endpointSelector = endpointSelector;
+	}
+
+	public boolean isAsyncVerification() {
+		return verificationExecutor != null;
+	}
+
+	/**
+	 * Enables asynchronous verification of OpenID callbacks (including direct
+	 * <tt>check_authentication</tt> requests to the OP) by
+	 * {@link OpenIdSocialAuthenticationFilter}. Requires async support of the
+	 * servlet container and all filters in front of it. Use a bounded executor,
+	 * callbacks rejected by the executor are verified synchronously.
+	 * 
+	 * @param verificationExecutor
+	 *            <code>null</code> (default) for synchronous verification
+	 */
+	public void setVerificationExecutor(Executor verificationExecutor) {
+		this.verificationExecutor = verificationExecutor;
+	}
+
+	/**
+	 * @param asyncVerificationTimeout
+	 *            milliseconds before asynchronous verification fails, defaults
+	 *            to {@link #DEFAULT_ASYNC_VERIFICATION_TIMEOUT}
+	 */
+	public void setAsyncVerificationTimeout(long asyncVerificationTimeout) {
+		this.asyncVerificationTimeout = asyncVerificationTimeout;
+	}
+
 	public IRealmMapper getRealmMapper() {
 		return realmMapper;
 	}
 
 	public void setRealmMapper(IRealmMapper realmMapper) {
 		this.realmMapper = realmMapper;
+		defaultReturnToBuilder = null;
+	}
+
+	/**
+	 * @return the configured builder or the default one, built on first use
+	 */
+	public IReturnToBuilder getReturnToBuilder() {
+		return returnToBuilder != null ? returnToBuilder : getDefaultReturnToBuilder();
+	}
+
+	private CompiledReturnToBuilder getDefaultReturnToBuilder() {
+		CompiledReturnToBuilder builder = defaultReturnToBuilder;
+		if (builder == null) {
+			// racing threads build equivalent instances
+			builder = new CompiledReturnToBuilder(returnToUrlParameters, realmMapper);
+			builder.setTracer(tracer);
+			defaultReturnToBuilder = builder;
+		}
+		return builder;
+	}
+
+	/**
+	 * Builds <tt>return_to</tt> URL and realm of login initiations.
+	 * 
+	 * @param returnToBuilder
+	 *            defaults to a {@link CompiledReturnToBuilder} using
+	 *            {@link #setReturnToUrlParameters(Set)} and
+	 *            {@link #setRealmMapper(IRealmMapper)}
+	 */
+	public void setReturnToBuilder(IReturnToBuilder returnToBuilder) {
+		this.returnToBuilder = returnToBuilder;
 	}
 
 	/**
 	 * Specifies any extra parameters submitted along with the identity field
 	 * which should be appended to the {@code return_to} URL which is assembled
-	 * by {@link #buildReturnToUrl}.
+	 * by the default {@link IReturnToBuilder}.
 	 *
 	 * @param returnToUrlParameters
 	 *            the set of parameter names. If not set, it will default to the
@@ -245,6 +865,7 @@ public class OpenIdAuthenticationService extends AbstractSocialAuthenticationSer
 	public void setReturnToUrlParameters(Set<String> returnToUrlParameters) {
 		Assert.notNull(returnToUrlParameters, "returnToUrlParameters cannot be null");
 		this.returnToUrlParameters = returnToUrlParameters;
+		defaultReturnToBuilder = null;
 	}
 
 }
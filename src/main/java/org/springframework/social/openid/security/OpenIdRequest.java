@@ -0,0 +1,179 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.Enumeration;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openid4java.message.Parameter;
+import org.openid4java.message.ParameterList;
+import org.springframework.util.StringUtils;
+
+/**
+ * The <tt>openid.*</tt> parameters of a request, read in a single pass over
+ * the parameter names and kept as request attribute, shared by
+ * {@link OpenIdSocialAuthenticationFilter}, {@link OpenIdAuthenticationService}
+ * and {@link DefaultOpenIdConsumer}.
+ */
+public final class OpenIdRequest {
+
+	public enum Phase {
+		/**
+		 * login form submitted, redirect to the OP
+		 */
+		INITIATE,
+		/**
+		 * positive assertion from the OP
+		 */
+		CALLBACK,
+		/**
+		 * cancelled or failed at the OP
+		 */
+		REJECTION,
+		/**
+		 * no OpenID request
+		 */
+		NONE
+	}
+
+	public static final String DEFAULT_CLAIMED_IDENTITY_PARAMETER = "openid_identifier";
+
+	private static final String ATTRIBUTE = OpenIdRequest.class.getName();
+	private static final String PREFIX = "openid.";
+	private static final String[] EMPTY = new String[0];
+
+	private final String[] names;
+	private final String[] values;
+	private final String claimedIdentityParameter;
+	private final Phase phase;
+
+	private OpenIdRequest(String[] names, String[] values, String claimedIdentityParameter, boolean claimedIdentity) {
+		this.names = names;
+		this.values = values;
+		this.claimedIdentityParameter = claimedIdentityParameter;
+
+		if (StringUtils.hasText(getParameter("openid.identity"))) {
+			phase = Phase.CALLBACK;
+		} else if (claimedIdentity) {
+			phase = Phase.INITIATE;
+		} else if (getParameter("openid.mode") != null) {
+			phase = Phase.REJECTION;
+		} else {
+			phase = Phase.NONE;
+		}
+	}
+
+	/**
+	 * @return the parsed <tt>openid.*</tt> parameters of the request, a login
+	 *         initiated by the {@link #DEFAULT_CLAIMED_IDENTITY_PARAMETER}
+	 * @see #get(HttpServletRequest, String)
+	 */
+	public static OpenIdRequest get(HttpServletRequest request) {
+		return get(request, DEFAULT_CLAIMED_IDENTITY_PARAMETER);
+	}
+
+	/**
+	 * @param claimedIdentityParameter
+	 *            name of the parameter initiating a login
+	 * @return the parsed <tt>openid.*</tt> parameters of the request, parsed
+	 *         once per request
+	 */
+	public static OpenIdRequest get(HttpServletRequest request, String claimedIdentityParameter) {
+		OpenIdRequest openIdRequest = (OpenIdRequest) request.getAttribute(ATTRIBUTE);
+		if (openIdRequest == null) {
+			openIdRequest = parse(request, claimedIdentityParameter);
+			request.setAttribute(ATTRIBUTE, openIdRequest);
+		} else if (!openIdRequest.claimedIdentityParameter.equals(claimedIdentityParameter)) {
+			// reuse the parameters, only the phase depends on the name
+			openIdRequest = new OpenIdRequest(openIdRequest.names, openIdRequest.values, claimedIdentityParameter,
+					request.getParameter(claimedIdentityParameter) != null);
+			request.setAttribute(ATTRIBUTE, openIdRequest);
+		}
+		return openIdRequest;
+	}
+
+	private static OpenIdRequest parse(HttpServletRequest request, String claimedIdentityParameter) {
+		String[] names = EMPTY;
+		String[] values = EMPTY;
+		int size = 0;
+		boolean claimedIdentity = false;
+
+		Enumeration<?> e = request.getParameterNames();
+		while (e.hasMoreElements()) {
+			String name = (String) e.nextElement();
+			if (name.startsWith(PREFIX)) {
+				if (size == names.length) {
+					int capacity = size == 0 ? 16 : size * 2;
+					names = copy(names, capacity);
+					values = copy(values, capacity);
+				}
+				names[size] = name;
+				values[size] = request.getParameter(name);
+				size++;
+			} else if (claimedIdentityParameter.equals(name)) {
+				claimedIdentity = true;
+			}
+		}
+		return new OpenIdRequest(copy(names, size), copy(values, size), claimedIdentityParameter, claimedIdentity);
+	}
+
+	private static String[] copy(String[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		String[] copy = new String[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return the first value of an <tt>openid.*</tt> parameter or
+	 *         <code>null</code>
+	 */
+	public String getParameter(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	public String getIdentity() {
+		return getParameter("openid.identity");
+	}
+
+	public String getOpEndpoint() {
+		return getParameter("openid.op_endpoint");
+	}
+
+	/**
+	 * @return a new {@link ParameterList} of all <tt>openid.*</tt> parameters
+	 */
+	public ParameterList toParameterList() {
+		ParameterList list = new ParameterList();
+		for (int i = 0; i < names.length; i++) {
+			list.set(new Parameter(names[i], values[i]));
+		}
+		return list;
+	}
+}
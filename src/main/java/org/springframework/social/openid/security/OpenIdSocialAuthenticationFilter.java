@@ -15,52 +15,121 @@
  */
 package org.springframework.social.openid.security;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.io.IOException;
 
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.social.UserIdSource;
 import org.springframework.social.connect.UsersConnectionRepository;
 import org.springframework.social.security.SocialAuthenticationFilter;
 import org.springframework.social.security.SocialAuthenticationServiceLocator;
+import org.springframework.social.security.provider.SocialAuthenticationService;
 
 /**
  * overrides {@link SocialAuthenticationFilter#detectRejection(HttpServletRequest)} to support
- * OpenID requests.
+ * OpenID requests. Verifies OpenID callbacks asynchronously if enabled on the
+ * {@link OpenIdAuthenticationService}. When caching connection lookups, pass
+ * the {@link org.springframework.social.openid.connect.CachingUsersConnectionRepository}
+ * shared with the {@link org.springframework.social.security.SocialAuthenticationProvider}.
  *
  */
 public class OpenIdSocialAuthenticationFilter extends SocialAuthenticationFilter {
 
-	private static final List<String> EXPECTED_OPENID_PARAMS = Collections.unmodifiableList(Arrays.asList(
-			"openid_identifier", "openid.identity"));
-
 	public OpenIdSocialAuthenticationFilter(final AuthenticationManager authManager, final UserIdSource userIdSource, final UsersConnectionRepository usersConnectionRepository, final SocialAuthenticationServiceLocator authServiceLocator) {
 		super(authManager, userIdSource, usersConnectionRepository, authServiceLocator);
 	}
 
+	@Override
+	@SuppressWarnings("deprecation")
+	public void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain) throws IOException, ServletException {
+		final HttpServletRequest request = (HttpServletRequest) req;
+		final HttpServletResponse response = (HttpServletResponse) res;
+
+		// the same URL matching as the base class, deprecated in favor of a RequestMatcher it doesn't expose
+		if (request.getDispatcherType() == DispatcherType.REQUEST && requiresAuthentication(request, response)) {
+			final OpenIdAuthenticationService authService = getOpenIdAuthenticationService(request);
+			if (authService != null && authService.startAsyncVerification(request, response)) {
+				// continued on async dispatch
+				return;
+			}
+		}
+		super.doFilter(req, res, chain);
+	}
+
 	@Override
 	protected boolean detectRejection(final HttpServletRequest request) {
-		if (!super.detectRejection(request)) {
+		final OpenIdRequest openIdRequest = OpenIdRequest.get(request, getClaimedIdentityFieldName(request));
+		switch (openIdRequest.getPhase()) {
+		case INITIATE:
+		case CALLBACK:
 			return false;
-		} else {
-			return isOpenIdRequest(request);
+		case REJECTION:
+			return isRejection(openIdRequest);
+		default:
+			return isRejection(openIdRequest) && super.detectRejection(request);
 		}
 	}
 
-	public static boolean isOpenIdRequest(final HttpServletRequest request) {
-		final Set<?> parameterKeys = request.getParameterMap().keySet();
-		if (!parameterKeys.isEmpty()) {
-			for (final String expected : EXPECTED_OPENID_PARAMS) {
-				if (parameterKeys.contains(expected)) {
-					return false;
-				}
-			}
+	/**
+	 * @return the service of the provider requested by a request that
+	 *         {@link #requiresAuthentication(HttpServletRequest, HttpServletResponse)
+	 *         requires authentication} if it's an OpenID provider
+	 */
+	private OpenIdAuthenticationService getOpenIdAuthenticationService(final HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		final int pathParamIndex = uri.indexOf(';');
+		if (pathParamIndex > 0) {
+			uri = uri.substring(0, pathParamIndex);
+		}
+		final String providerId = uri.substring(uri.lastIndexOf('/') + 1);
+		if (!getAuthServiceLocator().registeredAuthenticationProviderIds().contains(providerId)) {
+			return null;
 		}
-		return true;
+		final SocialAuthenticationService<?> authService = getAuthServiceLocator().getAuthenticationService(providerId);
+		return authService instanceof OpenIdAuthenticationService ? (OpenIdAuthenticationService) authService : null;
+	}
+
+	private String getClaimedIdentityFieldName(final HttpServletRequest request) {
+		final OpenIdAuthenticationService authService = getOpenIdAuthenticationService(request);
+		return authService != null ? authService.getClaimedIdentityFieldName()
+				: OpenIdRequest.DEFAULT_CLAIMED_IDENTITY_PARAMETER;
+	}
+
+	/**
+	 * an <tt>openid.identity</tt> parameter, even an empty one, marks a
+	 * response to an OpenID login rather than a rejection
+	 */
+	private static boolean isRejection(final OpenIdRequest openIdRequest) {
+		return openIdRequest.getIdentity() == null;
+	}
+
+	/**
+	 * @return <code>true</code> unless the request initiates an OpenID login
+	 *         or carries an <tt>openid.identity</tt>
+	 * @see #isOpenIdRequest(HttpServletRequest, String)
+	 */
+	public static boolean isOpenIdRequest(final HttpServletRequest request) {
+		return isOpenIdRequest(request, OpenIdRequest.DEFAULT_CLAIMED_IDENTITY_PARAMETER);
+	}
+
+	/**
+	 * @param claimedIdentityFieldName
+	 *            as configured on the {@link OpenIdAuthenticationService}
+	 * @return <code>true</code> unless the request initiates an OpenID login
+	 *         or carries an <tt>openid.identity</tt>
+	 */
+	public static boolean isOpenIdRequest(final HttpServletRequest request, final String claimedIdentityFieldName) {
+		final OpenIdRequest openIdRequest = OpenIdRequest.get(request, claimedIdentityFieldName);
+		final OpenIdRequest.Phase phase = openIdRequest.getPhase();
+		return phase != OpenIdRequest.Phase.INITIATE && phase != OpenIdRequest.Phase.CALLBACK
+				&& isRejection(openIdRequest);
 	}
 
 }
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+/**
+ * <tt>return_to</tt> URL and realm sent to the OP.
+ */
+public final class ReturnTo {
+
+	private final String url;
+	private final String realm;
+
+	public ReturnTo(String url, String realm) {
+		this.url = url;
+		this.realm = realm;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	@Override
+	public String toString() {
+		return "return_to is '" + url + "', realm is '" + realm + "'";
+	}
+}
@@ -0,0 +1,364 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.social.UserIdSource;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.mem.InMemoryUsersConnectionRepository;
+import org.springframework.social.openid.connect.CachingUsersConnectionRepository;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.openid.security.OpenIdAuthenticationService;
+import org.springframework.social.openid.security.OpenIdSocialAuthenticationFilter;
+import org.springframework.social.security.SocialAuthenticationProvider;
+import org.springframework.social.security.SocialAuthenticationServiceRegistry;
+import org.springframework.social.security.SocialUser;
+import org.springframework.social.security.SocialUserDetails;
+import org.springframework.social.security.SocialUserDetailsService;
+
+/**
+ * Pushes full logins through {@link OpenIdSocialAuthenticationFilter} and
+ * {@link OpenIdAuthenticationService} against a {@link StubOpenIdProvider}:
+ * the login form is submitted, the user agent follows the redirect to the OP
+ * and back to the callback. Returning users are looked up through a shared
+ * {@link CachingUsersConnectionRepository}, new ones signed up.
+ */
+public class LoadDriver {
+
+	private final StubOpenIdProvider provider;
+	private final OpenIdAuthenticationService service;
+	private final OpenIdSocialAuthenticationFilter filter;
+
+	private int threads = 4;
+	private int flows = 1000;
+	private int users = 100;
+
+	public LoadDriver() throws Exception {
+		provider = new StubOpenIdProvider();
+
+		service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+		service.afterPropertiesSet();
+
+		SocialAuthenticationServiceRegistry registry = new SocialAuthenticationServiceRegistry();
+		registry.addAuthenticationService(service);
+
+		// stands in for a database, not thread-safe on its own
+		InMemoryUsersConnectionRepository delegate = new InMemoryUsersConnectionRepository(registry) {
+
+			@Override
+			public synchronized List<String> findUserIdsWithConnection(Connection<?> connection) {
+				return super.findUserIdsWithConnection(connection);
+			}
+
+			@Override
+			public synchronized Set<String> findUserIdsConnectedTo(String providerId, Set<String> providerUserIds) {
+				return super.findUserIdsConnectedTo(providerId, providerUserIds);
+			}
+
+			@Override
+			public synchronized ConnectionRepository createConnectionRepository(String userId) {
+				return super.createConnectionRepository(userId);
+			}
+		};
+		delegate.setConnectionSignUp(new ConnectionSignUp() {
+
+			@Override
+			public String execute(Connection<?> connection) {
+				return connection.getKey().getProviderUserId();
+			}
+		});
+		CachingUsersConnectionRepository repository = new CachingUsersConnectionRepository(delegate);
+
+		AuthenticationProvider authProvider = new SocialAuthenticationProvider(repository,
+				new SocialUserDetailsService() {
+
+					@Override
+					public SocialUserDetails loadUserByUserId(String userId) throws UsernameNotFoundException {
+						return new SocialUser(userId, "", Collections.<GrantedAuthority> emptyList());
+					}
+				});
+		AuthenticationManager authManager = new ProviderManager(Collections.singletonList(authProvider));
+
+		filter = new OpenIdSocialAuthenticationFilter(authManager, new UserIdSource() {
+
+			@Override
+			public String getUserId() {
+				throw new UnsupportedOperationException("connecting accounts isn't driven");
+			}
+		}, repository, registry);
+	}
+
+	public StubOpenIdProvider getProvider() {
+		return provider;
+	}
+
+	public OpenIdAuthenticationService getService() {
+		return service;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setFlows(int flows) {
+		this.flows = flows;
+	}
+
+	/**
+	 * @param users
+	 *            distinct OpenIDs logging in, each signed up on first login
+	 */
+	public void setUsers(int users) {
+		this.users = users;
+	}
+
+	public Result run() throws Exception {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+		int threadsBefore = threadBean.getThreadCount();
+
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		List<Callable<long[]>> workers = new ArrayList<Callable<long[]>>();
+		for (int i = 0; i < threads; i++) {
+			workers.add(new Callable<long[]>() {
+
+				@Override
+				public long[] call() {
+					long[] latencies = new long[flows];
+					int count = 0;
+					int flow;
+					while ((flow = next.getAndIncrement()) < flows) {
+						long start = System.nanoTime();
+						if (!login("user" + flow % users)) {
+							failures.incrementAndGet();
+						}
+						latencies[count++] = System.nanoTime() - start;
+					}
+					return Arrays.copyOf(latencies, count);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		List<long[]> results = new ArrayList<long[]>();
+		try {
+			for (Future<long[]> future : executor.invokeAll(workers)) {
+				results.add(future.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		return new Result(threads, elapsed, results, failures.get(), threadsBefore, threadBean.getPeakThreadCount());
+	}
+
+	public void stop() throws Exception {
+		service.destroy();
+		provider.stop();
+	}
+
+	/**
+	 * @return <code>true</code> if the user was logged in
+	 */
+	private boolean login(String user) {
+		MockHttpSession session = new MockHttpSession();
+		try {
+			MockHttpServletRequest initiate = request("/auth/openid", session);
+			initiate.setMethod("POST");
+			initiate.addParameter(OpenIdAuthenticationService.DEFAULT_CLAIMED_IDENTITY_FIELD,
+					provider.getClaimedIdentifier(user));
+			String redirectUrl = doFilter(initiate);
+			if (redirectUrl == null || !redirectUrl.startsWith(provider.getEndpoint())) {
+				return false;
+			}
+
+			String callbackUrl = follow(redirectUrl);
+			if (callbackUrl == null) {
+				return false;
+			}
+			return "/".equals(doFilter(callback(callbackUrl, session)));
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+	}
+
+	private String doFilter(MockHttpServletRequest request) throws IOException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		try {
+			filter.doFilter(request, response, new MockFilterChain());
+		} catch (AuthenticationException e) {
+			return null;
+		} catch (javax.servlet.ServletException e) {
+			throw new IOException(e);
+		}
+		return response.getRedirectedUrl();
+	}
+
+	/**
+	 * @return the location the OP redirects the user agent to, or
+	 *         <code>null</code> on errors
+	 */
+	private static String follow(String redirectUrl) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(redirectUrl).openConnection();
+		connection.setInstanceFollowRedirects(false);
+		try {
+			return connection.getResponseCode() == HttpServletResponse.SC_FOUND ? connection
+					.getHeaderField("Location") : null;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static MockHttpServletRequest callback(String callbackUrl, MockHttpSession session) throws IOException {
+		URI uri = URI.create(callbackUrl);
+		MockHttpServletRequest request = request(uri.getPath(), session);
+		request.setScheme(uri.getScheme());
+		request.setServerName(uri.getHost());
+		request.setServerPort(uri.getPort() < 0 ? 80 : uri.getPort());
+		request.setQueryString(uri.getRawQuery());
+		for (String pair : uri.getRawQuery().split("&")) {
+			int eq = pair.indexOf('=');
+			request.addParameter(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+					URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return request;
+	}
+
+	private static MockHttpServletRequest request(String uri, MockHttpSession session) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+		request.setSession(session);
+		request.setRemoteAddr("192.0.2.1");
+		return request;
+	}
+
+	/**
+	 * Throughput, latency percentiles and thread usage of a run.
+	 */
+	public static final class Result {
+
+		private final int threads;
+		private final long elapsedNanos;
+		private final long[] latencies;
+		private final int failures;
+		private final int threadsBefore;
+		private final int peakThreads;
+
+		private Result(int threads, long elapsedNanos, Collection<long[]> latencies, int failures,
+				int threadsBefore, int peakThreads) {
+			this.threads = threads;
+			this.elapsedNanos = elapsedNanos;
+			int count = 0;
+			for (long[] l : latencies) {
+				count += l.length;
+			}
+			this.latencies = new long[count];
+			int offset = 0;
+			for (long[] l : latencies) {
+				System.arraycopy(l, 0, this.latencies, offset, l.length);
+				offset += l.length;
+			}
+			Arrays.sort(this.latencies);
+			this.failures = failures;
+			this.threadsBefore = threadsBefore;
+			this.peakThreads = peakThreads;
+		}
+
+		public int getFlows() {
+			return latencies.length;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return flows per second
+		 */
+		public double getThroughput() {
+			return latencies.length * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @param percentile
+		 *            0 to 100
+		 * @return latency in milliseconds
+		 */
+		public double getLatency(double percentile) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+		}
+
+		/**
+		 * @return threads started during the run beyond the driver's own,
+		 *         at peak
+		 */
+		public int getExtraThreads() {
+			return Math.max(0, peakThreads - threadsBefore - threads);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d flows, %d failed, %d threads: %.1f/s, p50 %.2fms, p90 %.2fms, p99 %.2fms, "
+					+ "max %.2fms, peak threads %d (%d beyond driver)", getFlows(), failures, threads,
+					getThroughput(), getLatency(50), getLatency(90), getLatency(99), getLatency(100), peakThreads,
+					getExtraThreads());
+		}
+	}
+}
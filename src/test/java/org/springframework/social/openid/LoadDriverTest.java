@@ -0,0 +1,59 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Smoke test of the {@link LoadDriver}. Run bigger loads with e.g.
+ * <code>mvn test -Dtest=LoadDriverTest -Dload.threads=32 -Dload.flows=100000</code>.
+ */
+public class LoadDriverTest {
+
+	private LoadDriver driver;
+
+	@Before
+	public void before() throws Exception {
+		driver = new LoadDriver();
+		driver.setThreads(Integer.getInteger("load.threads", 4));
+		driver.setFlows(Integer.getInteger("load.flows", 200));
+		driver.setUsers(Integer.getInteger("load.users", 20));
+		driver.getProvider().setLatency(Long.getLong("load.latency", 0));
+	}
+
+	@After
+	public void after() throws Exception {
+		driver.stop();
+	}
+
+	@Test
+	public void logins() throws Exception {
+		LoadDriver.Result result = driver.run();
+		System.out.println(result);
+
+		assertEquals(0, result.getFailures());
+		assertEquals(Integer.getInteger("load.flows", 200).intValue(), result.getFlows());
+		assertTrue(result.getThroughput() > 0);
+		// associations are shared, only concurrent first logins associate
+		assertTrue(driver.getProvider().getAssociations() <= Integer.getInteger("load.threads", 4));
+	}
+}
@@ -0,0 +1,425 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.AuthSuccess;
+import org.openid4java.message.DirectError;
+import org.openid4java.message.Message;
+import org.openid4java.message.MessageException;
+import org.openid4java.message.MessageExtension;
+import org.openid4java.message.ParameterList;
+import org.openid4java.message.ax.AxMessage;
+import org.openid4java.message.ax.FetchRequest;
+import org.openid4java.message.ax.FetchResponse;
+import org.openid4java.message.sreg.SRegMessage;
+import org.openid4java.message.sreg.SRegRequest;
+import org.openid4java.message.sreg.SRegResponse;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.server.ServerManager;
+import org.openid4java.util.HttpFetcherFactory;
+import org.springframework.social.openid.consumer.OpenIdConsumerManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process OpenID 2.0 provider for tests, built on openid4java's
+ * {@link ServerManager}. Serves XRDS for claimed identifiers below
+ * <tt>/id/</tt>, associations, auto-approved positive assertions and
+ * <tt>check_authentication</tt> at <tt>/op</tt>. Latency and error rate are
+ * configurable.
+ */
+public class StubOpenIdProvider {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ServerManager serverManager = new ServerManager();
+	private final Random random = new Random();
+	private final List<String> services = new ArrayList<String>();
+	private final Map<String, String[]> documents = new ConcurrentHashMap<String, String[]>();
+	private final Map<String, String> axValues = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> sregValues = new ConcurrentHashMap<String, String>();
+
+	private final AtomicInteger discoveries = new AtomicInteger();
+	private final AtomicInteger associations = new AtomicInteger();
+	private final AtomicInteger authentications = new AtomicInteger();
+	private final AtomicInteger verifications = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+
+	private volatile long latency;
+	private volatile double errorRate;
+
+	public StubOpenIdProvider() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		serverManager.setOPEndpointUrl(getEndpoint());
+		server.createContext("/id/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (delay(exchange)) {
+					discoveries.incrementAndGet();
+					respond(exchange, 200, "application/xrds+xml", xrds());
+				}
+			}
+		});
+		server.createContext("/op", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (delay(exchange)) {
+					op(exchange);
+				}
+			}
+		});
+		server.createContext("/redirect", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String query = exchange.getRequestURI().getRawQuery();
+				String location = URLDecoder.decode(query.substring(query.indexOf('=') + 1), "UTF-8");
+				exchange.getResponseHeaders().set("Location", location);
+				respond(exchange, 302, "text/plain", "");
+			}
+		});
+		server.createContext("/static/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String[] document = documents.get(exchange.getRequestURI().getPath());
+				if (document == null) {
+					respond(exchange, 404, "text/plain", "not found");
+				} else if (delay(exchange)) {
+					respond(exchange, 200, document[0], document[1]);
+				}
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return a consumer manager with openid4java's default transport and
+	 *         discovery
+	 */
+	public static OpenIdConsumerManager createConsumerManager() {
+		HttpFetcherFactory httpFetcherFactory = new HttpFetcherFactory();
+		Discovery discovery = new Discovery(new HtmlResolver(httpFetcherFactory), new YadisResolver(
+				httpFetcherFactory), Discovery.getXriResolver());
+		return new OpenIdConsumerManager(new RealmVerifierFactory(new YadisResolver(httpFetcherFactory)), discovery,
+				httpFetcherFactory);
+	}
+
+	public ServerManager getServerManager() {
+		return serverManager;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public String getEndpoint() {
+		return getBaseUrl() + "/op";
+	}
+
+	public String getClaimedIdentifier(String user) {
+		return getBaseUrl() + "/id/" + user;
+	}
+
+	/**
+	 * @return URL redirecting to the given URL
+	 */
+	public String getRedirectUrl(String url) throws IOException {
+		return getBaseUrl() + "/redirect?to=" + URLEncoder.encode(url, "UTF-8");
+	}
+
+	/**
+	 * Serves a document, subject to latency and error rate.
+	 * 
+	 * @return the URL of the document
+	 */
+	public String serve(String name, String contentType, String body) {
+		documents.put("/static/" + name, new String[] { contentType, body });
+		return getBaseUrl() + "/static/" + name;
+	}
+
+	/**
+	 * Lists an OP endpoint in discovered XRDS documents, in addition to or
+	 * instead of (if {@link #setServices(String...)} is used) this provider.
+	 * 
+	 * @param endpointsAndPriorities
+	 *            alternating endpoint URL and XRDS priority
+	 */
+	public synchronized void setServices(String... endpointsAndPriorities) {
+		services.clear();
+		for (String s : endpointsAndPriorities) {
+			services.add(s);
+		}
+	}
+
+	/**
+	 * Answers Attribute Exchange fetch requests for <tt>type</tt> with
+	 * <tt>value</tt>.
+	 */
+	public void setAttribute(String type, String value) {
+		axValues.put(type, value);
+	}
+
+	/**
+	 * Answers Simple Registration requests for <tt>name</tt> with
+	 * <tt>value</tt>.
+	 */
+	public void setSRegAttribute(String name, String value) {
+		sregValues.put(name, value);
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	public int getDiscoveries() {
+		return discoveries.get();
+	}
+
+	public int getAssociations() {
+		return associations.get();
+	}
+
+	public int getAuthentications() {
+		return authentications.get();
+	}
+
+	public int getVerifications() {
+		return verifications.get();
+	}
+
+	public int getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * Follows the redirect of the user agent to the OP, as if the user logged
+	 * in and approved.
+	 * 
+	 * @return the URL the OP redirects back to, i.e. the callback with a
+	 *         positive assertion
+	 */
+	public String authenticate(String redirectUrl) throws IOException, MessageException {
+		int query = redirectUrl.indexOf('?');
+		ParameterList request = ParameterList.createFromQueryString(redirectUrl.substring(query + 1));
+		Message response = authResponse(request);
+		return response.getDestinationUrl(true);
+	}
+
+	private Message authResponse(ParameterList request) {
+		authentications.incrementAndGet();
+		String identity = request.getParameterValue("openid.claimed_id");
+		Message response = serverManager.authResponse(request, identity, identity, true, false);
+		if (response instanceof AuthSuccess) {
+			try {
+				addExtensions(request, (AuthSuccess) response);
+				serverManager.sign((AuthSuccess) response);
+			} catch (Exception e) {
+				throw new IllegalStateException("signing failed", e);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * answer AX and SReg requests with configured values, signing them
+	 */
+	private void addExtensions(ParameterList request, AuthSuccess response) throws Exception {
+		if (axValues.isEmpty() && sregValues.isEmpty()) {
+			// spare parsing, i.e. verifying the realm again
+			return;
+		}
+		AuthRequest authReq = AuthRequest.createAuthRequest(request, serverManager.getRealmVerifier());
+
+		FetchResponse fetchResponse = FetchResponse.createFetchResponse();
+		if (authReq.hasExtension(AxMessage.OPENID_NS_AX)) {
+			MessageExtension ext = authReq.getExtension(AxMessage.OPENID_NS_AX);
+			if (ext instanceof FetchRequest) {
+				Map<?, ?> requested = ((FetchRequest) ext).getAttributes();
+				for (Map.Entry<?, ?> e : requested.entrySet()) {
+					String value = axValues.get(e.getValue());
+					if (value != null) {
+						fetchResponse.addAttribute((String) e.getKey(), (String) e.getValue(), value);
+					}
+				}
+			}
+		}
+		if (!fetchResponse.getAttributes().isEmpty()) {
+			response.addExtension(fetchResponse);
+			response.addSignExtension(AxMessage.OPENID_NS_AX);
+		}
+
+		SRegResponse sregResponse = SRegResponse.createFetchResponse();
+		for (String ns : new String[] { SRegMessage.OPENID_NS_SREG11, SRegMessage.OPENID_NS_SREG }) {
+			if (authReq.hasExtension(ns)) {
+				MessageExtension ext = authReq.getExtension(ns);
+				if (ext instanceof SRegRequest) {
+					for (Object name : ((SRegRequest) ext).getAttributes()) {
+						String value = sregValues.get(name);
+						if (value != null) {
+							sregResponse.addAttribute((String) name, value);
+						}
+					}
+				}
+			}
+		}
+		if (!sregResponse.getAttributes().isEmpty()) {
+			response.addExtension(sregResponse);
+			response.addSignExtension(sregResponse.getTypeUri());
+		}
+	}
+
+	private synchronized String xrds() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		buf.append("<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n<XRD>\n");
+		if (services.isEmpty()) {
+			service(buf, getEndpoint(), 0);
+		} else {
+			for (int i = 0; i + 1 < services.size(); i += 2) {
+				service(buf, services.get(i), Integer.parseInt(services.get(i + 1)));
+			}
+		}
+		return buf.append("</XRD>\n</xrds:XRDS>\n").toString();
+	}
+
+	private static void service(StringBuilder buf, String endpoint, int priority) {
+		buf.append("<Service priority=\"").append(priority).append("\">\n");
+		buf.append("<Type>http://specs.openid.net/auth/2.0/signon</Type>\n");
+		buf.append("<URI>").append(endpoint).append("</URI>\n");
+		buf.append("</Service>\n");
+	}
+
+	private void op(HttpExchange exchange) throws IOException {
+		ParameterList request;
+		try {
+			if ("POST".equals(exchange.getRequestMethod())) {
+				request = ParameterList.createFromQueryString(read(exchange.getRequestBody()));
+			} else {
+				String query = exchange.getRequestURI().getRawQuery();
+				request = ParameterList.createFromQueryString(query == null ? "" : query);
+			}
+		} catch (MessageException e) {
+			respond(exchange, 400, "text/plain", e.getMessage());
+			return;
+		}
+
+		String mode = request.getParameterValue("openid.mode");
+		Message response;
+		if ("associate".equals(mode)) {
+			associations.incrementAndGet();
+			response = serverManager.associationResponse(request);
+		} else if ("check_authentication".equals(mode)) {
+			verifications.incrementAndGet();
+			response = serverManager.verify(request);
+		} else if ("checkid_setup".equals(mode) || "checkid_immediate".equals(mode)) {
+			exchange.getResponseHeaders().set("Location", authResponse(request).getDestinationUrl(true));
+			respond(exchange, 302, "text/plain", "");
+			return;
+		} else {
+			response = DirectError.createDirectError("unknown mode: " + mode);
+		}
+		respond(exchange, response instanceof DirectError ? 400 : 200, "text/plain", response.keyValueFormEncoding());
+	}
+
+	/**
+	 * @return <code>false</code> if an error was sent
+	 */
+	private boolean delay(HttpExchange exchange) throws IOException {
+		long latency = this.latency;
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		double errorRate = this.errorRate;
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			errors.incrementAndGet();
+			respond(exchange, 503, "text/plain", "unavailable");
+			return false;
+		}
+		return true;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while ((read = in.read(buf)) >= 0) {
+			out.write(buf, 0, read);
+		}
+		return new String(out.toByteArray(), UTF_8);
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body)
+			throws IOException {
+		byte[] bytes = body.getBytes(UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		if (bytes.length == 0 || "HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
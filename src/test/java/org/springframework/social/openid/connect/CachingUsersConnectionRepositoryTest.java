@@ -0,0 +1,260 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+public class CachingUsersConnectionRepositoryTest {
+
+	private MapUsersConnectionRepository delegate;
+	private CachingUsersConnectionRepository repository;
+	private Connection<?> connection;
+	private ExecutorService executor;
+
+	@Before
+	public void before() {
+		delegate = new MapUsersConnectionRepository();
+		repository = new CachingUsersConnectionRepository(delegate);
+		connection = new OpenIdConnection(new ConnectionData(OpenIdConnectionFactory.PROVIDER_ID,
+				"https://op.example.com/id/alice", null, null, null, null, null, null, null),
+				new OpenIdServiceProvider(), new OpenIdAdapter());
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void after() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void cachesFoundUsers() {
+		assertEquals(Collections.emptyList(), repository.findUserIdsWithConnection(connection));
+		repository.createConnectionRepository("alice").addConnection(connection);
+
+		assertEquals(Collections.singletonList("alice"), repository.findUserIdsWithConnection(connection));
+		assertEquals(Collections.singletonList("alice"), repository.findUserIdsWithConnection(connection));
+		assertEquals(2, delegate.lookups);
+		assertEquals(1, repository.getHits());
+		assertEquals(1, repository.size());
+	}
+
+	@Test
+	public void removeInvalidates() {
+		repository.createConnectionRepository("alice").addConnection(connection);
+		repository.findUserIdsWithConnection(connection);
+
+		repository.createConnectionRepository("alice").removeConnection(connection.getKey());
+		assertEquals(Collections.emptyList(), repository.findUserIdsWithConnection(connection));
+
+		repository.createConnectionRepository("alice").addConnection(connection);
+		repository.findUserIdsWithConnection(connection);
+		repository.createConnectionRepository("alice").removeConnections(OpenIdConnectionFactory.PROVIDER_ID);
+		assertEquals(Collections.emptyList(), repository.findUserIdsWithConnection(connection));
+	}
+
+	@Test
+	public void removeDuringLookup() throws Exception {
+		repository.createConnectionRepository("alice").addConnection(connection);
+
+		Future<List<String>> lookup = lookupBlocked();
+		repository.createConnectionRepository("alice").removeConnection(connection.getKey());
+		delegate.release.countDown();
+
+		// the stale result is returned but not cached
+		assertEquals(Collections.singletonList("alice"), lookup.get(1, TimeUnit.SECONDS));
+		assertEquals(Collections.emptyList(), repository.findUserIdsWithConnection(connection));
+	}
+
+	@Test
+	public void removeAllDuringLookup() throws Exception {
+		repository.createConnectionRepository("alice").addConnection(connection);
+
+		Future<List<String>> lookup = lookupBlocked();
+		repository.createConnectionRepository("alice").removeConnections(OpenIdConnectionFactory.PROVIDER_ID);
+		delegate.release.countDown();
+
+		assertEquals(Collections.singletonList("alice"), lookup.get(1, TimeUnit.SECONDS));
+		assertEquals(Collections.emptyList(), repository.findUserIdsWithConnection(connection));
+		assertEquals(0, repository.size());
+	}
+
+	private Future<List<String>> lookupBlocked() throws InterruptedException {
+		delegate.block();
+		Future<List<String>> lookup = executor.submit(new Callable<List<String>>() {
+
+			@Override
+			public List<String> call() {
+				return repository.findUserIdsWithConnection(connection);
+			}
+		});
+		assertTrue(delegate.looking.await(1, TimeUnit.SECONDS));
+		return lookup;
+	}
+
+	/**
+	 * Users by connection key, lookups optionally blocked until released.
+	 */
+	private static final class MapUsersConnectionRepository implements UsersConnectionRepository {
+
+		private final Map<ConnectionKey, List<String>> userIds = Collections
+				.synchronizedMap(new HashMap<ConnectionKey, List<String>>());
+		private volatile CountDownLatch looking;
+		private volatile CountDownLatch release;
+		private volatile int lookups;
+
+		private void block() {
+			looking = new CountDownLatch(1);
+			release = new CountDownLatch(1);
+		}
+
+		@Override
+		public List<String> findUserIdsWithConnection(Connection<?> connection) {
+			lookups++;
+			List<String> found;
+			synchronized (userIds) {
+				List<String> users = userIds.get(connection.getKey());
+				found = users == null ? new ArrayList<String>() : new ArrayList<String>(users);
+			}
+			if (release != null) {
+				looking.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				release = null;
+			}
+			return found;
+		}
+
+		@Override
+		public Set<String> findUserIdsConnectedTo(String providerId, Set<String> providerUserIds) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ConnectionRepository createConnectionRepository(final String userId) {
+			return new ConnectionRepository() {
+
+				@Override
+				public void addConnection(Connection<?> connection) {
+					synchronized (userIds) {
+						List<String> users = userIds.get(connection.getKey());
+						if (users == null) {
+							userIds.put(connection.getKey(), users = new ArrayList<String>());
+						}
+						users.add(userId);
+					}
+				}
+
+				@Override
+				public void removeConnection(ConnectionKey connectionKey) {
+					synchronized (userIds) {
+						List<String> users = userIds.get(connectionKey);
+						if (users != null) {
+							users.remove(userId);
+						}
+					}
+				}
+
+				@Override
+				public void removeConnections(String providerId) {
+					synchronized (userIds) {
+						for (Iterator<Map.Entry<ConnectionKey, List<String>>> iter = userIds.entrySet().iterator(); iter
+								.hasNext();) {
+							Map.Entry<ConnectionKey, List<String>> e = iter.next();
+							if (e.getKey().getProviderId().equals(providerId)) {
+								e.getValue().remove(userId);
+							}
+						}
+					}
+				}
+
+				@Override
+				public void updateConnection(Connection<?> connection) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public MultiValueMap<String, Connection<?>> findAllConnections() {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public List<Connection<?>> findConnections(String providerId) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public MultiValueMap<String, Connection<?>> findConnectionsToUsers(
+						MultiValueMap<String, String> providerUserIds) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public Connection<?> getConnection(ConnectionKey connectionKey) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public <A> Connection<A> getConnection(Class<A> apiType, String providerUserId) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
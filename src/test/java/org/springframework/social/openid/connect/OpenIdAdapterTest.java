@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.springframework.social.connect.ConnectionValues;
+import org.springframework.social.connect.UserProfile;
+import org.springframework.social.openid.api.impl.OpenIdTemplate;
+
+public class OpenIdAdapterTest {
+
+	private static final String OPENID = "https://op.example.com/id/alice";
+
+	@Test
+	public void cachedProfile() {
+		OpenIdProfileCache profileCache = new OpenIdProfileCache();
+		profileCache.put(OPENID, new OpenIdProfile("alice@example.com", null, "Alice", "Liddell", "alice",
+				"https://example.com/alice", "https://example.com/alice.png"));
+		OpenIdAdapter adapter = new OpenIdAdapter(profileCache);
+
+		Values values = new Values();
+		adapter.setConnectionValues(new OpenIdTemplate(OPENID), values);
+		assertEquals(OPENID, values.providerUserId);
+		assertEquals("Alice Liddell", values.displayName);
+		assertEquals("https://example.com/alice", values.profileUrl);
+		assertEquals("https://example.com/alice.png", values.imageUrl);
+
+		UserProfile userProfile = adapter.fetchUserProfile(new OpenIdTemplate(OPENID));
+		assertEquals(OPENID, userProfile.getUsername());
+		assertEquals("Alice Liddell", userProfile.getName());
+		assertEquals("Alice", userProfile.getFirstName());
+		assertEquals("Liddell", userProfile.getLastName());
+		assertEquals("alice@example.com", userProfile.getEmail());
+	}
+
+	@Test
+	public void missingProfile() {
+		OpenIdProfileCache profileCache = new OpenIdProfileCache();
+		profileCache.put(OPENID, new OpenIdProfile(null, null, null, null, "alice", null, null));
+
+		for (OpenIdAdapter adapter : new OpenIdAdapter[] { new OpenIdAdapter(), new OpenIdAdapter(profileCache) }) {
+			String openId = "https://op.example.com/id/bob";
+			Values values = new Values();
+			adapter.setConnectionValues(new OpenIdTemplate(openId), values);
+			assertEquals(openId, values.providerUserId);
+			assertNull(values.displayName);
+			assertNull(values.profileUrl);
+			assertNull(values.imageUrl);
+
+			UserProfile userProfile = adapter.fetchUserProfile(new OpenIdTemplate(openId));
+			assertEquals(openId, userProfile.getUsername());
+			assertNull(userProfile.getName());
+			assertNull(userProfile.getEmail());
+		}
+
+		// nickname only
+		Values values = new Values();
+		new OpenIdAdapter(profileCache).setConnectionValues(new OpenIdTemplate(OPENID), values);
+		assertEquals("alice", values.displayName);
+		assertNull(values.profileUrl);
+	}
+
+	private static final class Values implements ConnectionValues {
+
+		private String providerUserId;
+		private String displayName;
+		private String profileUrl;
+		private String imageUrl;
+
+		@Override
+		public void setProviderUserId(String providerUserId) {
+			this.providerUserId = providerUserId;
+		}
+
+		@Override
+		public void setDisplayName(String displayName) {
+			this.displayName = displayName;
+		}
+
+		@Override
+		public void setProfileUrl(String profileUrl) {
+			this.profileUrl = profileUrl;
+		}
+
+		@Override
+		public void setImageUrl(String imageUrl) {
+			this.imageUrl = imageUrl;
+		}
+	}
+}
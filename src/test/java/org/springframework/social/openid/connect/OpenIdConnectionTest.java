@@ -0,0 +1,283 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.social.connect.ConnectionValues;
+import org.springframework.social.connect.UserProfile;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.openid.api.OpenId;
+
+public class OpenIdConnectionTest {
+
+	private static final String OPENID = "https://op.example.com/id/alice";
+
+	@Test
+	public void roundTrip() throws Exception {
+		OpenIdConnectionFactory factory = new OpenIdConnectionFactory("openid-roundtrip", new OpenIdProfileCache());
+		Connection<OpenId> connection = factory.createConnection(new ConnectionData("openid-roundtrip", OPENID,
+				"Alice", "https://example.com/alice", null, null, null, null, null));
+
+		Connection<?> copy = roundTrip(connection);
+		assertEquals(OpenIdConnection.class, copy.getClass());
+		assertEquals(connection.getKey(), copy.getKey());
+		assertEquals("Alice", copy.getDisplayName());
+		assertEquals("https://example.com/alice", copy.getProfileUrl());
+		assertNull(copy.getImageUrl());
+		assertEquals(OPENID, ((OpenId) copy.getApi()).getVerifiedOpenId());
+	}
+
+	@Test
+	public void rebindsToFactory() throws Exception {
+		OpenIdProfileCache profileCache = new OpenIdProfileCache();
+		OpenIdConnectionFactory factory = new OpenIdConnectionFactory("openid-rebind", profileCache);
+		ConnectionFactoryRegistry registry = new ConnectionFactoryRegistry();
+		registry.addConnectionFactory(factory);
+
+		Connection<?> copy = roundTrip(factory.createConnection(new ConnectionData("openid-rebind", OPENID, null,
+				null, null, null, null, null, null)), registry);
+
+		// profiles put after serialization are served by the configured cache
+		profileCache.put(OPENID, new OpenIdProfile("alice@example.com", "Alice Example", null, null, null, null,
+				null));
+		UserProfile profile = copy.fetchUserProfile();
+		assertEquals(OPENID, profile.getId());
+		assertEquals(OPENID, profile.getUsername());
+		assertEquals("Alice Example", profile.getName());
+		assertEquals("alice@example.com", profile.getEmail());
+	}
+
+	@Test
+	public void rebindsToFactoryOfLocator() throws Exception {
+		// two contexts with the same provider ID don't see each other
+		OpenIdProfileCache cache1 = new OpenIdProfileCache();
+		ConnectionFactoryRegistry registry1 = new ConnectionFactoryRegistry();
+		registry1.addConnectionFactory(new OpenIdConnectionFactory(cache1));
+		OpenIdProfileCache cache2 = new OpenIdProfileCache();
+		ConnectionFactoryRegistry registry2 = new ConnectionFactoryRegistry();
+		registry2.addConnectionFactory(new OpenIdConnectionFactory(cache2));
+
+		cache1.put(OPENID, new OpenIdProfile(null, "Alice One", null, null, null, null, null));
+		cache2.put(OPENID, new OpenIdProfile(null, "Alice Two", null, null, null, null, null));
+
+		Connection<OpenId> connection = new OpenIdConnectionFactory().createConnection(new ConnectionData(
+				OpenIdConnectionFactory.PROVIDER_ID, OPENID, null, null, null, null, null, null, null));
+		assertEquals("Alice One", roundTrip(connection, registry1).fetchUserProfile().getName());
+		assertEquals("Alice Two", roundTrip(connection, registry2).fetchUserProfile().getName());
+		// container streams know no locator
+		assertNull(roundTrip(connection).fetchUserProfile().getName());
+	}
+
+	@Test
+	public void noProfileCacheByDefault() {
+		OpenIdConnectionFactory factory = new OpenIdConnectionFactory();
+		assertNull(factory.getProfileCache());
+	}
+
+	@Test
+	public void providerNotRegistered() throws Exception {
+		Connection<?> copy = roundTrip(new OpenIdConnection(new ConnectionData("openid-unregistered", OPENID, null,
+				null, null, null, null, null, null), new OpenIdServiceProvider(), new OpenIdAdapter()),
+				new ConnectionFactoryRegistry());
+		assertEquals("openid-unregistered", copy.getKey().getProviderId());
+		assertEquals(OPENID, copy.fetchUserProfile().getUsername());
+	}
+
+	@Test
+	public void unknownProvider() throws Exception {
+		Connection<?> copy = roundTrip(new OpenIdConnection(new ConnectionData("openid-unknown", OPENID, null, null,
+				null, null, null, null, null), new OpenIdServiceProvider(), new OpenIdAdapter()));
+		assertEquals("openid-unknown", copy.getKey().getProviderId());
+		assertEquals(OPENID, copy.fetchUserProfile().getUsername());
+	}
+
+	@Test
+	public void unsupportedVersion() throws Exception {
+		OpenIdConnection connection = new OpenIdConnection(new ConnectionData(OpenIdConnectionFactory.PROVIDER_ID,
+				OPENID, null, null, null, null, null, null, null), new OpenIdServiceProvider(), new OpenIdAdapter());
+		byte[] bytes = serialize(connection);
+
+		// version byte, then the provider ID in modified UTF-8
+		int index = indexOf(bytes, new byte[] { 1, 0, 6, 'o', 'p', 'e', 'n', 'i', 'd' });
+		bytes[index] = 2;
+		try {
+			deserialize(bytes);
+			fail();
+		} catch (InvalidObjectException e) {
+			assertEquals("unsupported version 2", e.getMessage());
+		}
+	}
+
+	@Test
+	public void createDataSnapshot() throws Exception {
+		OpenIdConnection connection = new OpenIdConnection(new ConnectionData(OpenIdConnectionFactory.PROVIDER_ID,
+				OPENID, "Alice", "https://example.com/alice", null, null, null, null, null),
+				new OpenIdServiceProvider(), new OpenIdAdapter());
+
+		ConnectionData data = connection.createData();
+		assertSame(data, connection.createData());
+		assertEquals(OPENID, data.getProviderUserId());
+		assertEquals("Alice", data.getDisplayName());
+		assertEquals("https://example.com/alice", data.getProfileUrl());
+		assertNull(data.getImageUrl());
+	}
+
+	@Test
+	public void syncReplacesSnapshot() throws Exception {
+		OpenIdConnection connection = connection(new CountingAdapter());
+
+		ConnectionData data = connection.createData();
+		assertEquals("Alice 0", data.getDisplayName());
+
+		connection.sync();
+		ConnectionData synced = connection.createData();
+		assertEquals("Alice 1", synced.getDisplayName());
+		assertEquals("https://example.com/1", synced.getProfileUrl());
+		assertEquals("Alice 1", connection.getDisplayName());
+		assertEquals("https://example.com/1", connection.getProfileUrl());
+		// earlier snapshots stay untouched
+		assertEquals("Alice 0", data.getDisplayName());
+		assertEquals("https://example.com/0", data.getProfileUrl());
+	}
+
+	@Test
+	public void consistentSnapshotsWhileSyncing() throws Exception {
+		final OpenIdConnection connection = connection(new CountingAdapter());
+
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < threads; i++) {
+				final boolean syncing = i % 2 == 0;
+				results.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int j = 0; j < 1000; j++) {
+							if (syncing) {
+								connection.sync();
+							} else {
+								ConnectionData data = connection.createData();
+								String suffix = data.getProfileUrl().substring("https://example.com/".length());
+								// never the display name of one sync with the URL of another
+								assertEquals("Alice " + suffix, data.getDisplayName());
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static OpenIdConnection connection(OpenIdAdapter adapter) {
+		return new OpenIdConnection(new ConnectionData(OpenIdConnectionFactory.PROVIDER_ID, OPENID, "Alice 0",
+				"https://example.com/0", null, null, null, null, null), new OpenIdServiceProvider(), adapter);
+	}
+
+	private static Connection<?> roundTrip(Connection<?> connection) throws Exception {
+		return (Connection<?>) deserialize(serialize(connection));
+	}
+
+	private static Connection<?> roundTrip(Connection<?> connection, ConnectionFactoryLocator locator)
+			throws Exception {
+		ObjectInputStream in = new ConnectionFactoryLocatorInputStream(new ByteArrayInputStream(
+				serialize(connection)), locator);
+		try {
+			return (Connection<?>) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int indexOf(byte[] bytes, byte[] part) {
+		outer: for (int i = 0; i <= bytes.length - part.length; i++) {
+			for (int j = 0; j < part.length; j++) {
+				if (bytes[i + j] != part[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * numbers the values set on each sync
+	 */
+	private static final class CountingAdapter extends OpenIdAdapter {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public void setConnectionValues(OpenId api, ConnectionValues values) {
+			int call = calls.incrementAndGet();
+			values.setProviderUserId(api.getVerifiedOpenId());
+			values.setDisplayName("Alice " + call);
+			values.setProfileUrl("https://example.com/" + call);
+		}
+	}
+}
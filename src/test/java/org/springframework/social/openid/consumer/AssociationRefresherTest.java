@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.springframework.social.openid.StubOpenIdProvider;
+
+public class AssociationRefresherTest {
+
+	private StubOpenIdProvider provider;
+	private OpenIdConsumerManager consumerManager;
+	private AssociationRefresher refresher;
+	private String identifier;
+
+	@Before
+	public void before() throws Exception {
+		provider = new StubOpenIdProvider();
+		consumerManager = StubOpenIdProvider.createConsumerManager();
+		identifier = provider.getClaimedIdentifier("alice");
+		refresher = new AssociationRefresher(consumerManager, Collections.singletonList(identifier));
+	}
+
+	@After
+	public void after() {
+		refresher.stop();
+		provider.stop();
+	}
+
+	@Test
+	public void refreshReusesValidAssociation() throws Exception {
+		Association first = refresher.refresh(identifier);
+		assertNotNull(first);
+		Association second = refresher.refresh(identifier);
+		assertEquals(first.getHandle(), second.getHandle());
+		assertEquals(1, provider.getAssociations());
+	}
+
+	@Test
+	public void renewForcesNewAssociation() throws Exception {
+		Association first = refresher.refresh(identifier);
+		// stores load the association expiring last, avoid a tie as OPs
+		// send expires_in in whole seconds
+		Thread.sleep(1100);
+		Association renewed = refresher.renew(identifier);
+
+		assertNotNull(renewed);
+		assertFalse(first.getHandle().equals(renewed.getHandle()));
+		assertEquals(2, provider.getAssociations());
+
+		String opUrl = provider.getEndpoint();
+		assertEquals(renewed.getHandle(), consumerManager.getAssociations().load(opUrl).getHandle());
+		// assertions signed with the old handle still verify
+		assertNotNull(consumerManager.getAssociations().load(opUrl, first.getHandle()));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void failedRenewalKeepsAssociation() throws Exception {
+		Association first = refresher.refresh(identifier);
+		List<DiscoveryInformation> discoveries = consumerManager.discover(identifier);
+
+		provider.setErrorRate(1);
+		consumerManager.renewAssociation(discoveries);
+
+		Association current = consumerManager.getAssociations().load(provider.getEndpoint());
+		assertEquals(first.getHandle(), current.getHandle());
+	}
+
+	@Test
+	public void renewsBeforeLoginsDo() throws Exception {
+		consumerManager.setPreExpiryAssocLockInterval(300);
+		refresher.setRenewalMargin(60 * 1000L);
+		refresher.setRetryInterval(1000L);
+
+		Association association = refresher.refresh(identifier);
+		long expiresIn = association.getExpiry().getTime() - System.currentTimeMillis();
+		long delay = refresher.getRenewalDelay(association);
+
+		// logins start renewing at expiresIn - 300s
+		assertTrue(delay <= expiresIn - 300 * 1000L - 60 * 1000L);
+		assertTrue(delay > expiresIn - 300 * 1000L - 60 * 1000L - 5000L);
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.util.HttpFetcherFactory;
+import org.springframework.social.openid.StubOpenIdProvider;
+
+public class ClaimedIdentifierResolverTest {
+
+	private StubOpenIdProvider provider;
+	private ClaimedIdentifierResolver resolver;
+	private final AtomicInteger resolved = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	private final ClaimedIdentifierResolver.Callback callback = new ClaimedIdentifierResolver.Callback() {
+
+		@Override
+		public void resolved(String identifier, Identifier claimedIdentifier, List<DiscoveryInformation> discoveries) {
+			resolved.incrementAndGet();
+		}
+
+		@Override
+		public void failed(String identifier, DiscoveryException e) {
+			failed.incrementAndGet();
+			if (e.getMessage().contains("skipped, discovery at 127.0.0.1")) {
+				skipped.incrementAndGet();
+			}
+		}
+	};
+
+	@Before
+	public void before() throws Exception {
+		provider = new StubOpenIdProvider();
+		resolver = new ClaimedIdentifierResolver(new CachingDiscovery(new HttpFetcherFactory(),
+				new LruDiscoveryCache()));
+	}
+
+	@After
+	public void after() {
+		provider.stop();
+	}
+
+	@Test
+	public void resolvesDuplicatesOnce() throws Exception {
+		List<String> identifiers = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			identifiers.add(provider.getClaimedIdentifier("user" + i % 10));
+		}
+		resolver.setMaxPending(8);
+		resolver.resolve(identifiers.iterator(), callback);
+
+		assertEquals(100, resolved.get());
+		assertEquals(0, failed.get());
+		// Yadis discovery takes up to 2 requests per identifier
+		assertTrue(provider.getDiscoveries() <= 20);
+	}
+
+	@Test
+	public void skipsFailingDomains() throws Exception {
+		List<String> identifiers = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			identifiers.add(provider.getClaimedIdentifier("user" + i));
+		}
+		identifiers.add("=xri");
+		provider.stop();
+
+		resolver.setConcurrencyPerDomain(1);
+		resolver.setMaxDomainFailures(2);
+		resolver.resolve(identifiers.iterator(), callback);
+
+		assertEquals(21, failed.get());
+		assertEquals(18, skipped.get());
+	}
+
+	@Test
+	public void domains() {
+		assertEquals("example.com", Urls.getDomain("www.example.com"));
+		assertEquals("example.com", Urls.getDomain("a.b.example.com"));
+		assertEquals("example.com", Urls.getDomain("example.com"));
+		assertEquals("example.co.uk", Urls.getDomain("me.example.co.uk"));
+		assertEquals("127.0.0.1", Urls.getDomain("127.0.0.1"));
+		assertEquals("localhost", Urls.getDomain("localhost"));
+	}
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.consumer.VerificationResult;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.ParameterList;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.util.HttpFetcherFactory;
+import org.springframework.social.openid.StubOpenIdProvider;
+
+public class EndpointSelectorTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private EndpointSelector selector;
+	private DiscoveryInformation a;
+	private DiscoveryInformation b;
+	private DiscoveryInformation c;
+
+	@Before
+	public void before() throws Exception {
+		selector = new EndpointSelector();
+		a = op("a");
+		b = op("b");
+		c = op("c");
+	}
+
+	@Test
+	public void fastestFirst() {
+		assertEquals(Arrays.asList(a, b), selector.select(Arrays.asList(a, b)));
+
+		selector.record(url(a), 100 * MILLIS, true);
+		selector.record(url(b), 10 * MILLIS, true);
+		assertEquals(Arrays.asList(b, a), selector.select(Arrays.asList(a, b)));
+	}
+
+	@Test
+	public void averagesSamples() {
+		selector.select(Arrays.asList(a, b));
+		selector.record(url(a), 10 * MILLIS, true);
+		selector.record(url(b), 20 * MILLIS, true);
+
+		// a single slow sample doesn't reorder
+		selector.record(url(a), 50 * MILLIS, true);
+		assertEquals(18 * MILLIS, selector.getLatency(url(a)));
+		assertEquals(Arrays.asList(a, b), selector.select(Arrays.asList(a, b)));
+
+		selector.record(url(a), 50 * MILLIS, true);
+		assertEquals(Arrays.asList(b, a), selector.select(Arrays.asList(a, b)));
+	}
+
+	@Test
+	public void unknownAssumedAverage() {
+		selector.select(Arrays.asList(a, b, c));
+		selector.record(url(a), 100 * MILLIS, true);
+		selector.record(url(b), 10 * MILLIS, true);
+		assertEquals(Arrays.asList(b, c, a), selector.select(Arrays.asList(a, b, c)));
+	}
+
+	@Test
+	public void unknownTriedOnTie() {
+		selector.select(Arrays.asList(a, b));
+		selector.record(url(a), 10 * MILLIS, true);
+		assertEquals(Arrays.asList(b, a), selector.select(Arrays.asList(a, b)));
+	}
+
+	@Test
+	public void unhealthyLast() {
+		selector.select(Arrays.asList(a, b));
+		selector.record(url(a), 100 * MILLIS, true);
+		selector.record(url(b), 10 * MILLIS, true);
+		selector.record(url(b), 10 * MILLIS, false);
+		selector.record(url(b), 10 * MILLIS, false);
+		selector.record(url(b), 10 * MILLIS, false);
+		selector.record(url(b), 10 * MILLIS, false);
+		assertEquals(Arrays.asList(a, b), selector.select(Arrays.asList(a, b)));
+
+		selector.setRecoveryTime(0);
+		assertEquals(Arrays.asList(b, a), selector.select(Arrays.asList(a, b)));
+	}
+
+	@Test
+	public void respectsXrdsPriority() throws Exception {
+		DiscoveryInformation preferred = xrds("a", 0);
+		DiscoveryInformation fallback = xrds("b", 10);
+		List<DiscoveryInformation> discoveries = Arrays.asList(preferred, fallback);
+		selector.select(discoveries);
+		selector.record(url(preferred), 100 * MILLIS, true);
+		selector.record(url(fallback), 10 * MILLIS, true);
+		assertSame(discoveries, selector.select(discoveries));
+
+		// unless no endpoint of the preferred class is healthy
+		for (int i = 0; i < 4; i++) {
+			selector.record(url(preferred), 100 * MILLIS, false);
+		}
+		assertEquals(Arrays.asList(fallback, preferred), selector.select(discoveries));
+	}
+
+	@Test
+	public void scoresSelectedEndpointsOnly() {
+		selector.select(Arrays.asList(a));
+		selector.record(url(a), 10 * MILLIS, true);
+		assertEquals(0, selector.getLatency(url(a)));
+
+		selector.select(Arrays.asList(a, b));
+		selector.record(url(a), 10 * MILLIS, true);
+		assertEquals(10 * MILLIS, selector.getLatency(url(a)));
+	}
+
+	@Test
+	public void evictsIdleEndpoints() {
+		selector.setMaxEndpoints(2);
+		selector.setMaxIdleTime(0);
+		selector.select(Arrays.asList(a, b));
+		selector.record(url(a), 10 * MILLIS, true);
+
+		selector.select(Arrays.asList(b, c));
+		selector.record(url(a), 10 * MILLIS, true);
+		assertEquals(0, selector.getLatency(url(a)));
+	}
+
+	@Test
+	public void evictsLeastRecentlySelected() throws Exception {
+		selector.setMaxEndpoints(2);
+		selector.select(Arrays.asList(a, b));
+		Thread.sleep(5);
+		selector.select(Arrays.asList(a, c));
+
+		selector.record(url(a), 10 * MILLIS, true);
+		selector.record(url(b), 10 * MILLIS, true);
+		selector.record(url(c), 10 * MILLIS, true);
+		assertEquals(10 * MILLIS, selector.getLatency(url(a)));
+		assertEquals(0, selector.getLatency(url(b)));
+		assertEquals(10 * MILLIS, selector.getLatency(url(c)));
+	}
+
+	@Test
+	public void reducesTailLatencyOfStubProviders() throws Exception {
+		StubOpenIdProvider slow = new StubOpenIdProvider();
+		StubOpenIdProvider fast = new StubOpenIdProvider();
+		try {
+			slow.setLatency(100);
+			// equal priority, the slow endpoint first
+			fast.setServices(slow.getEndpoint(), "0", fast.getEndpoint(), "0");
+			String identifier = fast.getClaimedIdentifier("alice");
+
+			long[] discoveryOrder = logins(null, identifier, slow, fast, 20);
+			long[] selected = logins(new EndpointSelector(), identifier, slow, fast, 20);
+
+			long before = percentile(discoveryOrder, 0.9);
+			long after = percentile(selected, 0.9);
+			assertTrue(before >= 100 * MILLIS);
+			assertTrue("p90 " + after / MILLIS + "ms", after < before / 2);
+		} finally {
+			slow.stop();
+			fast.stop();
+		}
+	}
+
+	@Test
+	public void keepsPriorityOfStubProviders() throws Exception {
+		StubOpenIdProvider slow = new StubOpenIdProvider();
+		StubOpenIdProvider fast = new StubOpenIdProvider();
+		try {
+			slow.setLatency(50);
+			fast.setServices(slow.getEndpoint(), "0", fast.getEndpoint(), "10");
+			String identifier = fast.getClaimedIdentifier("alice");
+
+			long[] selected = logins(new EndpointSelector(), identifier, slow, fast, 5);
+			assertTrue(percentile(selected, 0) >= 50 * MILLIS);
+			assertEquals(5, slow.getVerifications());
+			assertEquals(0, fast.getVerifications());
+		} finally {
+			slow.stop();
+			fast.stop();
+		}
+	}
+
+	/**
+	 * Stateless logins, verified by <tt>check_authentication</tt> with the
+	 * selected OP.
+	 * 
+	 * @return login durations in nanoseconds
+	 */
+	@SuppressWarnings("unchecked")
+	private static long[] logins(EndpointSelector selector, String identifier, StubOpenIdProvider first,
+			StubOpenIdProvider second, int count) throws Exception {
+		HttpFetcherFactory httpFetcherFactory = new HttpFetcherFactory();
+		Discovery discovery = new Discovery(new HtmlResolver(httpFetcherFactory), new PrioritizingYadisResolver(
+				httpFetcherFactory), Discovery.getXriResolver());
+		OpenIdConsumerManager consumerManager = new OpenIdConsumerManager(new RealmVerifierFactory(
+				new YadisResolver(httpFetcherFactory)), discovery, httpFetcherFactory);
+		consumerManager.setMaxAssocAttempts(0);
+		consumerManager.setEndpointSelector(selector);
+
+		long[] nanos = new long[count];
+		for (int i = 0; i < count; i++) {
+			long start = System.nanoTime();
+			List<DiscoveryInformation> discoveries = consumerManager.discover(identifier);
+			DiscoveryInformation discovered = consumerManager.associate(discoveries);
+			AuthRequest authRequest = consumerManager.authenticate(discovered, "http://localhost/callback");
+
+			String opUrl = discovered.getOPEndpoint().toString();
+			StubOpenIdProvider provider = opUrl.equals(first.getEndpoint()) ? first : second;
+			String callback = provider.authenticate(authRequest.getDestinationUrl(true));
+			ParameterList response = ParameterList.createFromQueryString(callback.substring(callback.indexOf('?') + 1));
+			VerificationResult result = consumerManager.verify(callback, response, discovered);
+			assertNotNull(result.getVerifiedId());
+			nanos[i] = System.nanoTime() - start;
+		}
+		return nanos;
+	}
+
+	private static long percentile(long[] values, double percentile) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length))];
+	}
+
+	private static String url(DiscoveryInformation discovered) {
+		return discovered.getOPEndpoint().toString();
+	}
+
+	private static DiscoveryInformation op(String name) throws Exception {
+		return new DiscoveryInformation(new URL("http://" + name + ".example.com/op"));
+	}
+
+	private static DiscoveryInformation xrds(String name, int priority) throws Exception {
+		return new XrdsDiscoveryInformation(new URL("http://" + name + ".example.com/op"), null, null,
+				DiscoveryInformation.OPENID2_OP, null, priority, -1);
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openid4java.association.Association;
+
+public class FileConsumerAssociationStoreTest {
+
+	private static final String OP = "https://op.example.com/server";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileConsumerAssociationStore store;
+
+	@Before
+	public void before() {
+		store = new FileConsumerAssociationStore(new File(folder.getRoot(), "associations"));
+	}
+
+	@Test
+	public void roundTrip() {
+		Association sha1 = Association.generateHmacSha1("h1", 600);
+		Association sha256 = Association.generateHmacSha256("h256", 1200);
+		store.save(OP, sha1);
+		store.save(OP, sha256);
+
+		assertSame(sha1, store.load(OP, "h1"));
+		assertSame(sha256, store.load(OP, "h256"));
+		// latest expiry
+		assertSame(sha256, store.load(OP));
+
+		store.remove(OP, "h256");
+		assertNull(store.load(OP, "h256"));
+		assertSame(sha1, store.load(OP));
+	}
+
+	@Test
+	public void failedAssociation() {
+		Association failed = Association.getFailedAssociation(600);
+		store.save(OP, failed);
+		Association loaded = store.load(OP);
+		assertEquals(Association.FAILED_ASSOC_HANDLE, loaded.getHandle());
+		assertEquals(failed.getExpiry(), loaded.getExpiry());
+	}
+
+	@Test
+	public void expired() {
+		store.save(OP, Association.createHmacSha1("h1", new byte[20], new Date(System.currentTimeMillis() - 1000)));
+		assertNull(store.load(OP, "h1"));
+		assertNull(store.load(OP));
+	}
+
+	@Test
+	public void ignoresSerializedObjects() throws IOException {
+		Association association = Association.generateHmacSha1("h1", 600);
+		store.save(OP, association);
+		File opDirectory = store.getDirectory().listFiles()[0];
+		File file = opDirectory.listFiles()[0];
+
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+		out.writeObject(association);
+		out.close();
+
+		assertNull(store.load(OP, "h1"));
+	}
+
+	private static void assertSame(Association expected, Association actual) {
+		assertEquals(expected.getHandle(), actual.getHandle());
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getExpiry(), actual.getExpiry());
+		assertArrayEquals(expected.getMacKey().getEncoded(), actual.getMacKey().getEncoded());
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileNonceStoreTest {
+
+	private static final String OP = "https://op.example.com/server";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private FileNonceStore store;
+
+	@Before
+	public void before() {
+		directory = new File(folder.getRoot(), "nonces");
+		store = new FileNonceStore(directory);
+	}
+
+	@Test
+	public void detectsDuplicates() {
+		long expires = System.currentTimeMillis() + 60000;
+		assertTrue(store.add(OP, "2000-01-01T00:00:00Za", expires));
+		assertFalse(store.add(OP, "2000-01-01T00:00:00Za", expires));
+		assertTrue(store.add(OP, "2000-01-01T00:00:00Zb", expires));
+		assertTrue(store.add("https://other.example.com/", "2000-01-01T00:00:00Za", expires));
+	}
+
+	@Test
+	public void rejectsExpired() {
+		assertFalse(store.add(OP, "2000-01-01T00:00:00Za", System.currentTimeMillis() - 1));
+	}
+
+	@Test
+	public void sharedBetweenInstances() throws Exception {
+		final FileNonceStore other = new FileNonceStore(directory);
+		final long expires = System.currentTimeMillis() + 60000;
+		assertTrue(store.add(OP, "2000-01-01T00:00:00Za", expires));
+		assertFalse(other.add(OP, "2000-01-01T00:00:00Za", expires));
+
+		// concurrent replays through both instances, exactly one passes
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 16; i++) {
+				final FileNonceStore instance = i % 2 == 0 ? store : other;
+				results.add(executor.submit(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						return instance.add(OP, "2000-01-01T00:00:00Zb", expires);
+					}
+				}));
+			}
+			int added = 0;
+			for (Future<Boolean> result : results) {
+				if (result.get()) {
+					added++;
+				}
+			}
+			assertEquals(1, added);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void sweepsExpiredBuckets() throws Exception {
+		store = new FileNonceStore(directory, 50);
+		assertTrue(store.add(OP, "2000-01-01T00:00:00Za", System.currentTimeMillis() + 60));
+		assertEquals(1, directory.listFiles().length);
+
+		Thread.sleep(200);
+		assertTrue(store.add(OP, "2000-01-01T00:00:00Zb", System.currentTimeMillis() + 60000));
+		File[] buckets = directory.listFiles();
+		assertEquals(1, buckets.length);
+		assertEquals(1, buckets[0].listFiles().length);
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openid4java.discovery.DiscoveryInformation;
+import org.junit.Test;
+
+public class LruDiscoveryCacheTest {
+
+	private static DiscoveryCacheEntry entry() {
+		return DiscoveryCacheEntry.success(Collections.<DiscoveryInformation> emptyList(), Long.MAX_VALUE);
+	}
+
+	@Test
+	public void getPutRemove() {
+		LruDiscoveryCache cache = new LruDiscoveryCache();
+		DiscoveryCacheEntry entry = entry();
+		cache.put("http://example.com/", entry);
+		assertEquals(entry, cache.get("http://example.com/"));
+		cache.remove("http://example.com/");
+		assertNull(cache.get("http://example.com/"));
+	}
+
+	@Test
+	public void bounded() {
+		LruDiscoveryCache cache = new LruDiscoveryCache(64);
+		for (int i = 0; i < 10000; i++) {
+			cache.put("http://example.com/" + i, entry());
+		}
+		assertTrue(cache.size() <= 64);
+		assertNotNull(cache.get("http://example.com/9999"));
+	}
+
+	@Test
+	public void recentlyUsedSurvives() {
+		LruDiscoveryCache cache = new LruDiscoveryCache(160);
+		cache.put("hot", entry());
+		for (int i = 0; i < 5000; i++) {
+			assertNotNull(cache.get("hot"));
+			cache.put("cold" + i, entry());
+		}
+		assertNotNull(cache.get("hot"));
+	}
+
+	@Test
+	public void concurrentAccess() throws InterruptedException {
+		final LruDiscoveryCache cache = new LruDiscoveryCache(100);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(8);
+		for (int t = 0; t < 8; t++) {
+			final int offset = t * 1000;
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 20000; i++) {
+							String key = "id" + (offset + i % 500);
+							cache.put(key, entry());
+							cache.get(key);
+							if (i % 7 == 0) {
+								cache.remove(key);
+							}
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertNull(error.get());
+		assertTrue(cache.size() <= 100);
+	}
+}
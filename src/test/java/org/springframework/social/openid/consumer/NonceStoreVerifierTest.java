@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.consumer.NonceVerifier;
+import org.openid4java.util.InternetDateFormat;
+
+public class NonceStoreVerifierTest {
+
+	private static final String OP = "https://op.example.com/server";
+
+	private final InternetDateFormat format = new InternetDateFormat();
+	private NonceStoreVerifier verifier;
+
+	@Before
+	public void before() {
+		verifier = new NonceStoreVerifier(new BucketedNonceStore());
+	}
+
+	@Test
+	public void parseTimestamp() throws Exception {
+		for (String date : new String[] { "1970-01-01T00:00:00Z", "2000-02-29T12:34:56Z", "2038-01-19T03:14:08Z",
+				"2100-12-31T23:59:59Z" }) {
+			assertEquals(date, format.parse(date).getTime(), NonceStoreVerifier.parseTimestamp(date + "abc"));
+		}
+		assertEquals(-1, NonceStoreVerifier.parseTimestamp("2000-02-29 12:34:56Z"));
+		assertEquals(-1, NonceStoreVerifier.parseTimestamp("2000-13-29T12:34:56Z"));
+		assertEquals(-1, NonceStoreVerifier.parseTimestamp("2000-02-29T12:34"));
+	}
+
+	@Test
+	public void seen() {
+		String nonce = nonce(0, "a");
+		assertEquals(NonceVerifier.OK, verifier.seen(OP, nonce));
+		assertEquals(NonceVerifier.SEEN, verifier.seen(OP, nonce));
+		assertEquals(NonceVerifier.OK, verifier.seen("https://other.example.com/", nonce));
+		assertEquals(NonceVerifier.OK, verifier.seen(OP, nonce(0, "b")));
+	}
+
+	@Test
+	public void tooOld() {
+		assertEquals(NonceVerifier.TOO_OLD, verifier.seen(OP, nonce(-120, "a")));
+		assertEquals(NonceVerifier.INVALID_TIMESTAMP, verifier.seen(OP, "invalid"));
+	}
+
+	@Test
+	public void futureSkew() {
+		assertEquals(NonceVerifier.OK, verifier.seen(OP, nonce(200, "a")));
+		assertEquals(NonceVerifier.INVALID_TIMESTAMP, verifier.seen(OP, nonce(400, "b")));
+
+		verifier.setMaxFutureSkew(3600);
+		assertEquals(NonceVerifier.OK, verifier.seen(OP, nonce(3000, "c")));
+	}
+
+	@Test
+	public void farFutureNotStored() {
+		BucketedNonceStore store = new BucketedNonceStore();
+		verifier = new NonceStoreVerifier(store);
+		assertEquals(NonceVerifier.INVALID_TIMESTAMP, verifier.seen(OP, "9999-12-31T23:59:59Zforged"));
+		assertEquals(0, store.size());
+	}
+
+	private String nonce(int offsetSeconds, String suffix) {
+		return format.format(new Date(System.currentTimeMillis() + offsetSeconds * 1000L)) + suffix;
+	}
+}
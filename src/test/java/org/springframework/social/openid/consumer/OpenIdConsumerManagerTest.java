@@ -0,0 +1,164 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.association.Association;
+import org.openid4java.consumer.VerificationResult;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.message.AuthRequest;
+import org.openid4java.message.ParameterList;
+import org.springframework.social.openid.StubOpenIdProvider;
+
+/**
+ * Background association of {@link OpenIdConsumerManager} against
+ * {@link StubOpenIdProvider}.
+ */
+public class OpenIdConsumerManagerTest {
+
+	private StubOpenIdProvider provider;
+	private OpenIdConsumerManager consumerManager;
+	private QueueingExecutor executor;
+	private String identifier;
+
+	@Before
+	public void before() throws Exception {
+		provider = new StubOpenIdProvider();
+		consumerManager = StubOpenIdProvider.createConsumerManager();
+		executor = new QueueingExecutor();
+		consumerManager.setAssociationExecutor(executor);
+		identifier = provider.getClaimedIdentifier("alice");
+	}
+
+	@After
+	public void after() {
+		provider.stop();
+	}
+
+	@Test
+	public void loginsDontWaitForAssociation() throws Exception {
+		// the association is queued but never runs, logins complete anyway
+		for (int i = 0; i < 3; i++) {
+			assertTrue(login());
+		}
+		assertEquals(0, provider.getAssociations());
+		assertNull(consumerManager.getAssociations().load(provider.getEndpoint()));
+		// verified by check_authentication
+		assertEquals(3, provider.getVerifications());
+		// a single association pending for the OP
+		assertEquals(1, executor.size());
+	}
+
+	@Test
+	public void executorTakesOverAssociation() throws Exception {
+		assertTrue(login());
+		assertEquals(1, provider.getVerifications());
+
+		executor.runAll();
+		assertEquals(1, provider.getAssociations());
+		Association association = consumerManager.getAssociations().load(provider.getEndpoint());
+		assertNotNull(association);
+		assertFalse(Association.FAILED_ASSOC_HANDLE.equals(association.getHandle()));
+
+		// later logins use the association, neither associating nor verifying
+		// directly
+		assertTrue(login());
+		assertTrue(login());
+		assertEquals(1, provider.getAssociations());
+		assertEquals(1, provider.getVerifications());
+		assertEquals(0, executor.size());
+	}
+
+	@Test
+	public void failedAssociationFallsBackToStateless() throws Exception {
+		assertTrue(login());
+
+		provider.setErrorRate(1);
+		executor.runAll();
+		provider.setErrorRate(0);
+
+		// failure is remembered, logins stay stateless without queuing again
+		assertTrue(login());
+		assertTrue(login());
+		assertEquals(0, executor.size());
+		assertEquals(3, provider.getVerifications());
+	}
+
+	@Test
+	public void rejectedAssociationRunsOnRequestThread() throws Exception {
+		consumerManager.setAssociationExecutor(new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		});
+		assertTrue(login());
+		assertEquals(1, provider.getAssociations());
+		assertEquals(0, provider.getVerifications());
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean login() throws Exception {
+		List<DiscoveryInformation> discoveries = consumerManager.discover(identifier);
+		DiscoveryInformation discovered = consumerManager.associate(discoveries);
+		AuthRequest authRequest = consumerManager.authenticate(discovered, "http://localhost/callback");
+
+		String callback = provider.authenticate(authRequest.getDestinationUrl(true));
+		ParameterList response = ParameterList.createFromQueryString(callback.substring(callback.indexOf('?') + 1));
+		VerificationResult result = consumerManager.verify(callback, response, discovered);
+		return result.getVerifiedId() != null;
+	}
+
+	private static final class QueueingExecutor implements Executor {
+
+		private final List<Runnable> queued = new ArrayList<Runnable>();
+
+		@Override
+		public synchronized void execute(Runnable command) {
+			queued.add(command);
+		}
+
+		synchronized int size() {
+			return queued.size();
+		}
+
+		void runAll() {
+			List<Runnable> commands;
+			synchronized (this) {
+				commands = new ArrayList<Runnable>(queued);
+				queued.clear();
+			}
+			for (Runnable command : commands) {
+				command.run();
+			}
+		}
+	}
+}
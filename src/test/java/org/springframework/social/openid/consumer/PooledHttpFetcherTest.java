@@ -0,0 +1,267 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.html.HtmlResolver;
+import org.openid4java.discovery.yadis.YadisResolver;
+import org.openid4java.server.RealmVerifierFactory;
+import org.openid4java.util.HttpFetcher;
+import org.openid4java.util.HttpFetcherFactory;
+import org.openid4java.util.HttpRequestOptions;
+import org.openid4java.util.HttpResponse;
+import org.springframework.social.openid.StubOpenIdProvider;
+
+import com.google.inject.Provider;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpFetcherTest {
+
+	private StubOpenIdProvider provider;
+	private PooledHttpFetcher fetcher;
+
+	@Before
+	public void before() throws Exception {
+		provider = new StubOpenIdProvider();
+		fetcher = new PooledHttpFetcher();
+	}
+
+	@After
+	public void after() {
+		fetcher.destroy();
+		provider.stop();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void discoverAndAssociate() throws Exception {
+		HttpFetcherFactory httpFetcherFactory = new HttpFetcherFactory(new Provider<HttpFetcher>() {
+
+			@Override
+			public HttpFetcher get() {
+				return fetcher;
+			}
+		});
+		OpenIdConsumerManager consumerManager = new OpenIdConsumerManager(new RealmVerifierFactory(new YadisResolver(
+				httpFetcherFactory)), new Discovery(new HtmlResolver(httpFetcherFactory), new YadisResolver(
+				httpFetcherFactory), Discovery.getXriResolver()), httpFetcherFactory);
+
+		List<DiscoveryInformation> discoveries = consumerManager.discover(provider.getClaimedIdentifier("alice"));
+		assertEquals(provider.getEndpoint(), discoveries.get(0).getOPEndpoint().toString());
+
+		consumerManager.associate(discoveries);
+		assertEquals(1, provider.getAssociations());
+		assertNotNull(consumerManager.getAssociations().load(provider.getEndpoint()));
+	}
+
+	@Test
+	public void maxBodySizeInBytes() throws Exception {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			body.append('ä');
+		}
+		String url = provider.serve("umlauts", "text/plain; charset=UTF-8", body.toString());
+
+		HttpRequestOptions options = new HttpRequestOptions();
+		options.setMaxBodySize(100);
+		HttpResponse response = fetcher.get(url, options);
+		assertTrue(response.isBodySizeExceeded());
+		assertEquals(body.substring(0, 50), response.getBody());
+
+		options.setMaxBodySize(200);
+		response = fetcher.get(url, options);
+		assertFalse(response.isBodySizeExceeded());
+		assertEquals(body.toString(), response.getBody());
+	}
+
+	@Test
+	public void followsRedirects() throws Exception {
+		String url = provider.serve("target", "text/plain", "target");
+
+		HttpRequestOptions options = new HttpRequestOptions();
+		options.setMaxRedirects(2);
+		HttpResponse response = fetcher.get(provider.getRedirectUrl(provider.getRedirectUrl(url)), options);
+		assertEquals(200, response.getStatusCode());
+		assertEquals(url, response.getFinalUri());
+		assertEquals("target", response.getBody());
+
+		options.setMaxRedirects(1);
+		try {
+			fetcher.get(provider.getRedirectUrl(provider.getRedirectUrl(url)), options);
+			fail("expected too many redirects");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void redirectsPassBulkheadOfTarget() throws Exception {
+		fetcher.setMaxConnectionsPerHost(1);
+		fetcher.setBulkheadTimeout(100);
+		provider.setLatency(1000);
+		final String slow = provider.serve("slow", "text/plain", "slow");
+
+		// occupy the only connection to 127.0.0.1
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					fetcher.get(slow, new HttpRequestOptions());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		started.await();
+		Thread.sleep(200);
+
+		// via localhost, redirecting to 127.0.0.1
+		String redirect = provider.getRedirectUrl(slow).replaceFirst("127\\.0\\.0\\.1", "localhost");
+		HttpRequestOptions options = new HttpRequestOptions();
+		options.setMaxRedirects(1);
+		try {
+			fetcher.get(redirect, options);
+			fail("expected bulkhead of 127.0.0.1 to reject the redirect");
+		} catch (IOException e) {
+			assertEquals("too many concurrent requests to 127.0.0.1", e.getMessage());
+		}
+		thread.join();
+	}
+
+	@Test
+	public void evictsIdleBulkheadsOnly() throws Exception {
+		fetcher.setMaxHosts(2);
+		fetcher.setMaxConnectionsPerHost(2);
+		Semaphore busy = fetcher.acquire("busy.example.com");
+		Semaphore idle = fetcher.getBulkhead("idle.example.com");
+
+		// a third host evicts the idle bulkhead only
+		fetcher.getBulkhead("other.example.com");
+		assertSame(busy, fetcher.getBulkhead("busy.example.com"));
+		assertEquals(1, busy.availablePermits());
+		assertEquals(2, idle.availablePermits());
+		assertNotSame(idle, fetcher.getBulkhead("idle.example.com"));
+
+		busy.release();
+		assertSame(busy, fetcher.acquire("busy.example.com"));
+		busy.release();
+	}
+
+	/**
+	 * request a server under several loopback addresses with room for one
+	 * bulkhead only, evicting bulkheads while other requests acquire them
+	 */
+	@Test
+	public void evictionKeepsLimitPerHost() throws Exception {
+		fetcher.setMaxHosts(1);
+		fetcher.setMaxConnectionsPerHost(1);
+		fetcher.setBulkheadTimeout(10000);
+
+		final Map<String, AtomicInteger> concurrent = new ConcurrentHashMap<String, AtomicInteger>();
+		final AtomicInteger maxConcurrent = new AtomicInteger();
+		for (int i = 1; i <= 4; i++) {
+			concurrent.put("127.0.0." + i, new AtomicInteger());
+		}
+		HttpServer server = HttpServer.create(new InetSocketAddress(0), 100);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String host = exchange.getRequestHeaders().getFirst("Host");
+				AtomicInteger count = concurrent.get(host.substring(0, host.indexOf(':')));
+				int current = count.incrementAndGet();
+				try {
+					int max;
+					while (current > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, current)) {
+					}
+					Thread.sleep(2);
+					exchange.sendResponseHeaders(200, 2);
+					OutputStream out = exchange.getResponseBody();
+					out.write("ok".getBytes("UTF-8"));
+					out.close();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					count.decrementAndGet();
+				}
+			}
+		});
+		server.start();
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final int port = server.getAddress().getPort();
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				final int offset = t;
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						for (int i = 0; i < 20; i++) {
+							String host = "127.0.0." + ((i + offset) % 4 + 1);
+							assertEquals("ok", fetcher.get("http://" + host + ":" + port + "/",
+									new HttpRequestOptions()).getBody());
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			assertTrue("max " + maxConcurrent.get(), maxConcurrent.get() <= 1);
+		} finally {
+			executor.shutdownNow();
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.util.HttpCache;
+import org.openid4java.util.HttpRequestOptions;
+import org.springframework.social.openid.StubOpenIdProvider;
+
+public class ProviderCircuitBreakerTest {
+
+	private static final String HOST = "op.example.com";
+
+	private ProviderCircuitBreaker circuitBreaker;
+
+	@Before
+	public void before() {
+		circuitBreaker = new ProviderCircuitBreaker();
+		circuitBreaker.setMinimumCalls(4);
+		circuitBreaker.setOpenDuration(100);
+	}
+
+	@Test
+	public void opensOnFailureRate() {
+		circuitBreaker.record(HOST, true);
+		circuitBreaker.record(HOST, true);
+		circuitBreaker.record(HOST, false);
+		assertEquals(ProviderCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOST));
+
+		circuitBreaker.record(HOST, false);
+		assertEquals(ProviderCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+		assertTrue(circuitBreaker.isOpen(HOST));
+		assertFalse(circuitBreaker.tryAcquire(HOST));
+		assertTrue(circuitBreaker.tryAcquire("other.example.com"));
+	}
+
+	@Test
+	public void singleProbeWhenHalfOpen() throws Exception {
+		open();
+		Thread.sleep(150);
+		assertFalse(circuitBreaker.isOpen(HOST));
+		assertTrue(circuitBreaker.tryAcquire(HOST));
+		// probe in progress
+		assertFalse(circuitBreaker.tryAcquire(HOST));
+
+		circuitBreaker.record(HOST, false);
+		assertEquals(ProviderCircuitBreaker.State.OPEN, circuitBreaker.getState(HOST));
+
+		Thread.sleep(150);
+		assertTrue(circuitBreaker.tryAcquire(HOST));
+		circuitBreaker.record(HOST, true);
+		assertEquals(ProviderCircuitBreaker.State.CLOSED, circuitBreaker.getState(HOST));
+		assertTrue(circuitBreaker.tryAcquire(HOST));
+	}
+
+	@Test
+	public void onlyTransportFailuresCount() throws Exception {
+		StubOpenIdProvider provider = new StubOpenIdProvider();
+		CircuitBreakingHttpFetcher fetcher = new CircuitBreakingHttpFetcher(new HttpCache(), circuitBreaker);
+		try {
+			// HTTP errors are responses
+			provider.setErrorRate(1);
+			for (int i = 0; i < 10; i++) {
+				fetcher.post(provider.getEndpoint(), Collections.<String, String> emptyMap(),
+						new HttpRequestOptions());
+			}
+			assertEquals(ProviderCircuitBreaker.State.CLOSED, circuitBreaker.getState("127.0.0.1"));
+
+			// discovery isn't reported
+			provider.stop();
+			for (int i = 0; i < 10; i++) {
+				try {
+					fetcher.get(provider.getClaimedIdentifier("alice"), new HttpRequestOptions());
+				} catch (IOException e) {
+					// expected
+				}
+			}
+			assertEquals(ProviderCircuitBreaker.State.CLOSED, circuitBreaker.getState("127.0.0.1"));
+
+			for (int i = 0; i < 10; i++) {
+				try {
+					fetcher.post(provider.getEndpoint(), Collections.<String, String> emptyMap(),
+							new HttpRequestOptions());
+				} catch (IOException e) {
+					// expected
+				}
+			}
+			assertEquals(ProviderCircuitBreaker.State.OPEN, circuitBreaker.getState("127.0.0.1"));
+		} finally {
+			provider.stop();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void consumerManagerRejectsOpenCircuits() throws Exception {
+		StubOpenIdProvider provider = new StubOpenIdProvider();
+		try {
+			OpenIdConsumerManager consumerManager = StubOpenIdProvider.createConsumerManager();
+			consumerManager.setCircuitBreaker(circuitBreaker);
+			List<DiscoveryInformation> discoveries = consumerManager.discover(provider.getClaimedIdentifier("alice"));
+
+			// circuits of claimed identifier hosts don't matter
+			consumerManager.associate(discoveries);
+
+			circuitBreaker.setOpenDuration(60000);
+			for (int i = 0; i < 4; i++) {
+				circuitBreaker.record("127.0.0.1", false);
+			}
+			try {
+				consumerManager.associate(discoveries);
+				fail("expected open circuit");
+			} catch (CircuitOpenException e) {
+				assertEquals("127.0.0.1", e.getHost());
+			}
+		} finally {
+			provider.stop();
+		}
+	}
+
+	private void open() {
+		for (int i = 0; i < 4; i++) {
+			circuitBreaker.record(HOST, false);
+		}
+		assertTrue(circuitBreaker.isOpen(HOST));
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RegistryOpenIdMetricsTest {
+
+	@Test
+	public void claimedIdentifierHostsAreNotTracked() {
+		RegistryOpenIdMetrics metrics = new RegistryOpenIdMetrics();
+		for (int i = 0; i < 1000; i++) {
+			metrics.discovery("host" + i + ".example.com", 1000, false);
+			metrics.outcome("host" + i + ".example.com", LoginOutcome.RATE_LIMITED);
+		}
+		assertEquals(1, metrics.getHosts().size());
+		RegistryOpenIdMetrics.HostMetrics other = metrics.getHosts().get(RegistryOpenIdMetrics.OTHER_HOST);
+		assertEquals(1000, other.getCount(LoginOutcome.RATE_LIMITED));
+	}
+
+	@Test
+	public void successfulOpHostsAreTracked() {
+		RegistryOpenIdMetrics metrics = new RegistryOpenIdMetrics();
+		metrics.association("op.example.com", 1000, false);
+		assertFalse(metrics.getHosts().containsKey("op.example.com"));
+
+		metrics.verification("op.example.com", 1000, true);
+		metrics.outcome("op.example.com", LoginOutcome.CIRCUIT_OPEN);
+		assertTrue(metrics.getHosts().containsKey("op.example.com"));
+		assertEquals(1, metrics.getHosts().get("op.example.com").getCount(LoginOutcome.CIRCUIT_OPEN));
+	}
+
+	@Test
+	public void maxHosts() {
+		RegistryOpenIdMetrics metrics = new RegistryOpenIdMetrics();
+		metrics.setMaxHosts(2);
+		metrics.association("a.example.com", 1000, true);
+		metrics.association("b.example.com", 1000, true);
+		metrics.association("c.example.com", 1000, true);
+		assertEquals(3, metrics.getHosts().size());
+		assertFalse(metrics.getHosts().containsKey("c.example.com"));
+	}
+
+	@Test
+	public void configuredHostsOnly() {
+		RegistryOpenIdMetrics metrics = new RegistryOpenIdMetrics();
+		metrics.setHosts(Arrays.asList("www.google.com"));
+		metrics.association("evil.example.com", 1000, true);
+		metrics.redirect("www.google.com", 1000, true);
+
+		assertEquals(2, metrics.getHosts().size());
+		assertEquals(1, metrics.getHosts().get("www.google.com").getRedirect(true).getCount());
+		assertEquals(1, metrics.getHosts().get(RegistryOpenIdMetrics.OTHER_HOST).getAssociation(true).getCount());
+	}
+}
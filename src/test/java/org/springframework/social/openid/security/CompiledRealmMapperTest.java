@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CompiledRealmMapperTest {
+
+	@Test
+	public void exactBeatsWildcard() {
+		CompiledRealmMapper mapper = mapper("www.example.com", "{scheme}://{host}{port}/exact/", "*.example.com",
+				"{scheme}://*.example.com{port}/", "*.a.example.com", "{scheme}://*.a.example.com{port}/", "*",
+				"https://fallback.example.net/");
+
+		assertEquals("https://www.example.com/exact/", mapper.getMapping("https://www.example.com/login"));
+		assertEquals("https://*.example.com/", mapper.getMapping("https://shop.example.com/login"));
+		assertEquals("https://*.example.com/", mapper.getMapping("https://x.www.example.com/"));
+		// the most specific wildcard wins
+		assertEquals("https://*.a.example.com/", mapper.getMapping("https://b.a.example.com/"));
+		assertEquals("https://*.example.com/", mapper.getMapping("https://a.example.com/"));
+		// *.example.com doesn't match example.com itself
+		assertEquals("https://fallback.example.net/", mapper.getMapping("https://example.com/"));
+		assertEquals("https://fallback.example.net/", mapper.getMapping("https://www.example.org/"));
+		// host names are case insensitive
+		assertEquals("https://www.example.com/exact/", mapper.getMapping("https://WWW.Example.COM/"));
+	}
+
+	@Test
+	public void defaultPorts() {
+		CompiledRealmMapper mapper = mapper("*.example.com", "{scheme}://*.example.com{port}/");
+
+		assertEquals("https://*.example.com/", mapper.getMapping("https://www.example.com/"));
+		assertEquals("https://*.example.com/", mapper.getMapping("https://www.example.com:443/"));
+		assertEquals("http://*.example.com/", mapper.getMapping("http://www.example.com:80/x"));
+		assertEquals("https://*.example.com:80/", mapper.getMapping("https://www.example.com:80/"));
+		assertEquals("http://*.example.com:443/", mapper.getMapping("http://www.example.com:443?x"));
+		assertEquals("https://*.example.com:8443/", mapper.getMapping("https://www.example.com:8443#x"));
+		assertEquals("https://*.example.com/", mapper.getMapping("https", "www.example.com", -1));
+		assertEquals("https://*.example.com:8443/", mapper.getMapping("https", "www.example.com", 8443));
+	}
+
+	@Test
+	public void memoFollowsMapping() {
+		CompiledRealmMapper mapper = mapper("*.example.com", "{scheme}://*.example.com{port}/");
+		assertEquals("https://*.example.com/", mapper.getMapping("https://www.example.com/"));
+		assertEquals("https://www.example.org/", mapper.getMapping("https://www.example.org/"));
+
+		Map<String, String> mapping = new HashMap<String, String>();
+		mapping.put("www.example.com", "{scheme}://{host}{port}/");
+		mapper.setRealmMapping(mapping);
+		assertEquals("https://www.example.com/", mapper.getMapping("https://www.example.com/"));
+
+		mapper.setWildcardFallback(true);
+		assertEquals("https://*.example.org/", mapper.getMapping("https://www.example.org/"));
+		mapper.setWildcardFallback(false);
+		assertEquals("https://www.example.org/", mapper.getMapping("https://www.example.org/"));
+	}
+
+	@Test
+	public void memoBounded() {
+		CompiledRealmMapper mapper = mapper("*.example.com", "{scheme}://*.example.com{port}/");
+		mapper.setMaxMemoizedHosts(1);
+		for (int i = 0; i < 10; i++) {
+			assertEquals("https://*.example.com/", mapper.getMapping("https://host" + i + ".example.com/"));
+			assertEquals("https://host" + i + ".example.org/", mapper.getMapping("https://host" + i
+					+ ".example.org/"));
+		}
+	}
+
+	@Test
+	public void unmappedHosts() {
+		CompiledRealmMapper mapper = mapper("*.example.com", "{scheme}://*.example.com{port}/");
+
+		assertEquals("https://www.example.org/", mapper.getMapping("https://www.example.org/"));
+		assertEquals("http://www.example.org:8080/", mapper.getMapping("http://www.example.org:8080/"));
+		assertEquals("http://localhost/", mapper.getMapping("http://localhost/"));
+
+		mapper.setWildcardFallback(true);
+		assertEquals("https://*.example.org/", mapper.getMapping("https://www.example.org/"));
+		assertEquals("http://localhost/", mapper.getMapping("http://localhost/"));
+		// no wildcards for addresses
+		assertEquals("http://192.168.0.1:8080/", mapper.getMapping("http://192.168.0.1:8080/"));
+		assertEquals("http://[::ffff:10.0.0.1]/", mapper.getMapping("http://[::ffff:10.0.0.1]/"));
+	}
+
+	@Test
+	public void ipv6() {
+		CompiledRealmMapper mapper = mapper("[::1]", "{scheme}://localhost{port}/");
+
+		assertEquals("http://localhost:8080/", mapper.getMapping("http://[::1]:8080/auth"));
+		assertEquals("https://[2001:db8::1]/", mapper.getMapping("https://[2001:db8::1]/auth"));
+		assertEquals("https://[2001:db8::1]:8443/", mapper.getMapping("https://[2001:db8::1]:8443"));
+		assertNull(mapper.getMapping("https://[2001:db8::1/"));
+		assertNull(mapper.getMapping("https://[2001:db8::1]x/"));
+	}
+
+	@Test
+	public void ports() {
+		CompiledRealmMapper mapper = new CompiledRealmMapper();
+
+		assertEquals("https://www.example.com:65535/", mapper.getMapping("https://www.example.com:65535/"));
+		assertNull(mapper.getMapping("https://www.example.com:65536/"));
+		// would overflow int
+		assertNull(mapper.getMapping("https://www.example.com:4294967377/"));
+		assertNull(mapper.getMapping("https://www.example.com:8o/"));
+	}
+
+	@Test
+	public void malformed() {
+		CompiledRealmMapper mapper = new CompiledRealmMapper();
+
+		assertNull(mapper.getMapping("not a url"));
+		assertNull(mapper.getMapping("://www.example.com/"));
+		assertNull(mapper.getMapping("https:///path"));
+		assertNull(mapper.getMapping("https://"));
+	}
+
+	private static CompiledRealmMapper mapper(String... patternsAndRealms) {
+		Map<String, String> mapping = new HashMap<String, String>();
+		for (int i = 0; i < patternsAndRealms.length; i += 2) {
+			mapping.put(patternsAndRealms[i], patternsAndRealms[i + 1]);
+		}
+		CompiledRealmMapper mapper = new CompiledRealmMapper();
+		mapper.setRealmMapping(mapping);
+		return mapper;
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+public class CompiledReturnToBuilderTest {
+
+	@Test
+	public void build() {
+		CompiledReturnToBuilder builder = new CompiledReturnToBuilder(Arrays.asList("next", "lang"), null);
+
+		MockHttpServletRequest request = request("https", "www.example.com", 443);
+		assertEquals("https://www.example.com/auth/openid", builder.build(request).getUrl());
+		assertEquals("https://www.example.com/", builder.build(request).getRealm());
+
+		request.addParameter("lang", "de");
+		request.addParameter("next", "/home?tab=1 2");
+		request.addParameter("other", "x");
+		assertEquals("https://www.example.com/auth/openid?next=%2Fhome%3Ftab%3D1+2&lang=de", builder.build(request)
+				.getUrl());
+	}
+
+	@Test
+	public void ports() {
+		CompiledReturnToBuilder builder = new CompiledReturnToBuilder(Collections.<String> emptySet(), null);
+		assertEquals("http://www.example.com/", builder.build(request("http", "www.example.com", 80)).getRealm());
+		assertEquals("http://www.example.com:8080/", builder.build(request("http", "www.example.com", 8080))
+				.getRealm());
+		assertEquals("https://www.example.com:80/", builder.build(request("https", "www.example.com", 80))
+				.getRealm());
+	}
+
+	@Test
+	public void realmMapper() {
+		StaticRealmMapper realmMapper = new StaticRealmMapper();
+		realmMapper.setMapping("https://*.example.com/");
+		CompiledReturnToBuilder builder = new CompiledReturnToBuilder(Collections.<String> emptySet(), realmMapper);
+
+		assertEquals("https://*.example.com/", builder.build(request("https", "www.example.com", 443)).getRealm());
+		assertEquals("https://*.example.com/", builder.lookupRealm("https://www.example.org/"));
+
+		realmMapper.setMapping(null);
+		assertEquals("https://www.example.org:8443/", builder.lookupRealm("https://www.example.org:8443/x"));
+		assertNull(builder.lookupRealm("not a url"));
+	}
+
+	static MockHttpServletRequest request(String scheme, String host, int port) {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/auth/openid");
+		request.setScheme(scheme);
+		request.setServerName(host);
+		request.setServerPort(port);
+		return request;
+	}
+}
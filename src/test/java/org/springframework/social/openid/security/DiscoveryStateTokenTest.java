@@ -0,0 +1,234 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+import org.openid4java.discovery.Discovery;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.UrlIdentifier;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.Authentication;
+import org.springframework.social.openid.StubOpenIdProvider;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.security.SocialAuthenticationRedirectException;
+import org.springframework.util.Base64Utils;
+
+public class DiscoveryStateTokenTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(UTF_8);
+
+	private final Discovery discovery = new Discovery();
+
+	@Test
+	public void roundTrip() throws Exception {
+		DiscoveryStateToken stateToken = new DiscoveryStateToken(KEY);
+		DiscoveryInformation decoded = stateToken.decode(stateToken.encode(information()), discovery);
+
+		assertNotNull(decoded);
+		assertEquals("https://op.example.com/server", decoded.getOPEndpoint().toString());
+		assertEquals("https://alice.example.com/", decoded.getClaimedIdentifier().getIdentifier());
+		assertEquals("https://op.example.com/alice", decoded.getDelegateIdentifier());
+		assertEquals(DiscoveryInformation.OPENID2, decoded.getVersion());
+	}
+
+	@Test
+	public void roundTripWithoutIdentifiers() throws Exception {
+		DiscoveryStateToken stateToken = new DiscoveryStateToken(KEY);
+		DiscoveryInformation decoded = stateToken.decode(
+				stateToken.encode(new DiscoveryInformation(new URL("https://op.example.com/server"))), discovery);
+
+		assertNotNull(decoded);
+		assertEquals("https://op.example.com/server", decoded.getOPEndpoint().toString());
+		assertNull(decoded.getClaimedIdentifier());
+		assertNull(decoded.getDelegateIdentifier());
+	}
+
+	@Test
+	public void tamperedFields() throws Exception {
+		DiscoveryStateToken stateToken = new DiscoveryStateToken(KEY);
+		String token = stateToken.encode(information());
+
+		assertNull(stateToken.decode(tamper(token, 1, "https://evil.example.com/server"), discovery));
+		assertNull(stateToken.decode(tamper(token, 2, "https://bob.example.com/"), discovery));
+		assertNull(stateToken.decode(tamper(token, 3, "https://op.example.com/bob"), discovery));
+		assertNull(stateToken.decode(tamper(token, 4, DiscoveryInformation.OPENID11), discovery));
+
+		// sanity check: untampered payload with the original signature is fine
+		assertNotNull(stateToken.decode(tamper(token, 4, DiscoveryInformation.OPENID2), discovery));
+	}
+
+	@Test
+	public void tamperedSignature() throws Exception {
+		DiscoveryStateToken stateToken = new DiscoveryStateToken(KEY);
+		String token = stateToken.encode(information());
+		char last = token.charAt(token.length() - 1);
+		String tampered = token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A');
+
+		assertNull(stateToken.decode(tampered, discovery));
+	}
+
+	@Test
+	public void expired() throws Exception {
+		DiscoveryStateToken stateToken = new DiscoveryStateToken(KEY);
+		stateToken.setTimeToLive(-1);
+		String token = stateToken.encode(information());
+
+		assertNull(stateToken.decode(token, discovery));
+	}
+
+	@Test
+	public void wrongKey() throws Exception {
+		String token = new DiscoveryStateToken(KEY).encode(information());
+		DiscoveryStateToken other = new DiscoveryStateToken("fedcba9876543210fedcba9876543210".getBytes(UTF_8));
+
+		assertNull(other.decode(token, discovery));
+	}
+
+	@Test
+	public void malformed() throws Exception {
+		DiscoveryStateToken stateToken = new DiscoveryStateToken(KEY);
+		String token = stateToken.encode(information());
+		String signature = token.substring(token.indexOf('.'));
+
+		assertNull(stateToken.decode("", discovery));
+		assertNull(stateToken.decode("no-separator", discovery));
+		assertNull(stateToken.decode(".", discovery));
+		assertNull(stateToken.decode("!!!*" + signature, discovery));
+		assertNull(stateToken.decode(token.substring(0, token.indexOf('.') + 1) + "%%%%", discovery));
+		// validly signed but not a discovery state
+		assertNull(stateToken.decode(sign("not\na\nstate"), discovery));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shortKey() {
+		new DiscoveryStateToken("too short".getBytes(UTF_8));
+	}
+
+	/**
+	 * complete login through {@link OpenIdAuthenticationService} without ever
+	 * creating a session
+	 */
+	@Test
+	public void statelessLogin() throws Exception {
+		StubOpenIdProvider provider = new StubOpenIdProvider();
+		try {
+			OpenIdAuthenticationService service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+			service.setStatelessSecret("0123456789abcdef0123456789abcdef");
+			service.afterPropertiesSet();
+
+			MockHttpServletRequest initiate = CompiledReturnToBuilderTest.request("http", "www.example.com", 80);
+			initiate.addParameter("openid_identifier", provider.getClaimedIdentifier("alice"));
+			String redirectUrl = null;
+			try {
+				service.getAuthToken(initiate, null);
+				fail("redirect expected");
+			} catch (SocialAuthenticationRedirectException e) {
+				redirectUrl = e.getRedirectUrl();
+			}
+			assertNull(initiate.getSession(false));
+
+			String callbackUrl = provider.authenticate(redirectUrl);
+			assertTrue(callbackUrl, callbackUrl.contains(DefaultOpenIdConsumer.STATE_PARAMETER + "="));
+
+			MockHttpServletRequest callback = callback(callbackUrl);
+			Authentication token = service.getAuthToken(callback, null);
+			assertNotNull(token);
+			assertNull(callback.getSession(false));
+			assertEquals(1, provider.getAuthentications());
+
+			service.destroy();
+		} finally {
+			provider.stop();
+		}
+	}
+
+	private static DiscoveryInformation information() throws Exception {
+		return new DiscoveryInformation(new URL("https://op.example.com/server"), new UrlIdentifier(
+				"https://alice.example.com/"), "https://op.example.com/alice", DiscoveryInformation.OPENID2);
+	}
+
+	/**
+	 * replace a field of the signed payload, keeping the original signature
+	 */
+	private static String tamper(String token, int field, String value) {
+		int dot = token.indexOf('.');
+		String[] fields = new String(decode(token.substring(0, dot)), UTF_8).split("\n", -1);
+		fields[field] = value;
+
+		StringBuilder payload = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				payload.append('\n');
+			}
+			payload.append(fields[i]);
+		}
+		return encode(payload.toString().getBytes(UTF_8)) + token.substring(dot);
+	}
+
+	/**
+	 * sign an arbitrary payload with {@link #KEY}
+	 */
+	private static String sign(String payload) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+		byte[] bytes = payload.getBytes(UTF_8);
+		return encode(bytes) + '.' + encode(mac.doFinal(bytes));
+	}
+
+	private static String encode(byte[] bytes) {
+		return new String(Base64Utils.encode(bytes), UTF_8).replace('+', '-').replace('/', '_').replace("=", "");
+	}
+
+	private static byte[] decode(String urlSafe) {
+		StringBuilder buf = new StringBuilder(urlSafe.replace('-', '+').replace('_', '/'));
+		while (buf.length() % 4 != 0) {
+			buf.append('=');
+		}
+		return Base64Utils.decode(buf.toString().getBytes(UTF_8));
+	}
+
+	static MockHttpServletRequest callback(String callbackUrl) throws Exception {
+		URI uri = URI.create(callbackUrl);
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", uri.getPath());
+		request.setScheme(uri.getScheme());
+		request.setServerName(uri.getHost());
+		request.setServerPort(uri.getPort() < 0 ? 80 : uri.getPort());
+		request.setQueryString(uri.getRawQuery());
+		for (String pair : uri.getRawQuery().split("&")) {
+			int eq = pair.indexOf('=');
+			request.addParameter(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+					URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return request;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+public class ForwardedForClientKeyResolverTest {
+
+	private final ForwardedForClientKeyResolver resolver = new ForwardedForClientKeyResolver(Arrays.asList(
+			"10.0.0.1", "10.0.0.2"));
+
+	@Test
+	public void untrustedRemoteAddress() {
+		assertEquals("192.0.2.1", resolver.getClientKey(request("192.0.2.1", "198.51.100.1")));
+	}
+
+	@Test
+	public void trustedProxy() {
+		assertEquals("198.51.100.1", resolver.getClientKey(request("10.0.0.1", "198.51.100.1")));
+		assertEquals("10.0.0.1", resolver.getClientKey(request("10.0.0.1")));
+	}
+
+	@Test
+	public void spoofedEntriesIgnored() {
+		// the client sent 203.0.113.1 itself, the proxy appended its address
+		assertEquals("198.51.100.1", resolver.getClientKey(request("10.0.0.1", "203.0.113.1, 198.51.100.1")));
+	}
+
+	@Test
+	public void proxyChain() {
+		assertEquals("198.51.100.1", resolver.getClientKey(request("10.0.0.1", "198.51.100.1", "10.0.0.2")));
+		assertEquals("198.51.100.1", resolver.getClientKey(request("10.0.0.1", "198.51.100.1,10.0.0.2, ")));
+		assertEquals("10.0.0.2", resolver.getClientKey(request("10.0.0.1", "10.0.0.2")));
+	}
+
+	@Test
+	public void remoteAddress() {
+		assertEquals("192.0.2.1", RemoteAddressClientKeyResolver.INSTANCE.getClientKey(request("192.0.2.1",
+				"198.51.100.1")));
+	}
+
+	private static MockHttpServletRequest request(String remoteAddr, String... forwardedFor) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr(remoteAddr);
+		for (String value : forwardedFor) {
+			request.addHeader(ForwardedForClientKeyResolver.DEFAULT_HEADER, value);
+		}
+		return request;
+	}
+}
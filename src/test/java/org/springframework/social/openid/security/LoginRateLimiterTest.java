@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoginRateLimiterTest {
+
+	@Test
+	public void burstThenReject() {
+		LoginRateLimiter limiter = new LoginRateLimiter();
+		limiter.setClientRate(1, 3);
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.tryAcquireClient("192.0.2.1"));
+		}
+		assertFalse(limiter.tryAcquireClient("192.0.2.1"));
+		// other clients have their own bucket
+		assertTrue(limiter.tryAcquireClient("192.0.2.2"));
+		assertTrue(limiter.tryAcquireClient((String) null));
+	}
+
+	@Test
+	public void refills() throws Exception {
+		LoginRateLimiter limiter = new LoginRateLimiter();
+		limiter.setHostRate(100, 1);
+
+		assertTrue(limiter.tryAcquireHost("op.example.com"));
+		assertFalse(limiter.tryAcquireHost("op.example.com"));
+		Thread.sleep(20);
+		assertTrue(limiter.tryAcquireHost("op.example.com"));
+	}
+
+	@Test
+	public void disabled() {
+		LoginRateLimiter limiter = new LoginRateLimiter();
+		limiter.setClientRate(0, 1);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.tryAcquireClient("192.0.2.1"));
+		}
+	}
+
+	@Test
+	public void overflow() {
+		LoginRateLimiter limiter = new LoginRateLimiter();
+		limiter.setMaxKeys(16);
+		limiter.setClientRate(1, 10);
+		limiter.setOverflowRate(1, 5);
+
+		// a flood of busy clients fills every stripe, overflowing ones share
+		// a single bucket
+		int admitted = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (limiter.tryAcquireClient("198.51.100." + i)) {
+				admitted++;
+			}
+		}
+		assertTrue(admitted >= 5);
+		assertTrue("admitted " + admitted, admitted <= 16 + 5);
+
+		// known clients keep their own bucket
+		limiter.setOverflowRate(0, 1);
+		assertTrue(limiter.tryAcquireClient("198.51.100.0"));
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.openid.OpenIDAttribute;
+import org.springframework.social.connect.UserProfile;
+import org.springframework.social.openid.StubOpenIdProvider;
+import org.springframework.social.openid.api.impl.OpenIdTemplate;
+import org.springframework.social.openid.connect.OpenIdAdapter;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.openid.connect.OpenIdProfile;
+import org.springframework.social.openid.connect.OpenIdProfileCache;
+import org.springframework.social.security.SocialAuthenticationRedirectException;
+import org.springframework.social.security.SocialAuthenticationToken;
+
+public class OpenIdAttributesTest {
+
+	private StubOpenIdProvider provider;
+	private OpenIdProfileCache profileCache;
+	private OpenIdConnectionFactory connectionFactory;
+	private OpenIdAuthenticationService service;
+
+	@Before
+	public void before() throws Exception {
+		provider = new StubOpenIdProvider();
+		profileCache = new OpenIdProfileCache();
+		connectionFactory = new OpenIdConnectionFactory(profileCache);
+		service = new OpenIdAuthenticationService(connectionFactory);
+		service.setAttributes(OpenIdAttributes.profileAttributes());
+		service.setStatelessSecret("0123456789abcdef0123456789abcdef");
+		service.afterPropertiesSet();
+	}
+
+	@After
+	public void after() throws Exception {
+		service.destroy();
+		provider.stop();
+	}
+
+	@Test
+	public void toProfile() {
+		OpenIdProfile profile = OpenIdAttributes.toProfile(Arrays.asList(attribute(OpenIdAttributes.EMAIL,
+				"alice@example.com"), attribute(OpenIdAttributes.FULL_NAME, "Alice Liddell"), attribute(
+				OpenIdAttributes.FIRST_NAME, "Alice"), attribute(OpenIdAttributes.LAST_NAME, "Liddell"), attribute(
+				OpenIdAttributes.NICKNAME, "alice"), attribute(OpenIdAttributes.PROFILE_URL,
+				"https://example.com/alice"), attribute(OpenIdAttributes.IMAGE_URL, "https://example.com/alice.png")));
+
+		assertEquals("alice@example.com", profile.getEmail());
+		assertEquals("Alice Liddell", profile.getFullName());
+		assertEquals("Alice", profile.getFirstName());
+		assertEquals("Liddell", profile.getLastName());
+		assertEquals("alice", profile.getNickname());
+		assertEquals("https://example.com/alice", profile.getProfileUrl());
+		assertEquals("https://example.com/alice.png", profile.getImageUrl());
+		assertEquals("Alice Liddell", profile.getDisplayName());
+	}
+
+	@Test
+	public void toProfileMissingAttributes() {
+		OpenIdProfile profile = OpenIdAttributes.toProfile(Arrays.asList(attribute(OpenIdAttributes.FIRST_NAME,
+				"Alice"), attribute(OpenIdAttributes.FULL_NAME, null), attribute("urn:unknown", "ignored")));
+
+		assertNull(profile.getEmail());
+		assertNull(profile.getFullName());
+		assertEquals("Alice", profile.getFirstName());
+		assertNull(profile.getLastName());
+		assertNull(profile.getNickname());
+		assertNull(profile.getProfileUrl());
+		assertNull(profile.getImageUrl());
+		assertEquals("Alice", profile.getDisplayName());
+
+		assertNull(OpenIdAttributes.toProfile(Collections.<OpenIDAttribute> emptyList()));
+		assertNull(OpenIdAttributes.toProfile(Arrays.asList(attribute(OpenIdAttributes.EMAIL, null))));
+	}
+
+	@Test
+	public void toProfileEmail() {
+		assertEquals("legacy@example.com",
+				OpenIdAttributes.toProfile(
+						Arrays.asList(attribute(OpenIdAttributes.SCHEMA_OPENID_EMAIL, "legacy@example.com")))
+						.getEmail());
+		assertEquals("alice@example.com",
+				OpenIdAttributes.toProfile(
+						Arrays.asList(attribute(OpenIdAttributes.SCHEMA_OPENID_EMAIL, "legacy@example.com"),
+								attribute(OpenIdAttributes.EMAIL, "alice@example.com"))).getEmail());
+	}
+
+	@Test
+	public void toProfileFirstValueWins() {
+		OpenIdProfile profile = OpenIdAttributes.toProfile(Arrays.asList(new OpenIDAttribute("email",
+				OpenIdAttributes.EMAIL, Arrays.asList("alice@example.com", "other@example.com")), attribute(
+				OpenIdAttributes.EMAIL, "bob@example.com")));
+
+		assertEquals("alice@example.com", profile.getEmail());
+	}
+
+	@Test
+	public void sregNames() {
+		assertEquals("email", OpenIdAttributes.getSRegName(OpenIdAttributes.EMAIL));
+		assertEquals("email", OpenIdAttributes.getSRegName(OpenIdAttributes.SCHEMA_OPENID_EMAIL));
+		assertEquals("fullname", OpenIdAttributes.getSRegName(OpenIdAttributes.FULL_NAME));
+		assertEquals("nickname", OpenIdAttributes.getSRegName(OpenIdAttributes.NICKNAME));
+		assertNull(OpenIdAttributes.getSRegName(OpenIdAttributes.FIRST_NAME));
+		assertNull(OpenIdAttributes.getSRegName(OpenIdAttributes.IMAGE_URL));
+	}
+
+	@Test
+	public void toMap() {
+		Map<String, String> map = OpenIdAttributes.toMap(Arrays.asList(attribute(OpenIdAttributes.EMAIL,
+				"alice@example.com"), attribute(OpenIdAttributes.FULL_NAME, "Alice Liddell")));
+
+		assertEquals(2, map.size());
+		assertEquals("alice@example.com", map.get("email"));
+		assertEquals("Alice Liddell", map.get("namePerson"));
+	}
+
+	@Test
+	public void attributeExchange() throws Exception {
+		provider.setAttribute(OpenIdAttributes.EMAIL, "alice@example.com");
+		provider.setAttribute(OpenIdAttributes.FIRST_NAME, "Alice");
+		provider.setAttribute(OpenIdAttributes.LAST_NAME, "Liddell");
+
+		OpenIdProfile profile = login("alice");
+		assertEquals("alice@example.com", profile.getEmail());
+		assertEquals("Alice", profile.getFirstName());
+		assertEquals("Liddell", profile.getLastName());
+		assertNull(profile.getFullName());
+		assertEquals("Alice Liddell", profile.getDisplayName());
+	}
+
+	@Test
+	public void simpleRegistration() throws Exception {
+		provider.setSRegAttribute("email", "alice@example.com");
+		provider.setSRegAttribute("fullname", "Alice Liddell");
+
+		OpenIdProfile profile = login("alice");
+		assertEquals("alice@example.com", profile.getEmail());
+		assertEquals("Alice Liddell", profile.getFullName());
+		// no SReg equivalent
+		assertNull(profile.getFirstName());
+		assertNull(profile.getLastName());
+	}
+
+	@Test
+	public void attributeExchangeAndSimpleRegistration() throws Exception {
+		provider.setAttribute(OpenIdAttributes.EMAIL, "alice@ax.example.com");
+		provider.setAttribute(OpenIdAttributes.FIRST_NAME, "Alice");
+		provider.setSRegAttribute("email", "alice@sreg.example.com");
+		provider.setSRegAttribute("fullname", "Alice Liddell");
+
+		OpenIdProfile profile = login("alice");
+		// AX preferred, SReg fills in missing attributes
+		assertEquals("alice@ax.example.com", profile.getEmail());
+		assertEquals("Alice Liddell", profile.getFullName());
+		assertEquals("Alice", profile.getFirstName());
+		assertNull(profile.getLastName());
+	}
+
+	@Test
+	public void noAttributes() throws Exception {
+		assertNull(login("alice"));
+
+		UserProfile userProfile = new OpenIdAdapter(profileCache).fetchUserProfile(
+				new OpenIdTemplate(provider.getClaimedIdentifier("alice")));
+		assertEquals(provider.getClaimedIdentifier("alice"), userProfile.getUsername());
+		assertNull(userProfile.getName());
+		assertNull(userProfile.getEmail());
+	}
+
+	/**
+	 * complete a stateless login, checking the created connection and the user
+	 * profile against the cached profile
+	 * 
+	 * @return the cached profile
+	 */
+	private OpenIdProfile login(String user) throws Exception {
+		MockHttpServletRequest initiate = CompiledReturnToBuilderTest.request("http", "www.example.com", 80);
+		initiate.addParameter("openid_identifier", provider.getClaimedIdentifier(user));
+		String redirectUrl = null;
+		try {
+			service.getAuthToken(initiate, null);
+			fail("redirect expected");
+		} catch (SocialAuthenticationRedirectException e) {
+			redirectUrl = e.getRedirectUrl();
+		}
+
+		MockHttpServletRequest callback = DiscoveryStateTokenTest.callback(provider.authenticate(redirectUrl));
+		SocialAuthenticationToken token = (SocialAuthenticationToken) service.getAuthToken(callback, null);
+		assertNotNull(token);
+
+		String verifiedId = provider.getClaimedIdentifier(user);
+		OpenIdProfile profile = profileCache.get(verifiedId);
+		assertEquals(verifiedId, token.getConnection().getKey().getProviderUserId());
+		assertEquals(profile == null ? null : profile.getDisplayName(), token.getConnection().getDisplayName());
+		if (profile != null) {
+			UserProfile userProfile = new OpenIdAdapter(profileCache).fetchUserProfile(
+					new OpenIdTemplate(verifiedId));
+			assertEquals(verifiedId, userProfile.getUsername());
+			assertEquals(profile.getDisplayName(), userProfile.getName());
+			assertEquals(profile.getFirstName(), userProfile.getFirstName());
+			assertEquals(profile.getLastName(), userProfile.getLastName());
+			assertEquals(profile.getEmail(), userProfile.getEmail());
+		}
+		return profile;
+	}
+
+	private static OpenIDAttribute attribute(String type, String value) {
+		List<String> values = Collections.singletonList(value);
+		return new OpenIDAttribute(type.substring(type.lastIndexOf('/') + 1), type, values);
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+import org.junit.Test;
+import org.openid4java.consumer.ConsumerManager;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.openid.OpenIDConsumerException;
+import org.springframework.social.openid.StubOpenIdProvider;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.openid.metrics.LoginOutcome;
+import org.springframework.social.openid.metrics.LoginPhase;
+import org.springframework.social.openid.metrics.OpenIdSpan;
+import org.springframework.social.openid.metrics.OpenIdTracer;
+import org.springframework.social.security.SocialAuthenticationRedirectException;
+import org.springframework.social.security.SocialAuthenticationToken;
+
+public class OpenIdAuthenticationServiceTest {
+
+	@Test
+	public void eagerInit() throws Exception {
+		OpenIdAuthenticationService service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+		service.afterPropertiesSet();
+		assertNotNull(service.getConsumerManager());
+		service.destroy();
+	}
+
+	@Test
+	public void lazyInit() throws Exception {
+		StubOpenIdProvider provider = new StubOpenIdProvider();
+		try {
+			OpenIdAuthenticationService service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+			service.setLazyInit(true);
+			service.setKnownProviders(Collections.singletonList(provider.getClaimedIdentifier("alice")));
+			service.afterPropertiesSet();
+			assertNull(service.getConsumerManager());
+
+			service.warmUp();
+			ConsumerManager consumerManager = service.getConsumerManager();
+			assertNotNull(consumerManager);
+			service.warmUp();
+			assertSame(consumerManager, service.getConsumerManager());
+
+			// warming up starts associating with known providers
+			for (int i = 0; i < 100 && provider.getAssociations() == 0; i++) {
+				Thread.sleep(50);
+			}
+			assertEquals(1, provider.getAssociations());
+			service.destroy();
+		} finally {
+			provider.stop();
+		}
+	}
+
+	@Test
+	public void concurrentFirstUse() throws Exception {
+		final AtomicInteger created = new AtomicInteger();
+		final OpenIdAuthenticationService service = new OpenIdAuthenticationService(new OpenIdConnectionFactory()) {
+
+			@Override
+			protected ConsumerManager createConsumerManager() {
+				created.incrementAndGet();
+				return super.createConsumerManager();
+			}
+		};
+		service.setLazyInit(true);
+		service.afterPropertiesSet();
+		assertEquals(0, created.get());
+
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Callable<ConsumerManager>> tasks = new ArrayList<Callable<ConsumerManager>>();
+		for (int i = 0; i < threads; i++) {
+			tasks.add(new Callable<ConsumerManager>() {
+
+				@Override
+				public ConsumerManager call() throws Exception {
+					start.await();
+					service.warmUp();
+					return service.getConsumerManager();
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<ConsumerManager>> results = new ArrayList<Future<ConsumerManager>>();
+			for (Callable<ConsumerManager> task : tasks) {
+				results.add(executor.submit(task));
+			}
+			start.countDown();
+			for (Future<ConsumerManager> result : results) {
+				ConsumerManager consumerManager = result.get();
+				assertNotNull(consumerManager);
+				assertSame(service.getConsumerManager(), consumerManager);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, created.get());
+	}
+
+	@Test
+	public void returnToBuilderFollowsSettings() throws Exception {
+		OpenIdAuthenticationService service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+		service.setLazyInit(true);
+		service.afterPropertiesSet();
+
+		MockHttpServletRequest request = CompiledReturnToBuilderTest.request("https", "www.example.com", 443);
+		request.addParameter("next", "/home");
+		ReturnTo returnTo = service.getReturnToBuilder().build(request);
+		assertEquals("https://www.example.com/auth/openid", returnTo.getUrl());
+		assertEquals("https://www.example.com/", returnTo.getRealm());
+
+		StaticRealmMapper realmMapper = new StaticRealmMapper();
+		realmMapper.setMapping("https://*.example.com/");
+		service.setRealmMapper(realmMapper);
+		service.setReturnToUrlParameters(Collections.singleton("next"));
+
+		returnTo = service.getReturnToBuilder().build(request);
+		assertEquals("https://www.example.com/auth/openid?next=%2Fhome", returnTo.getUrl());
+		assertEquals("https://*.example.com/", returnTo.getRealm());
+		assertSame(service.getReturnToBuilder(), service.getReturnToBuilder());
+
+		IReturnToBuilder builder = new CompiledReturnToBuilder(Collections.<String> emptySet(), null);
+		service.setReturnToBuilder(builder);
+		assertSame(builder, service.getReturnToBuilder());
+		assertEquals("https://www.example.com/", service.getReturnToBuilder().build(request).getRealm());
+	}
+
+	@Test
+	public void tracesInitiation() throws Exception {
+		StubOpenIdProvider provider = new StubOpenIdProvider();
+		try {
+			RecordingTracer tracer = new RecordingTracer();
+			OpenIdAuthenticationService service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+			service.setLazyInit(true);
+			service.setTracer(tracer);
+			service.afterPropertiesSet();
+
+			MockHttpServletRequest request = CompiledReturnToBuilderTest.request("https", "www.example.com", 443);
+			request.setMethod("POST");
+			request.addParameter("openid_identifier", provider.getClaimedIdentifier("alice"));
+			try {
+				service.getAuthToken(request, null);
+				fail("redirect expected");
+			} catch (SocialAuthenticationRedirectException e) {
+				// redirect to OP
+			}
+
+			List<String> expected = new ArrayList<String>();
+			expected.add("start AUTH_TOKEN");
+			expected.add("start BUILD_RETURN_TO_URL");
+			expected.add("start LOOKUP_REALM");
+			expected.add("end LOOKUP_REALM null SUCCESS");
+			expected.add("end BUILD_RETURN_TO_URL 127.0.0.1 SUCCESS");
+			expected.add("start DISCOVERY");
+			expected.add("end DISCOVERY 127.0.0.1 SUCCESS");
+			expected.add("start ASSOCIATION");
+			expected.add("end ASSOCIATION 127.0.0.1 SUCCESS");
+			expected.add("end AUTH_TOKEN 127.0.0.1 REDIRECT");
+			assertEquals(expected, tracer.events);
+			service.destroy();
+		} finally {
+			provider.stop();
+		}
+	}
+
+	@Test
+	public void asyncVerification() throws Exception {
+		StubOpenIdConsumer consumer = new StubOpenIdConsumer();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			OpenIdAuthenticationService service = asyncService(consumer, executor);
+
+			MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+			assertTrue(service.startAsyncVerification(request, null));
+			assertTrue(request.isAsyncStarted());
+			assertTrue(awaitDispatch(request));
+			assertEquals(1, consumer.getVerifications());
+			assertNotSame(Thread.currentThread(), consumer.getVerifyingThread());
+
+			// dispatched again, picks up the result
+			SocialAuthenticationToken token = service.getAuthToken(request, null);
+			assertEquals("https://alice.example.com/", token.getConnection().getKey().getProviderUserId());
+			assertEquals(1, consumer.getVerifications());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void asyncVerificationTimeout() throws Exception {
+		StubOpenIdConsumer consumer = new StubOpenIdConsumer();
+		QueueingExecutor executor = new QueueingExecutor();
+		OpenIdAuthenticationService service = asyncService(consumer, executor);
+
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		assertTrue(service.startAsyncVerification(request, null));
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		assertEquals(OpenIdAuthenticationService.DEFAULT_ASYNC_VERIFICATION_TIMEOUT, asyncContext.getTimeout());
+		for (AsyncListener listener : asyncContext.getListeners()) {
+			listener.onTimeout(new AsyncEvent(asyncContext));
+		}
+		assertNotNull(asyncContext.getDispatchedPath());
+
+		try {
+			service.getAuthToken(request, null);
+			fail("timeout expected");
+		} catch (AuthenticationServiceException e) {
+			assertTrue(e.getCause() instanceof OpenIDConsumerException);
+		}
+
+		// verification still queued gives up
+		executor.runAll();
+		assertEquals(0, consumer.getVerifications());
+	}
+
+	@Test
+	public void asyncVerificationError() throws Exception {
+		StubOpenIdConsumer consumer = new StubOpenIdConsumer();
+		QueueingExecutor executor = new QueueingExecutor();
+		OpenIdAuthenticationService service = asyncService(consumer, executor);
+
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		assertTrue(service.startAsyncVerification(request, null));
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		for (AsyncListener listener : asyncContext.getListeners()) {
+			listener.onError(new AsyncEvent(asyncContext, new IOException("connection reset")));
+		}
+		assertFalse(request.isAsyncStarted());
+		assertNull(asyncContext.getDispatchedPath());
+
+		executor.runAll();
+		assertEquals(0, consumer.getVerifications());
+		assertNull(asyncContext.getDispatchedPath());
+	}
+
+	@Test
+	public void asyncVerificationRejected() throws Exception {
+		StubOpenIdConsumer consumer = new StubOpenIdConsumer();
+		OpenIdAuthenticationService service = asyncService(consumer, new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("saturated");
+			}
+		});
+
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		assertTrue(service.startAsyncVerification(request, null));
+		// verified synchronously and dispatched right away
+		assertNotNull(((MockAsyncContext) request.getAsyncContext()).getDispatchedPath());
+		assertSame(Thread.currentThread(), consumer.getVerifyingThread());
+
+		SocialAuthenticationToken token = service.getAuthToken(request, null);
+		assertEquals("https://alice.example.com/", token.getConnection().getKey().getProviderUserId());
+		assertEquals(1, consumer.getVerifications());
+	}
+
+	@Test
+	public void asyncVerificationSkipped() throws Exception {
+		StubOpenIdConsumer consumer = new StubOpenIdConsumer();
+		OpenIdAuthenticationService service = asyncService(consumer, new QueueingExecutor());
+
+		MockHttpServletRequest initiate = CompiledReturnToBuilderTest.request("https", "www.example.com", 443);
+		initiate.setAsyncSupported(true);
+		initiate.addParameter("openid_identifier", "https://alice.example.com/");
+		assertFalse(service.startAsyncVerification(initiate, null));
+
+		MockHttpServletRequest unsupported = StubOpenIdConsumer.callback("https://alice.example.com/");
+		unsupported.setAsyncSupported(false);
+		assertFalse(service.startAsyncVerification(unsupported, null));
+
+		service.setVerificationExecutor(null);
+		assertFalse(service.startAsyncVerification(StubOpenIdConsumer.callback("https://alice.example.com/"), null));
+		assertEquals(0, consumer.getVerifications());
+	}
+
+	static OpenIdAuthenticationService asyncService(StubOpenIdConsumer consumer, Executor executor)
+			throws Exception {
+		OpenIdAuthenticationService service = new OpenIdAuthenticationService(new OpenIdConnectionFactory());
+		service.setLazyInit(true);
+		service.setConsumer(consumer);
+		service.setVerificationExecutor(executor);
+		service.afterPropertiesSet();
+		return service;
+	}
+
+	static boolean awaitDispatch(MockHttpServletRequest request) throws InterruptedException {
+		// dispatch handlers added after dispatching never run, poll instead
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		for (int i = 0; i < 100 && asyncContext.getDispatchedPath() == null; i++) {
+			Thread.sleep(50);
+		}
+		return asyncContext.getDispatchedPath() != null;
+	}
+
+	private static final class QueueingExecutor implements Executor {
+
+		private final List<Runnable> queued = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			queued.add(command);
+		}
+
+		void runAll() {
+			for (Runnable command : queued) {
+				command.run();
+			}
+			queued.clear();
+		}
+	}
+
+	private static final class RecordingTracer implements OpenIdTracer {
+
+		private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public boolean isEnabled() {
+			return true;
+		}
+
+		@Override
+		public OpenIdSpan start(final LoginPhase phase) {
+			events.add("start " + phase);
+			return new OpenIdSpan() {
+
+				private boolean ended;
+
+				@Override
+				public void end(String host, LoginOutcome outcome) {
+					if (!ended) {
+						ended = true;
+						events.add("end " + phase + " " + host + " " + outcome);
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.openid4java.message.ParameterList;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.social.openid.security.OpenIdRequest.Phase;
+
+public class OpenIdRequestTest {
+
+	@Test
+	public void openIdParametersOnly() {
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		request.addParameter("next", "/home");
+		request.addParameter("openid_identifier", "https://bob.example.com/");
+		request.addParameter("openidx", "x");
+
+		OpenIdRequest openIdRequest = OpenIdRequest.get(request);
+		assertEquals("https://alice.example.com/", openIdRequest.getIdentity());
+		assertEquals("https://op.example.com/server", openIdRequest.getOpEndpoint());
+		assertEquals("id_res", openIdRequest.getParameter("openid.mode"));
+		assertNull(openIdRequest.getParameter("next"));
+		assertNull(openIdRequest.getParameter("openid_identifier"));
+		assertNull(openIdRequest.getParameter("openidx"));
+
+		ParameterList parameters = openIdRequest.toParameterList();
+		assertEquals(5, parameters.getParameters().size());
+		assertEquals("https://alice.example.com/", parameters.getParameterValue("openid.identity"));
+		assertNull(parameters.getParameter("next"));
+	}
+
+	@Test
+	public void repeatedKeys() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/auth/openid");
+		request.addParameter("openid.mode", "id_res");
+		request.addParameter("openid.identity", new String[] { "https://alice.example.com/", "https://bob.example.com/" });
+
+		OpenIdRequest openIdRequest = OpenIdRequest.get(request);
+		assertEquals("https://alice.example.com/", openIdRequest.getIdentity());
+		assertEquals("https://alice.example.com/", openIdRequest.toParameterList().getParameterValue(
+				"openid.identity"));
+	}
+
+	@Test
+	public void parsedOncePerRequest() {
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		OpenIdRequest openIdRequest = OpenIdRequest.get(request);
+		assertSame(openIdRequest, OpenIdRequest.get(request));
+		assertSame(openIdRequest, OpenIdRequest.get(request, OpenIdRequest.DEFAULT_CLAIMED_IDENTITY_PARAMETER));
+
+		// kept as request attribute, later parameters aren't seen
+		request.addParameter("openid.assoc_handle", "handle");
+		assertNull(OpenIdRequest.get(request).getParameter("openid.assoc_handle"));
+
+		assertEquals(Phase.NONE, OpenIdRequest.get(new MockHttpServletRequest()).getPhase());
+	}
+
+	@Test
+	public void phases() {
+		MockHttpServletRequest initiate = new MockHttpServletRequest("POST", "/auth/openid");
+		initiate.addParameter("openid_identifier", "https://alice.example.com/");
+		assertEquals(Phase.INITIATE, OpenIdRequest.get(initiate).getPhase());
+
+		assertEquals(Phase.CALLBACK, OpenIdRequest.get(StubOpenIdConsumer.callback("https://alice.example.com/"))
+				.getPhase());
+
+		MockHttpServletRequest cancel = new MockHttpServletRequest("GET", "/auth/openid");
+		cancel.addParameter("openid.mode", "cancel");
+		assertEquals(Phase.REJECTION, OpenIdRequest.get(cancel).getPhase());
+
+		MockHttpServletRequest emptyIdentity = new MockHttpServletRequest("GET", "/auth/openid");
+		emptyIdentity.addParameter("openid.mode", "id_res");
+		emptyIdentity.addParameter("openid.identity", "");
+		assertEquals(Phase.REJECTION, OpenIdRequest.get(emptyIdentity).getPhase());
+		assertEquals("", OpenIdRequest.get(emptyIdentity).getIdentity());
+
+		MockHttpServletRequest other = new MockHttpServletRequest("GET", "/auth/openid");
+		other.addParameter("next", "/home");
+		assertEquals(Phase.NONE, OpenIdRequest.get(other).getPhase());
+	}
+
+	@Test
+	public void claimedIdentityFieldName() {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/auth/openid");
+		request.addParameter("login", "https://alice.example.com/");
+		request.addParameter("openid.ns", "http://specs.openid.net/auth/2.0");
+
+		OpenIdRequest byDefault = OpenIdRequest.get(request);
+		assertEquals(Phase.NONE, byDefault.getPhase());
+
+		// same parameters, phase of the other name
+		OpenIdRequest byLogin = OpenIdRequest.get(request, "login");
+		assertNotSame(byDefault, byLogin);
+		assertEquals(Phase.INITIATE, byLogin.getPhase());
+		assertEquals("http://specs.openid.net/auth/2.0", byLogin.getParameter("openid.ns"));
+		assertSame(byLogin, OpenIdRequest.get(request, "login"));
+
+		MockHttpServletRequest defaultName = new MockHttpServletRequest("POST", "/auth/openid");
+		defaultName.addParameter("openid_identifier", "https://alice.example.com/");
+		assertEquals(Phase.NONE, OpenIdRequest.get(defaultName, "login").getPhase());
+	}
+}
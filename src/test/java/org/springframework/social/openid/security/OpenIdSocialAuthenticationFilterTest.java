@@ -0,0 +1,231 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.DispatcherType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.social.UserIdSource;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.connect.mem.InMemoryUsersConnectionRepository;
+import org.springframework.social.openid.connect.OpenIdConnectionFactory;
+import org.springframework.social.security.SocialAuthenticationProvider;
+import org.springframework.social.security.SocialAuthenticationServiceRegistry;
+import org.springframework.social.security.SocialUser;
+import org.springframework.social.security.SocialUserDetails;
+import org.springframework.social.security.SocialUserDetailsService;
+
+public class OpenIdSocialAuthenticationFilterTest {
+
+	private StubOpenIdConsumer consumer;
+	private ExecutorService executor;
+	private OpenIdAuthenticationService service;
+	private OpenIdSocialAuthenticationFilter filter;
+
+	@Before
+	public void before() throws Exception {
+		consumer = new StubOpenIdConsumer();
+		executor = Executors.newSingleThreadExecutor();
+		service = OpenIdAuthenticationServiceTest.asyncService(consumer, executor);
+
+		SocialAuthenticationServiceRegistry registry = new SocialAuthenticationServiceRegistry();
+		registry.addAuthenticationService(service);
+
+		InMemoryUsersConnectionRepository repository = new InMemoryUsersConnectionRepository(registry);
+		repository.setConnectionSignUp(new ConnectionSignUp() {
+
+			@Override
+			public String execute(Connection<?> connection) {
+				return connection.getKey().getProviderUserId();
+			}
+		});
+		AuthenticationProvider authProvider = new SocialAuthenticationProvider(repository,
+				new SocialUserDetailsService() {
+
+					@Override
+					public SocialUserDetails loadUserByUserId(String userId) throws UsernameNotFoundException {
+						return new SocialUser(userId, "", Collections.<GrantedAuthority> emptyList());
+					}
+				});
+		AuthenticationManager authManager = new ProviderManager(Collections.singletonList(authProvider));
+
+		filter = new OpenIdSocialAuthenticationFilter(authManager, new UserIdSource() {
+
+			@Override
+			public String getUserId() {
+				throw new UnsupportedOperationException();
+			}
+		}, repository, registry);
+	}
+
+	@After
+	public void after() {
+		executor.shutdownNow();
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void asyncCallback() throws Exception {
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, response, chain);
+		assertTrue(request.isAsyncStarted());
+		assertNull(chain.getRequest());
+		assertNull(response.getRedirectedUrl());
+
+		assertTrue(OpenIdAuthenticationServiceTest.awaitDispatch(request));
+		assertEquals(1, consumer.getVerifications());
+
+		// async dispatch completes the login with the verification result
+		request.setDispatcherType(DispatcherType.ASYNC);
+		filter.doFilter(request, response, new MockFilterChain());
+		assertEquals("/", response.getRedirectedUrl());
+		assertEquals(1, consumer.getVerifications());
+		assertEquals("https://alice.example.com/", SecurityContextHolder.getContext().getAuthentication().getName());
+	}
+
+	@Test
+	public void synchronousCallback() throws Exception {
+		service.setVerificationExecutor(null);
+
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request, response, new MockFilterChain());
+
+		assertFalse(request.isAsyncStarted());
+		assertEquals("/", response.getRedirectedUrl());
+		assertEquals(1, consumer.getVerifications());
+	}
+
+	@Test
+	public void otherRequests() throws Exception {
+		MockHttpServletRequest request = StubOpenIdConsumer.callback("https://alice.example.com/");
+		request.setRequestURI("/auth/other");
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		assertFalse(request.isAsyncStarted());
+		assertNotNull(chain.getRequest());
+		assertEquals(0, consumer.getVerifications());
+	}
+
+	@Test
+	public void asyncOnlyForOpenIdProviders() throws Exception {
+		MockHttpServletRequest pathParameter = StubOpenIdConsumer.callback("https://alice.example.com/");
+		pathParameter.setRequestURI("/auth/openid;jsessionid=1");
+		filter.doFilter(pathParameter, new MockHttpServletResponse(), new MockFilterChain());
+		assertTrue(pathParameter.isAsyncStarted());
+
+		MockHttpServletRequest contextPath = StubOpenIdConsumer.callback("https://alice.example.com/");
+		contextPath.setContextPath("/app");
+		contextPath.setRequestURI("/app/auth/openid");
+		filter.doFilter(contextPath, new MockHttpServletResponse(), new MockFilterChain());
+		assertTrue(contextPath.isAsyncStarted());
+
+		MockHttpServletRequest prefix = StubOpenIdConsumer.callback("https://alice.example.com/");
+		prefix.setRequestURI("/auth/openidx");
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(prefix, new MockHttpServletResponse(), chain);
+		assertFalse(prefix.isAsyncStarted());
+		assertNotNull(chain.getRequest());
+
+		MockHttpServletRequest otherFilterUrl = StubOpenIdConsumer.callback("https://alice.example.com/");
+		otherFilterUrl.setRequestURI("/login/openid");
+		chain = new MockFilterChain();
+		filter.doFilter(otherFilterUrl, new MockHttpServletResponse(), chain);
+		assertFalse(otherFilterUrl.isAsyncStarted());
+		assertNotNull(chain.getRequest());
+
+		filter.setFilterProcessesUrl("/login");
+		otherFilterUrl = StubOpenIdConsumer.callback("https://alice.example.com/");
+		otherFilterUrl.setRequestURI("/login/openid");
+		filter.doFilter(otherFilterUrl, new MockHttpServletResponse(), new MockFilterChain());
+		assertTrue(otherFilterUrl.isAsyncStarted());
+	}
+
+	@Test
+	public void detectRejection() {
+		MockHttpServletRequest initiate = new MockHttpServletRequest("POST", "/auth/openid");
+		initiate.addParameter("openid_identifier", "https://alice.example.com/");
+		assertFalse(filter.detectRejection(initiate));
+		assertFalse(OpenIdSocialAuthenticationFilter.isOpenIdRequest(initiate));
+
+		MockHttpServletRequest callback = StubOpenIdConsumer.callback("https://alice.example.com/");
+		assertFalse(filter.detectRejection(callback));
+		assertFalse(OpenIdSocialAuthenticationFilter.isOpenIdRequest(callback));
+
+		MockHttpServletRequest cancel = new MockHttpServletRequest("GET", "/auth/openid");
+		cancel.addParameter("openid.mode", "cancel");
+		assertTrue(filter.detectRejection(cancel));
+		assertTrue(OpenIdSocialAuthenticationFilter.isOpenIdRequest(cancel));
+
+		// an empty identity isn't a rejection, as before parsing openid.* parameters once
+		MockHttpServletRequest emptyIdentity = new MockHttpServletRequest("GET", "/auth/openid");
+		emptyIdentity.addParameter("openid.mode", "id_res");
+		emptyIdentity.addParameter("openid.identity", "");
+		assertFalse(filter.detectRejection(emptyIdentity));
+		assertFalse(OpenIdSocialAuthenticationFilter.isOpenIdRequest(emptyIdentity));
+
+		// other requests are left to the base class
+		assertFalse(filter.detectRejection(new MockHttpServletRequest("GET", "/auth/openid")));
+		MockHttpServletRequest oauth = new MockHttpServletRequest("GET", "/auth/openid");
+		oauth.addParameter("code", "123");
+		assertFalse(filter.detectRejection(oauth));
+		MockHttpServletRequest error = new MockHttpServletRequest("GET", "/auth/openid");
+		error.addParameter("error", "access_denied");
+		assertTrue(filter.detectRejection(error));
+	}
+
+	@Test
+	public void detectRejectionByClaimedIdentityFieldName() {
+		service.setClaimedIdentityFieldName("login");
+
+		MockHttpServletRequest initiate = new MockHttpServletRequest("POST", "/auth/openid");
+		initiate.addParameter("login", "https://alice.example.com/");
+		assertFalse(filter.detectRejection(initiate));
+		assertTrue(OpenIdSocialAuthenticationFilter.isOpenIdRequest(initiate));
+		assertFalse(OpenIdSocialAuthenticationFilter.isOpenIdRequest(initiate, "login"));
+
+		MockHttpServletRequest defaultName = new MockHttpServletRequest("POST", "/auth/openid");
+		defaultName.addParameter("openid_identifier", "https://alice.example.com/");
+		assertTrue(filter.detectRejection(defaultName));
+	}
+}
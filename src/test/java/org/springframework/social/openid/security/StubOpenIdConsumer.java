@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 Molindo GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.social.openid.security;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.openid.OpenIDAttribute;
+import org.springframework.security.openid.OpenIDAuthenticationStatus;
+import org.springframework.security.openid.OpenIDAuthenticationToken;
+import org.springframework.security.openid.OpenIDConsumer;
+import org.springframework.security.openid.OpenIDConsumerException;
+
+/**
+ * Accepts every callback as positive assertion of its <tt>openid.identity</tt>
+ * and remembers the thread verifying it.
+ */
+class StubOpenIdConsumer implements OpenIDConsumer {
+
+	private final AtomicInteger verifications = new AtomicInteger();
+	private volatile Thread verifyingThread;
+
+	/**
+	 * @return a callback of the OP asserting <tt>identity</tt>
+	 */
+	static MockHttpServletRequest callback(String identity) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/auth/openid");
+		request.addParameter("openid.ns", "http://specs.openid.net/auth/2.0");
+		request.addParameter("openid.mode", "id_res");
+		request.addParameter("openid.op_endpoint", "https://op.example.com/server");
+		request.addParameter("openid.claimed_id", identity);
+		request.addParameter("openid.identity", identity);
+		request.setAsyncSupported(true);
+		return request;
+	}
+
+	@Override
+	public String beginConsumption(HttpServletRequest req, String claimedIdentity, String returnToUrl, String realm)
+			throws OpenIDConsumerException {
+		throw new OpenIDConsumerException("callbacks only");
+	}
+
+	@Override
+	public OpenIDAuthenticationToken endConsumption(HttpServletRequest req) throws OpenIDConsumerException {
+		verifyingThread = Thread.currentThread();
+		verifications.incrementAndGet();
+		return new OpenIDAuthenticationToken(OpenIDAuthenticationStatus.SUCCESS, req.getParameter("openid.identity"),
+				"verified", Collections.<OpenIDAttribute> emptyList());
+	}
+
+	public int getVerifications() {
+		return verifications.get();
+	}
+
+	public Thread getVerifyingThread() {
+		return verifyingThread;
+	}
+}